@@ -0,0 +1,55 @@
+#!/usr/bin/env bash
+# Checks the forwarding cache on loopback: an upstream serving the example zone
+# and a forwarder in front of it. Each question must reach the upstream once,
+# repeats must be cache hits, and NXDOMAIN must be cached too (RFC 2308).
+#
+# Usage: scripts/forward-cache-loopback.sh [classpath]   (default target/classes)
+set -euo pipefail
+
+CP=${1:-target/classes}
+ZONE=$(dirname "$0")/../zones/example.com.zone
+WORK=$(mktemp -d)
+PIDS=()
+
+cleanup() {
+    for pid in "${PIDS[@]}"; do
+        kill "$pid" 2>/dev/null || true
+    done
+    wait 2>/dev/null || true
+    rm -rf "$WORK"
+}
+trap cleanup EXIT
+
+start() {
+    local name=$1
+    shift
+    java -cp "$CP" Main "$@" > "$WORK/$name.log" 2>&1 &
+    PIDS+=($!)
+}
+
+metric() {
+    curl -s "http://127.0.0.1:$1/metrics" | awk -v name="$2" '$1 == name { print $2 }'
+}
+
+start upstream --port 15310 --zone "$ZONE" --response-cache-mb 0
+start forwarder --port 15311 --forward 127.0.0.1:15310 --metrics-port 19311 --cache-mb 1
+sleep 2
+
+# 20 queries per second spread over the three questions, for two seconds
+java -cp "$CP" tools.LoadGenerator --server 127.0.0.1:15311 --rate 20 --duration 2 \
+    --query www.example.com/A --query example.com/MX --query missing.example.com/A > /dev/null
+
+failed=0
+check() {
+    if [ "$2" "$3" "$4" ]; then
+        echo "ok   $1 ($2)"
+    else
+        echo "FAIL $1 ($2, expected $3 $4)"
+        failed=1
+    fi
+}
+check "one upstream query per question" "$(metric 19311 dns_upstream_queries_total)" -eq 3
+check "one miss per question" "$(metric 19311 dns_record_cache_misses_total)" -eq 3
+check "repeats were hits" "$(metric 19311 dns_record_cache_hits_total)" -ge 30
+check "NXDOMAIN was cached" "$(metric 19311 dns_record_cache_negative_hits_total)" -ge 5
+exit $failed
@@ -0,0 +1,71 @@
+#!/usr/bin/env bash
+# Checks cache sharing between server instances on loopback: an upstream, two
+# forwarders A and B that share a key, and a forwarder C with the wrong key.
+# Answers A resolves must be hits on B without an upstream query, and C must
+# reject everything A pushes to it.
+#
+# Usage: scripts/peer-cache-loopback.sh [classpath]   (default target/classes)
+set -euo pipefail
+
+CP=${1:-target/classes}
+ZONE=$(dirname "$0")/../zones/example.com.zone
+WORK=$(mktemp -d)
+PIDS=()
+
+cleanup() {
+    for pid in "${PIDS[@]}"; do
+        kill "$pid" 2>/dev/null || true
+    done
+    wait 2>/dev/null || true
+    rm -rf "$WORK"
+}
+trap cleanup EXIT
+
+start() {
+    local name=$1
+    shift
+    java -cp "$CP" Main "$@" > "$WORK/$name.log" 2>&1 &
+    PIDS+=($!)
+}
+
+metric() {
+    curl -s "http://127.0.0.1:$1/metrics" | awk -v name="$2" '$1 == name { print $2 }'
+}
+
+query() {
+    java -cp "$CP" tools.LoadGenerator --server "127.0.0.1:$1" --rate 20 --duration 1 \
+        --query www.example.com/A --query example.com/MX --query missing.example.com/A > /dev/null
+}
+
+head -c 32 /dev/urandom > "$WORK/peer.key"
+head -c 32 /dev/urandom > "$WORK/other.key"
+
+start upstream --port 15300 --zone "$ZONE" --response-cache-mb 0
+start a --port 15301 --forward 127.0.0.1:15300 --metrics-port 19301 --peer-port 16001 \
+    --peer 127.0.0.1:16002 --peer 127.0.0.1:16003 --peer-key-file "$WORK/peer.key"
+start b --port 15302 --forward 127.0.0.1:15300 --metrics-port 19302 --peer-port 16002 \
+    --peer 127.0.0.1:16001 --peer-key-file "$WORK/peer.key"
+start c --port 15303 --forward 127.0.0.1:15300 --metrics-port 19303 --peer-port 16003 \
+    --peer 127.0.0.1:16001 --peer-key-file "$WORK/other.key"
+sleep 2
+
+query 15301
+sleep 0.5
+query 15302
+
+failed=0
+check() {
+    if [ "$2" "$3" "$4" ]; then
+        echo "ok   $1 ($2)"
+    else
+        echo "FAIL $1 ($2, expected $3 $4)"
+        failed=1
+    fi
+}
+check "A pushed its answers" "$(metric 19301 dns_cache_peer_sent_total)" -ge 6
+check "B cached A's answers" "$(metric 19302 dns_cache_peer_received_total)" -eq 3
+check "B asked no upstream" "$(metric 19302 dns_upstream_queries_total)" -eq 0
+check "B had no misses" "$(metric 19302 dns_record_cache_misses_total)" -eq 0
+check "C cached nothing" "$(metric 19303 dns_cache_peer_received_total)" -eq 0
+check "C rejected A's datagrams" "$(metric 19303 dns_cache_peer_rejected_total)" -ge 1
+exit $failed
@@ -0,0 +1,475 @@
+package server;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.StructLayout;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static java.lang.foreign.ValueLayout.ADDRESS;
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+import static java.lang.foreign.ValueLayout.JAVA_SHORT;
+
+// BatchSocket over recvmmsg/sendmmsg, called through the Foreign Function & Memory
+// API (a preview API in Java 21, see BatchSocket). The socket is made with libc
+// calls rather than a DatagramChannel, so its descriptor is ours to pass. Every
+// buffer the kernel sees is off-heap and allocated once: per datagram a struct
+// mmsghdr, its iovec, a sockaddr and the payload, one set for receiving and one for
+// sending. Datagrams are copied between those and the callers' heap buffers, a few
+// dozen bytes each, which costs far less than the system calls it saves.
+//
+// Receives wait in the kernel with MSG_WAITFORONE: the call returns as soon as one
+// datagram is there, with as many more as are already queued. SO_RCVTIMEO ends the
+// wait after RECEIVE_WAIT_MICROS, so a worker notices it should stop.
+//
+// Linux on 64-bit x86 and ARM only: the struct offsets and constants below are theirs.
+final class MmsgSocket implements BatchSocket {
+
+    // <sys/socket.h>, <netinet/in.h>, <asm-generic/socket.h>, <asm-generic/errno-base.h>
+    private static final int AF_INET = 2;
+    private static final int AF_INET6 = 10;
+    private static final int SOCK_DGRAM = 2;
+    private static final int SOL_SOCKET = 1;
+    private static final int SO_REUSEPORT = 15;
+    private static final int SO_RCVTIMEO = 20;
+    private static final int IPPROTO_IPV6 = 41;
+    private static final int IPV6_V6ONLY = 26;
+    private static final int MSG_WAITFORONE = 0x10000;
+    private static final int EINTR = 4;
+    private static final int EAGAIN = 11;
+
+    // struct mmsghdr is a struct msghdr (56 bytes) followed by msg_len
+    private static final int MMSGHDR_SIZE = 64;
+    private static final int MSG_NAME = 0;
+    private static final int MSG_NAMELEN = 8;
+    private static final int MSG_IOV = 16;
+    private static final int MSG_IOVLEN = 24;
+    private static final int MSG_LEN = 56;
+    private static final int IOVEC_SIZE = 16;
+    private static final int IOV_LEN = 8;
+    private static final int SOCKADDR_IN_SIZE = 16;
+    private static final int SOCKADDR_IN6_SIZE = 28;
+    private static final int SOCKADDR_SLOT = 32; // Room for either, 8-byte aligned
+    private static final ValueLayout.OfShort PORT = JAVA_SHORT.withOrder(ByteOrder.BIG_ENDIAN);
+
+    private static final long RECEIVE_WAIT_MICROS = 100_000;
+
+    private final int fd;
+    private final int family;
+    private final int batchSize;
+    private final int maxPayload;
+    private final Arena arena = Arena.ofShared();
+    private final MemorySegment state; // errno of the batch calls, which only the worker makes
+    private final Batch in;
+    private final Batch out;
+    private final int[] sendIndex; // Caller's index of each datagram in out
+
+    // Single sends come from any thread and must not use a closed descriptor
+    private final ReentrantReadWriteLock closing = new ReentrantReadWriteLock();
+    private boolean closed;
+
+    MmsgSocket(InetSocketAddress address, int batchSize, int maxPayload) throws IOException {
+        String arch = System.getProperty("os.arch");
+        if (!System.getProperty("os.name").equals("Linux") || !(arch.equals("amd64") || arch.equals("aarch64"))) {
+            throw new UnsupportedOperationException("needs Linux on x86-64 or AArch64");
+        }
+        this.batchSize = batchSize;
+        this.maxPayload = maxPayload;
+        this.sendIndex = new int[batchSize];
+
+        // A wildcard address gets a dual-stack IPv6 socket, as a DatagramChannel would
+        InetAddress host = address.getAddress();
+        this.family = host instanceof Inet4Address && !host.isAnyLocalAddress() ? AF_INET : AF_INET6;
+        this.state = arena.allocate(Libc.CAPTURE_LAYOUT);
+        int descriptor = Libc.socket(state, family, SOCK_DGRAM, 0);
+        if (descriptor < 0) {
+            IOException error = error("socket", errno(state));
+            arena.close();
+            throw error;
+        }
+        this.fd = descriptor;
+
+        try {
+            if (family == AF_INET6) {
+                setOption(IPPROTO_IPV6, IPV6_V6ONLY, intValue(0));
+            }
+            setOption(SOL_SOCKET, SO_REUSEPORT, intValue(1));
+            MemorySegment timeout = arena.allocate(16, 8); // struct timeval
+            timeout.set(JAVA_LONG, 0, 0);
+            timeout.set(JAVA_LONG, 8, RECEIVE_WAIT_MICROS);
+            setOption(SOL_SOCKET, SO_RCVTIMEO, timeout);
+
+            MemorySegment name = arena.allocate(SOCKADDR_SLOT, 8);
+            int nameLength = host.isAnyLocalAddress() && family == AF_INET6
+                    ? writeAddress(name, AF_INET6, new byte[16], address.getPort(), 0)
+                    : writeAddress(name, address);
+            if (Libc.bind(state, fd, name, nameLength) < 0) {
+                throw error("bind " + address, errno(state));
+            }
+
+            this.in = new Batch(arena, batchSize, maxPayload);
+            this.out = new Batch(arena, batchSize, maxPayload);
+        } catch (IOException | RuntimeException e) {
+            Libc.close(fd);
+            arena.close();
+            throw e;
+        }
+    }
+
+    // The mmsghdr array and the iovec, sockaddr and payload each entry points at
+    private static final class Batch {
+        final MemorySegment headers;
+        final MemorySegment iovecs;
+        final MemorySegment names;
+        final MemorySegment buffers;
+
+        Batch(Arena arena, int size, int payload) {
+            headers = arena.allocate((long) size * MMSGHDR_SIZE, 8); // Zeroed: no control data, no flags
+            iovecs = arena.allocate((long) size * IOVEC_SIZE, 8);
+            names = arena.allocate((long) size * SOCKADDR_SLOT, 8);
+            buffers = arena.allocate((long) size * payload, 8);
+            for (int i = 0; i < size; i++) {
+                long header = (long) i * MMSGHDR_SIZE;
+                long iovec = (long) i * IOVEC_SIZE;
+                headers.set(ADDRESS, header + MSG_NAME, names.asSlice((long) i * SOCKADDR_SLOT, SOCKADDR_SLOT));
+                headers.set(ADDRESS, header + MSG_IOV, iovecs.asSlice(iovec, IOVEC_SIZE));
+                headers.set(JAVA_LONG, header + MSG_IOVLEN, 1);
+                iovecs.set(ADDRESS, iovec, buffers.asSlice((long) i * payload, payload));
+                iovecs.set(JAVA_LONG, iovec + IOV_LEN, payload);
+            }
+        }
+    }
+
+    @Override
+    public int receive(ByteBuffer[] requests, InetSocketAddress[] clients) throws IOException {
+        int size = Math.min(batchSize, requests.length);
+        for (int i = 0; i < size; i++) {
+            in.headers.set(JAVA_INT, (long) i * MMSGHDR_SIZE + MSG_NAMELEN, SOCKADDR_IN6_SIZE); // The kernel shrinks it
+        }
+        int count = Libc.recvmmsg(state, fd, in.headers, size, MSG_WAITFORONE, MemorySegment.NULL);
+        if (count < 0) {
+            int errno = errno(state);
+            if (errno == EAGAIN || errno == EINTR) {
+                return 0; // Nothing within the wait
+            }
+            throw error("recvmmsg", errno);
+        }
+
+        for (int i = 0; i < count; i++) {
+            int length = in.headers.get(JAVA_INT, (long) i * MMSGHDR_SIZE + MSG_LEN);
+            ByteBuffer request = requests[i].clear();
+            length = Math.min(length, request.remaining());
+            MemorySegment.copy(in.buffers, (long) i * maxPayload, MemorySegment.ofBuffer(request), 0, length);
+            request.limit(length);
+            clients[i] = readAddress(in.names.asSlice((long) i * SOCKADDR_SLOT, SOCKADDR_SLOT));
+        }
+        return count;
+    }
+
+    @Override
+    public void send(ByteBuffer[] responses, InetSocketAddress[] clients, boolean[] sent, int count)
+            throws IOException {
+        int queued = 0;
+        for (int i = 0; i < count; i++) {
+            sent[i] = false;
+            ByteBuffer response = responses[i];
+            if (clients[i] == null || response.remaining() > maxPayload) {
+                continue;
+            }
+            long header = (long) queued * MMSGHDR_SIZE;
+            int nameLength = writeAddress(out.names.asSlice((long) queued * SOCKADDR_SLOT, SOCKADDR_SLOT), clients[i]);
+            if (nameLength == 0) {
+                continue; // An IPv6 client on an IPv4 socket
+            }
+            out.headers.set(JAVA_INT, header + MSG_NAMELEN, nameLength);
+            out.iovecs.set(JAVA_LONG, (long) queued * IOVEC_SIZE + IOV_LEN, response.remaining());
+            MemorySegment.copy(MemorySegment.ofBuffer(response), 0, out.buffers, (long) queued * maxPayload,
+                    response.remaining());
+            sendIndex[queued++] = i;
+        }
+
+        int done = 0;
+        while (done < queued) {
+            int result = Libc.sendmmsg(state, fd, out.headers.asSlice((long) done * MMSGHDR_SIZE), queued - done, 0);
+            if (result < 0) {
+                if (errno(state) != EINTR) {
+                    done++; // Only the first datagram failed, e.g. an unreachable client: lost like any other
+                }
+                continue;
+            }
+            for (int k = done; k < done + result; k++) {
+                sent[sendIndex[k]] = true;
+            }
+            done += result;
+        }
+    }
+
+    @Override
+    public void send(ByteBuffer response, InetSocketAddress client) throws IOException {
+        closing.readLock().lock();
+        try (Arena call = Arena.ofConfined()) {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+            int length = response.remaining();
+            MemorySegment data = call.allocate(Math.max(1, length));
+            MemorySegment.copy(MemorySegment.ofBuffer(response), 0, data, 0, length);
+            MemorySegment name = call.allocate(SOCKADDR_SLOT, 8);
+            int nameLength = writeAddress(name, client);
+            if (nameLength == 0) {
+                throw new IOException("IPv6 client on an IPv4 socket: " + client);
+            }
+            MemorySegment callState = call.allocate(Libc.CAPTURE_LAYOUT);
+            if (Libc.sendto(callState, fd, data, length, 0, name, nameLength) < 0) {
+                throw error("sendto", errno(callState));
+            }
+            response.position(response.limit());
+        } finally {
+            closing.readLock().unlock();
+        }
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() throws IOException {
+        closing.readLock().lock();
+        try (Arena call = Arena.ofConfined()) {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+            MemorySegment name = call.allocate(SOCKADDR_SLOT, 8);
+            MemorySegment nameLength = intValue(call, SOCKADDR_SLOT);
+            MemorySegment callState = call.allocate(Libc.CAPTURE_LAYOUT);
+            if (Libc.getsockname(callState, fd, name, nameLength) < 0) {
+                throw error("getsockname", errno(callState));
+            }
+            return readAddress(name);
+        } finally {
+            closing.readLock().unlock();
+        }
+    }
+
+    // Call once the batch calls are over: the worker must have stopped
+    @Override
+    public void close() {
+        closing.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            Libc.close(fd);
+            arena.close();
+        } finally {
+            closing.writeLock().unlock();
+        }
+    }
+
+    private void setOption(int level, int option, MemorySegment value) throws IOException {
+        if (Libc.setsockopt(state, fd, level, option, value, (int) value.byteSize()) < 0) {
+            throw error("setsockopt " + option, errno(state));
+        }
+    }
+
+    private MemorySegment intValue(int value) {
+        return intValue(arena, value);
+    }
+
+    private static MemorySegment intValue(Arena arena, int value) {
+        MemorySegment segment = arena.allocate(JAVA_INT);
+        segment.set(JAVA_INT, 0, value);
+        return segment;
+    }
+
+    // Writes client as a sockaddr of this socket's family; IPv4 clients of an IPv6
+    // socket become IPv4-mapped addresses. Returns its length, 0 when it can't be sent to.
+    private int writeAddress(MemorySegment name, InetSocketAddress client) {
+        InetAddress address = client.getAddress();
+        byte[] bytes = address.getAddress();
+        if (family == AF_INET) {
+            return bytes.length == 4 ? writeAddress(name, AF_INET, bytes, client.getPort(), 0) : 0;
+        }
+        if (bytes.length == 4) {
+            byte[] mapped = new byte[16];
+            mapped[10] = (byte) 0xFF;
+            mapped[11] = (byte) 0xFF;
+            System.arraycopy(bytes, 0, mapped, 12, 4);
+            bytes = mapped;
+        }
+        int scope = address instanceof Inet6Address inet6 ? inet6.getScopeId() : 0;
+        return writeAddress(name, AF_INET6, bytes, client.getPort(), scope);
+    }
+
+    private static int writeAddress(MemorySegment name, int family, byte[] address, int port, int scope) {
+        name.fill((byte) 0);
+        name.set(JAVA_SHORT, 0, (short) family);
+        name.set(PORT, 2, (short) port);
+        if (family == AF_INET) {
+            MemorySegment.copy(address, 0, name, JAVA_BYTE, 4, 4);
+            return SOCKADDR_IN_SIZE;
+        }
+        MemorySegment.copy(address, 0, name, JAVA_BYTE, 8, 16);
+        name.set(JAVA_INT, 24, scope);
+        return SOCKADDR_IN6_SIZE;
+    }
+
+    private static InetSocketAddress readAddress(MemorySegment name) throws IOException {
+        int family = name.get(JAVA_SHORT, 0);
+        int port = name.get(PORT, 2) & 0xFFFF;
+        byte[] address = new byte[family == AF_INET ? 4 : 16];
+        MemorySegment.copy(name, JAVA_BYTE, family == AF_INET ? 4 : 8, address, 0, address.length);
+        int scope = family == AF_INET6 ? name.get(JAVA_INT, 24) : 0;
+        try {
+            // IPv4-mapped addresses come back as plain IPv4 ones, as from a DatagramChannel
+            InetAddress host = InetAddress.getByAddress(address);
+            if (scope != 0 && host instanceof Inet6Address) {
+                host = Inet6Address.getByAddress(null, address, scope);
+            }
+            return new InetSocketAddress(host, port);
+        } catch (UnknownHostException e) {
+            throw new IOException("Unexpected address family " + family, e);
+        }
+    }
+
+    private static int errno(MemorySegment state) {
+        return state.get(JAVA_INT, Libc.ERRNO_OFFSET);
+    }
+
+    private static IOException error(String call, int errno) {
+        return new IOException(call + " failed: " + Libc.strerror(errno) + " (errno " + errno + ")");
+    }
+
+    // The C library functions, looked up once. Calls that can fail capture errno
+    // into the state segment passed first.
+    private static final class Libc {
+
+        static final Linker LINKER = Linker.nativeLinker();
+        static final StructLayout CAPTURE_LAYOUT = Linker.Option.captureStateLayout();
+        static final long ERRNO_OFFSET = CAPTURE_LAYOUT.byteOffset(MemoryLayout.PathElement.groupElement("errno"));
+
+        private static final MethodHandle SOCKET = function(true, "socket", JAVA_INT, JAVA_INT, JAVA_INT, JAVA_INT);
+        private static final MethodHandle SETSOCKOPT = function(true, "setsockopt", JAVA_INT,
+                JAVA_INT, JAVA_INT, JAVA_INT, ADDRESS, JAVA_INT);
+        private static final MethodHandle BIND = function(true, "bind", JAVA_INT, JAVA_INT, ADDRESS, JAVA_INT);
+        private static final MethodHandle GETSOCKNAME = function(true, "getsockname", JAVA_INT,
+                JAVA_INT, ADDRESS, ADDRESS);
+        private static final MethodHandle RECVMMSG = function(true, "recvmmsg", JAVA_INT,
+                JAVA_INT, ADDRESS, JAVA_INT, JAVA_INT, ADDRESS);
+        private static final MethodHandle SENDMMSG = function(true, "sendmmsg", JAVA_INT,
+                JAVA_INT, ADDRESS, JAVA_INT, JAVA_INT);
+        private static final MethodHandle SENDTO = function(true, "sendto", JAVA_LONG,
+                JAVA_INT, ADDRESS, JAVA_LONG, JAVA_INT, ADDRESS, JAVA_INT);
+        private static final MethodHandle CLOSE = function(false, "close", JAVA_INT, JAVA_INT);
+        private static final MethodHandle STRERROR = function(false, "strerror", ADDRESS, JAVA_INT);
+
+        private static MethodHandle function(boolean errno, String name, MemoryLayout result,
+                                             MemoryLayout... arguments) {
+            MemorySegment symbol = LINKER.defaultLookup().find(name)
+                    .orElseThrow(() -> new UnsupportedOperationException(name + " isn't in the C library"));
+            FunctionDescriptor descriptor = FunctionDescriptor.of(result, arguments);
+            return errno
+                    ? LINKER.downcallHandle(symbol, descriptor, Linker.Option.captureCallState("errno"))
+                    : LINKER.downcallHandle(symbol, descriptor);
+        }
+
+        static int socket(MemorySegment state, int domain, int type, int protocol) {
+            try {
+                return (int) SOCKET.invokeExact(state, domain, type, protocol);
+            } catch (Throwable e) {
+                throw failed(e);
+            }
+        }
+
+        static int setsockopt(MemorySegment state, int fd, int level, int option, MemorySegment value, int length) {
+            try {
+                return (int) SETSOCKOPT.invokeExact(state, fd, level, option, value, length);
+            } catch (Throwable e) {
+                throw failed(e);
+            }
+        }
+
+        static int bind(MemorySegment state, int fd, MemorySegment name, int length) {
+            try {
+                return (int) BIND.invokeExact(state, fd, name, length);
+            } catch (Throwable e) {
+                throw failed(e);
+            }
+        }
+
+        static int getsockname(MemorySegment state, int fd, MemorySegment name, MemorySegment length) {
+            try {
+                return (int) GETSOCKNAME.invokeExact(state, fd, name, length);
+            } catch (Throwable e) {
+                throw failed(e);
+            }
+        }
+
+        static int recvmmsg(MemorySegment state, int fd, MemorySegment headers, int count, int flags,
+                            MemorySegment timeout) {
+            try {
+                return (int) RECVMMSG.invokeExact(state, fd, headers, count, flags, timeout);
+            } catch (Throwable e) {
+                throw failed(e);
+            }
+        }
+
+        static int sendmmsg(MemorySegment state, int fd, MemorySegment headers, int count, int flags) {
+            try {
+                return (int) SENDMMSG.invokeExact(state, fd, headers, count, flags);
+            } catch (Throwable e) {
+                throw failed(e);
+            }
+        }
+
+        static long sendto(MemorySegment state, int fd, MemorySegment data, long length, int flags,
+                           MemorySegment name, int nameLength) {
+            try {
+                return (long) SENDTO.invokeExact(state, fd, data, length, flags, name, nameLength);
+            } catch (Throwable e) {
+                throw failed(e);
+            }
+        }
+
+        static void close(int fd) {
+            try {
+                int ignored = (int) CLOSE.invokeExact(fd);
+            } catch (Throwable e) {
+                throw failed(e);
+            }
+        }
+
+        static String strerror(int errno) {
+            try {
+                MemorySegment message = (MemorySegment) STRERROR.invokeExact(errno);
+                return message.reinterpret(1024).getUtf8String(0);
+            } catch (Throwable e) {
+                throw failed(e);
+            }
+        }
+
+        // Downcalls don't throw checked exceptions, anything else is a bug
+        private static RuntimeException failed(Throwable e) {
+            if (e instanceof RuntimeException runtime) {
+                return runtime;
+            }
+            if (e instanceof Error error) {
+                throw error;
+            }
+            return new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package benchmarks;
+
+import dataTypes.MessageView;
+import dataTypes.RData;
+import dataTypes.UDPAnswer;
+import dataTypes.UDPMessage;
+import dataTypes.UDPQuestion;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// The wire codec on its own: parsing a query and encoding answers and RDATA
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+
+    // Fields rather than constants so the JIT can't fold the work away
+    private String domain = "www.example.com";
+    private String ipv4 = "192.168.1.100";
+    private String ipv6 = "2001:db8::1234:5678";
+    private String mailServer = "mail.example.com";
+    private String text = "v=spf1 mx -all";
+
+    private byte[] query;
+    private byte[] response;
+    private byte[] qname;
+    private byte[] rdata;
+    private final MessageView view = new MessageView();
+    private final byte[] name = new byte[MessageView.MAX_NAME_LENGTH];
+
+    @Setup
+    public void setup() {
+        byte[] header = UDPMessage.createUDPHeader(0x1234, false, (byte) 0, false, false, true, false,
+                (byte) 0, (byte) 0, 1, 0, 0, 0);
+        byte[] question = UDPQuestion.createUDPQuestion(domain, RData.TYPE_A, 1);
+        query = new byte[header.length + question.length];
+        System.arraycopy(header, 0, query, 0, header.length);
+        System.arraycopy(question, 0, query, header.length, question.length);
+
+        qname = RData.encodeDomainName(domain);
+        rdata = RData.createA(ipv4);
+
+        // The query answered with four A records whose owners point at the QNAME
+        int answers = 4;
+        int answerLength = 2 + 10 + rdata.length;
+        response = new byte[query.length + answers * answerLength];
+        System.arraycopy(query, 0, response, 0, query.length);
+        response[2] |= (byte) 0x80;
+        response[7] = (byte) answers;
+        for (int i = 0; i < answers; i++) {
+            int pos = query.length + i * answerLength;
+            byte[] answer = UDPAnswer.createAnswer(new byte[] {(byte) 0xC0, (byte) MessageView.HEADER_LENGTH},
+                    RData.TYPE_A, 1, 300, rdata);
+            System.arraycopy(answer, 0, response, pos, answer.length);
+        }
+    }
+
+    @Benchmark
+    public UDPMessage parseMessage() {
+        return new UDPMessage(query);
+    }
+
+    // The zero-copy view the request path uses instead of UDPMessage
+    @Benchmark
+    public int parseView() {
+        view.reset(query, 0, query.length);
+        return view.getID() + view.getQType() + view.getQClass() + view.getQNameLength();
+    }
+
+    // Indexing every record of an upstream answer, as the record cache does
+    @Benchmark
+    public long indexResponse() {
+        view.reset(response, 0, response.length);
+        long sum = 0;
+        for (int i = 0; i < view.getRecordCount(); i++) {
+            sum += view.getRecordType(i) + view.getRecordTTL(i) + view.getRDataLength(i);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public int readCompressedName() {
+        view.reset(response, 0, response.length);
+        return view.readName(view.getRecordOffset(view.getRecordCount() - 1), name, 0);
+    }
+
+    @Benchmark
+    public int parseQuestionLength() {
+        return UDPQuestion.parseQuestionLength(query, MessageView.HEADER_LENGTH);
+    }
+
+    @Benchmark
+    public byte[] createQuestion() {
+        return UDPQuestion.createUDPQuestion(domain, RData.TYPE_A, 1);
+    }
+
+    @Benchmark
+    public byte[] createAnswer() {
+        return UDPAnswer.createAnswer(qname, RData.TYPE_A, 1, 300, rdata);
+    }
+
+    @Benchmark
+    public byte[] createA() {
+        return RData.createA(ipv4);
+    }
+
+    @Benchmark
+    public byte[] createAAAA() {
+        return RData.createAAAA(ipv6);
+    }
+
+    @Benchmark
+    public byte[] createMX() {
+        return RData.createMX(10, mailServer);
+    }
+
+    @Benchmark
+    public byte[] createTXT() {
+        return RData.createTXT(text);
+    }
+
+    @Benchmark
+    public byte[] createSOA() {
+        return RData.createSOA("ns1.example.com", "hostmaster.example.com",
+                2024010101L, 3600, 900, 604800, 300);
+    }
+
+    @Benchmark
+    public byte[] encodeDomainName() {
+        return RData.encodeDomainName(domain);
+    }
+}
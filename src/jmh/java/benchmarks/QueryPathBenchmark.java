@@ -0,0 +1,123 @@
+package benchmarks;
+
+import cache.ResponseCache;
+import dataTypes.RData;
+import dataTypes.UDPMessage;
+import dataTypes.UDPQuestion;
+import metrics.ServerMetrics;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import querylog.QueryLogFormat;
+import server.QueryProcessor;
+import server.Responder;
+import server.ServerConfig;
+import server.ServerContext;
+import zone.ZoneImage;
+import zone.ZoneImageWriter;
+import zone.ZoneSource;
+import zone.ZoneStore;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// A query going through the same handler the UDP workers use, from request bytes
+// to response bytes, without the sockets
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class QueryPathBenchmark {
+
+    // An A record, a CNAME chain, NXDOMAIN and NODATA
+    @Param({"example.com", "www.example.com", "missing.example.com", "mail.example.com/AAAA"})
+    public String question;
+
+    @Param({"true", "false"})
+    public boolean responseCache;
+
+    // Answer from the parsed store or from the same data compiled into a mapped image
+    @Param({"false", "true"})
+    public boolean zoneImage;
+
+    private QueryProcessor processor;
+    private final ByteBuffer request = ByteBuffer.allocate(512);
+    private final ByteBuffer response = ByteBuffer.allocate(512);
+    private final InetSocketAddress client = new InetSocketAddress("127.0.0.1", 5353);
+
+    private final Responder responder = new Responder() {
+        @Override
+        public void respond(ByteBuffer deferred, InetSocketAddress client) {
+        }
+
+        @Override
+        public int maxResponseSize() {
+            return 512;
+        }
+
+        @Override
+        public int transport() {
+            return QueryLogFormat.TRANSPORT_UDP;
+        }
+    };
+
+    @Setup
+    public void setup() throws IOException {
+        ZoneStore zones = new ZoneStore();
+        byte[] apex = RData.encodeDomainName("example.com");
+        zones.add(apex, RData.TYPE_SOA, 1, 300, RData.createSOA("ns1.example.com", "hostmaster.example.com",
+                2024010101L, 3600, 900, 604800, 300));
+        zones.add(apex, RData.TYPE_NS, 1, 300, RData.createNS("ns1.example.com"));
+        zones.add(apex, RData.TYPE_A, 1, 300, RData.createA("192.168.1.100"));
+        zones.add(RData.encodeDomainName("ns1.example.com"), RData.TYPE_A, 1, 300, RData.createA("192.168.1.53"));
+        zones.add(RData.encodeDomainName("mail.example.com"), RData.TYPE_A, 1, 300, RData.createA("192.168.1.25"));
+        zones.add(RData.encodeDomainName("www.example.com"), RData.TYPE_CNAME, 1, 300, RData.createCNAME("example.com"));
+        zones.finishLoading();
+
+        ZoneSource source = zones;
+        if (zoneImage) {
+            Path image = Files.createTempFile("zones", ".img");
+            image.toFile().deleteOnExit();
+            ZoneImageWriter.write(zones, image);
+            source = ZoneImage.open(image);
+        }
+
+        ServerContext context = new ServerContext(ServerConfig.fromArgs(new String[0]), source,
+                responseCache ? new ResponseCache(1 << 20) : null, null, null, new ServerMetrics(), null, null,
+                null);
+        processor = new QueryProcessor(context);
+
+        String name = question;
+        int type = RData.TYPE_A;
+        int slash = question.indexOf('/');
+        if (slash > 0) {
+            name = question.substring(0, slash);
+            type = RData.TYPE_AAAA;
+        }
+        request.put(UDPMessage.createUDPHeader(0x1234, false, (byte) 0, false, false, true, false,
+                (byte) 0, (byte) 0, 1, 0, 0, 0));
+        request.put(UDPQuestion.createUDPQuestion(name, type, 1));
+        request.flip();
+    }
+
+    @Benchmark
+    public int handle() {
+        request.rewind();
+        response.clear();
+        return processor.handle(request, response, client, responder);
+    }
+}
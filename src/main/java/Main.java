@@ -1,110 +1,228 @@
-import dataTypes.RData;
-import dataTypes.UDPAnswer;
-import dataTypes.UDPMessage;
-import dataTypes.UDPQuestion;
+import cache.ResponseCache;
+import metrics.LatencyHistogram;
+import metrics.MetricsServer;
+import metrics.ServerMetrics;
+import policy.ResponsePolicy;
+import querylog.QueryLog;
+import ratelimit.ResponseRateLimiter;
+import resolver.CachePeers;
+import resolver.CacheSnapshot;
+import resolver.RecordCache;
+import resolver.UpstreamMultiplexer;
+import server.LoadShedder;
+import server.MetricsReport;
+import server.QueryProcessor;
+import server.ServerConfig;
+import server.ServerContext;
+import server.TCPServer;
+import server.UDPServer;
+import zone.ReloadableZones;
+import zone.ZoneImage;
+import zone.ZoneReloader;
+import zone.ZoneSource;
+import zone.ZoneStore;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
 
 public class Main {
-    public static void main(String[] args) {
-
-        try (DatagramSocket serverSocket = new DatagramSocket(2053)) {
-            while (true) {
-                final byte[] buf = new byte[512];
-                final DatagramPacket packet = new DatagramPacket(buf, buf.length);
-                serverSocket.receive(packet);
-                System.out.println("Received data");
-
-                // Parse incoming message
-                UDPMessage message = new UDPMessage(buf);
-
-                System.out.println("Data:");
-                System.out.println(message);
-
-                // Calculate question len
-                int questionLength = UDPQuestion.parseQuestionLength(buf, 12);
-
-                // Create an answer for query
-                byte[] answerSection = new byte[0];
-                int answerCount = 0;
-
-                int queryType = message.getQuestion().getType();
-
-                if (queryType == 1) { // record query
-                    byte[] domainName = message.getQuestion().getDomainName();
-
-                    //Create Rdata for a record (example ip)
-                    byte[] rdata = RData.createA("192.168.1.100");
-
-                    answerSection = UDPAnswer.createAnswer(
-                            domainName,    // The domain being answered
-                            1,             // Type A
-                            1,             // Class IN
-                            300,           // TTL (5 minutes)
-                            rdata          // The IP address
-                    );
-                    answerCount = 1;
-                } else if(queryType == 28){
-                    byte[] domainName = message.getQuestion().getDomainName();
 
-                    //Create Rdata for a AAA record query
-                    byte[] rdata = RData.createAAAA("2001:0db8:0000:0000:0000:0000:1234:5678");
+    // Records buffered between the workers and the query log writer
+    private static final int QUERY_LOG_RING = 16384;
 
-                    answerSection = UDPAnswer.createAnswer(
-                            domainName,
-                            28, // Type AA
-                            1, //Class In
-                            300, // TTL
-                            rdata //Ipv6 address
-                    );
-                    answerCount = 1;
-                }
-
-                byte[] responseHeader = UDPMessage.createUDPHeader(
-                        message.getID(),
-                        true,                 // QR = true for response
-                        message.getOPCODE(),
-                        false,                // AA (we're not authoritative)
-                        false,                // TC
-                        message.isRD(),
-                        true,                 // RA (recursion available)
-                        message.getZ(),
-                        (byte)0,              // RCODE = 0 (no error)
-                        message.getQDCOUNT(),
-                        answerCount,          // ANCOUNT - number of answers!
-                        0,                    // NSCOUNT
-                        0                     // ARCOUNT
-                );
-
-                // Complete response
-                final byte[] bufResponse = new byte[512];
-                int pos = 0;
-
-                // header
-                System.arraycopy(responseHeader,0,bufResponse,pos,12);
-                pos += 12;
-
-                //copy original question
-                System.arraycopy(buf,12,bufResponse,pos,questionLength);
-                pos += questionLength;
+    public static void main(String[] args) {
+        ServerConfig config = ServerConfig.fromArgs(args);
+
+        ZoneReloader.Loader loader = () -> config.getZoneImage() != null
+                ? ZoneImage.open(config.getZoneImage())
+                : ZoneStore.load(config.getZoneFiles());
+        ZoneSource initialZones;
+        try {
+            initialZones = loader.load();
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("Failed to load zones: " + e.getMessage());
+            return;
+        }
+        System.out.println("Loaded " + initialZones.getRecordCount() + " record(s) for "
+                + initialZones.getNameCount() + " name(s)");
+
+        ResponsePolicy policy = null;
+        if (!config.getPolicyFiles().isEmpty()) {
+            try {
+                policy = ResponsePolicy.load(config.getPolicyFiles());
+            } catch (IOException | IllegalArgumentException e) {
+                System.out.println("Failed to load response policy: " + e.getMessage());
+                return;
+            }
+            System.out.println("Loaded " + policy.getRuleCount() + " policy rule(s)");
+        }
 
-                if(answerCount > 0){
-                    System.arraycopy(answerSection,0,bufResponse,pos,answerSection.length);
-                    pos += answerSection.length;
-                }
+        ResponseCache responseCache = config.getResponseCacheMegabytes() > 0
+                ? new ResponseCache(config.getResponseCacheMegabytes() * 1024L * 1024L)
+                : null;
+        // Responses rendered from the old zone data go with it
+        ReloadableZones zones = new ReloadableZones(initialZones,
+                responseCache != null ? responseCache::invalidateAll : () -> { });
+        List<Path> watched = config.getZoneImage() != null ? List.of(config.getZoneImage()) : config.getZoneFiles();
+        ZoneReloader reloader;
+        try {
+            reloader = new ZoneReloader(zones, loader, watched, config.getZoneUpdates());
+        } catch (IOException e) {
+            System.out.println("Failed to watch zone files: " + e.getMessage());
+            return;
+        }
+        RecordCache recordCache = config.getUpstreams().isEmpty()
+                ? null
+                : new RecordCache(config.getRecordCacheMegabytes() * 1024L * 1024L, config.getMaxCacheTtl(),
+                        config.getPrefetchPercent(), config.getServeStaleSeconds());
+        UpstreamMultiplexer upstream = recordCache == null
+                ? null
+                : new UpstreamMultiplexer(config.getUpstreams(), config.getUpstreamSockets(),
+                        config.getUpstreamTimeoutMillis(), config.getUpstreamAttempts(), recordCache::put);
+        if (upstream != null) {
+            recordCache.setUpstream(upstream); // Prefetch and serve-stale refresh through it
+        }
+        CachePeers cachePeers;
+        try {
+            cachePeers = openCachePeers(config, recordCache);
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("Failed to set up cache peers: " + e.getMessage());
+            return;
+        }
+        CacheSnapshot cacheSnapshot = recordCache == null || config.getCacheSnapshot() == null
+                ? null
+                : new CacheSnapshot(recordCache, config.getCacheSnapshot(), config.getCacheSnapshotSeconds() * 1000L);
+        QueryLog queryLog = null;
+        if (config.getQueryLogDirectory() != null) {
+            try {
+                queryLog = new QueryLog(config.getQueryLogDirectory(),
+                        config.getQueryLogFileMegabytes() * 1024L * 1024L, config.getQueryLogFiles(), QUERY_LOG_RING);
+            } catch (IOException e) {
+                System.out.println("Failed to open query log: " + e.getMessage());
+                return;
+            }
+        }
 
-                final DatagramPacket packetResponse = new DatagramPacket(
-                        bufResponse,
-                        pos,
-                        packet.getSocketAddress()
-                );
-                serverSocket.send(packetResponse);
+        ResponseRateLimiter rateLimiter = config.getRrlRate() == 0
+                ? null
+                : new ResponseRateLimiter(config.getRrlTableSize(), config.getRrlRate(), config.getRrlSlip());
+
+        ServerMetrics metrics = new ServerMetrics();
+        ServerContext context = new ServerContext(config, zones, responseCache, recordCache, upstream, metrics,
+                queryLog, rateLimiter, policy);
+        MetricsServer metricsServer = config.getMetricsPort() == 0
+                ? null
+                : new MetricsServer(new InetSocketAddress("127.0.0.1", config.getMetricsPort()),
+                        () -> MetricsReport.render(context));
+
+        InetSocketAddress address = new InetSocketAddress(config.getBindAddress(), config.getPort());
+        UDPServer server = new UDPServer(
+                address,
+                config.getWorkers(),
+                config.getMode(),
+                config.getMaxInFlight(),
+                config.getMaxUdpPayload(),
+                config.getUdpBatch(),
+                () -> new QueryProcessor(context),
+                metrics,
+                queryLog
+        );
+        if (config.getShedTargetMillis() > 0) {
+            server.setLoadShedding(new LoadShedder(config.getShedTargetMillis() * 1_000_000L,
+                    config.getShedIntervalMillis() * 1_000_000L), config.getShedRcode());
+        }
+        TCPServer tcpServer = config.getTcpMaxConnections() == 0
+                ? null
+                : new TCPServer(address, () -> new QueryProcessor(context), config.getTcpIdleTimeoutMillis(),
+                        config.getTcpMaxConnections(), metrics, queryLog);
+        long startedAt = System.nanoTime();
+
+        CountDownLatch stopped = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            reloader.close();
+            server.stop();
+            if (tcpServer != null) {
+                tcpServer.stop();
+            }
+            if (upstream != null) {
+                upstream.close();
+            }
+            if (cachePeers != null) {
+                cachePeers.close();
+            }
+            if (cacheSnapshot != null) {
+                cacheSnapshot.close();
+            }
+            if (metricsServer != null) {
+                metricsServer.stop();
+            }
+            if (context.getQueryLog() != null) {
+                context.getQueryLog().close();
+            }
+            printSummary(metrics.getLatency(), System.nanoTime() - startedAt);
+            stopped.countDown();
+        }, "dns-shutdown"));
 
+        try {
+            if (upstream != null) {
+                upstream.start();
+            }
+            if (cacheSnapshot != null) {
+                cacheSnapshot.start(); // Restores in the background
+            }
+            if (cachePeers != null) {
+                cachePeers.start();
+                System.out.println("Sharing the cache from " + cachePeers.getLocalAddress() + " with "
+                        + config.getCachePeers().size() + " peer(s)");
+            }
+            server.start();
+            reloader.start();
+            System.out.println("Listening on " + server.getLocalAddress() + " in "
+                    + server.getMode().name().toLowerCase(Locale.ROOT) + " mode with " + server.getWorkerCount() + " worker(s)"
+                    + (server.getBatchSize() > 1 ? ", " + server.getBatchSize() + " datagrams per call" : ""));
+            if (tcpServer != null) {
+                tcpServer.start();
+                System.out.println("Listening on " + tcpServer.getLocalAddress() + " over TCP");
+            }
+            if (metricsServer != null) {
+                metricsServer.start();
+                System.out.println("Metrics at http://127.0.0.1:" + metricsServer.getAddress().getPort() + "/metrics");
             }
+            stopped.await();
         } catch (IOException e) {
             System.out.println("IOException: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
+
+    // Null when the record cache isn't shared
+    private static CachePeers openCachePeers(ServerConfig config, RecordCache recordCache) throws IOException {
+        if (recordCache == null || config.getCachePeers().isEmpty()) {
+            return null;
+        }
+        CachePeers peers = new CachePeers(recordCache,
+                new InetSocketAddress(config.getBindAddress(), config.getPeerPort()),
+                config.getCachePeers(), Files.readAllBytes(config.getPeerKeyFile()));
+        recordCache.setPeers(peers); // New upstream answers are pushed to the peers
+        return peers;
+    }
+
+    // Throughput and latency (receive to send) over the server's lifetime, for
+    // comparing the execution modes under the same load
+    private static void printSummary(LatencyHistogram latency, long elapsedNanos) {
+        long count = latency.getCount();
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf("Handled %d queries in %.1fs (%.0f qps), latency us p50=%.1f p99=%.1f p99.9=%.1f max=%.1f%n",
+                count, seconds, count / seconds,
+                latency.getValueAtPercentile(50) / 1e3,
+                latency.getValueAtPercentile(99) / 1e3,
+                latency.getValueAtPercentile(99.9) / 1e3,
+                latency.getMax() / 1e3);
+    }
 }
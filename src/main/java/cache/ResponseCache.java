@@ -0,0 +1,278 @@
+package cache;
+
+import dataTypes.DomainName;
+import dataTypes.DomainNames;
+import dataTypes.MessageView;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Fully encoded response packets keyed on (QNAME, QTYPE, QCLASS). For answers from
+// our own zones the bytes only differ in the ID, the RD bit and the case of the
+// QNAME, so a hit copies the cached packet and patches just those.
+//
+// The cache is split into segments. Lookups never lock: each bucket chain is
+// immutable and swapped in atomically. Inserts and evictions lock their segment.
+// Memory is bounded by the total size of the cached packets and entries are
+// evicted with the CLOCK (second chance) policy. invalidateAll() retires every
+// entry at once when the zone data changes.
+public class ResponseCache {
+
+    private static final int SEGMENTS = 64;
+    private static final int BUCKETS_PER_SEGMENT = 1024;
+    // Rough per-entry overhead on top of the key and packet bytes
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final long maxBytesPerSegment;
+    private volatile int generation;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public ResponseCache(long maxBytes) {
+        this.maxBytesPerSegment = Math.max(1, maxBytes / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    private static final class Entry {
+        final int hash;
+        final DomainName name;
+        final int type;
+        final int questionClass;
+        final byte[] packet;
+        final int generation;
+        final Entry next;
+        volatile boolean referenced;
+        int slot;              // Position in the segment's ring, guarded by the segment lock
+
+        Entry(int hash, DomainName name, int type, int questionClass, byte[] packet, int generation, Entry next) {
+            this.hash = hash;
+            this.name = name;
+            this.type = type;
+            this.questionClass = questionClass;
+            this.packet = packet;
+            this.generation = generation;
+            this.next = next;
+        }
+
+        Entry withNext(Entry next) {
+            Entry copy = new Entry(hash, name, type, questionClass, packet, generation, next);
+            copy.referenced = referenced;
+            copy.slot = slot;
+            return copy;
+        }
+
+        int size() {
+            return name.length() + packet.length + ENTRY_OVERHEAD;
+        }
+    }
+
+    private final class Segment {
+        final AtomicReferenceArray<Entry> buckets = new AtomicReferenceArray<>(BUCKETS_PER_SEGMENT);
+        // Insertion order ring walked by the CLOCK hand
+        final List<Entry> ring = new ArrayList<>();
+        int hand;
+        long bytes;
+
+        Entry find(int hash, byte[] name, int nameOffset, int type, int questionClass) {
+            for (Entry e = buckets.get(hash & (BUCKETS_PER_SEGMENT - 1)); e != null; e = e.next) {
+                if (e.hash == hash && e.type == type && e.questionClass == questionClass
+                        && e.name.matches(name, nameOffset)) {
+                    return e;
+                }
+            }
+            return null;
+        }
+
+        synchronized void put(Entry entry) {
+            int bucket = entry.hash & (BUCKETS_PER_SEGMENT - 1);
+            Entry head = buckets.get(bucket);
+            for (Entry e = head; e != null; e = e.next) {
+                if (e.hash == entry.hash && e.type == entry.type && e.questionClass == entry.questionClass
+                        && e.name.equals(entry.name)) {
+                    remove(e);
+                    head = buckets.get(bucket);
+                    break;
+                }
+            }
+
+            buckets.set(bucket, new Entry(entry.hash, entry.name, entry.type, entry.questionClass, entry.packet,
+                    entry.generation, head));
+            Entry inserted = buckets.get(bucket);
+            inserted.slot = ring.size();
+            ring.add(inserted);
+            bytes += inserted.size();
+
+            while (bytes > maxBytesPerSegment && !ring.isEmpty()) {
+                evictOne();
+            }
+        }
+
+        private void evictOne() {
+            int currentGeneration = generation;
+            while (true) {
+                if (hand >= ring.size()) {
+                    hand = 0;
+                }
+                Entry candidate = ring.get(hand);
+                if (candidate.referenced && candidate.generation == currentGeneration) {
+                    candidate.referenced = false; // Second chance
+                    hand++;
+                    continue;
+                }
+                remove(candidate);
+                evictions.increment();
+                return;
+            }
+        }
+
+        synchronized void removeStale(Entry stale) {
+            for (Entry e = buckets.get(stale.hash & (BUCKETS_PER_SEGMENT - 1)); e != null; e = e.next) {
+                if (e == stale) {
+                    remove(e);
+                    return;
+                }
+            }
+        }
+
+        synchronized void clear() {
+            for (int i = 0; i < BUCKETS_PER_SEGMENT; i++) {
+                buckets.set(i, null);
+            }
+            ring.clear();
+            hand = 0;
+            bytes = 0;
+        }
+
+        // Rebuilds the chain prefix in front of the removed entry so that concurrent
+        // readers always see a consistent list
+        private void remove(Entry target) {
+            int bucket = target.hash & (BUCKETS_PER_SEGMENT - 1);
+            Entry head = buckets.get(bucket);
+            Entry rebuilt = target.next;
+            for (Entry e = head; e != target; e = e.next) {
+                rebuilt = e.withNext(rebuilt);
+                ring.set(e.slot, rebuilt);
+            }
+            buckets.set(bucket, rebuilt);
+
+            // Move the last entry into the freed slot so removal stays O(1)
+            Entry last = ring.remove(ring.size() - 1);
+            if (last != target) {
+                last.slot = target.slot;
+                ring.set(target.slot, last);
+            }
+            bytes -= target.size();
+        }
+    }
+
+    // Copies the cached response for the query into out. Returns the response
+    // length, or 0 on a miss (including responses longer than maxLength).
+    public int get(MessageView query, byte[] name, int nameOffset, byte[] out, int outOffset, int maxLength) {
+        int type = query.getQType();
+        int questionClass = query.getQClass();
+        int hash = hash(name, nameOffset, type, questionClass);
+
+        Segment segment = segmentFor(hash);
+        Entry entry = segment.find(hash, name, nameOffset, type, questionClass);
+        if (entry == null) {
+            misses.increment();
+            return 0;
+        }
+        if (entry.generation != generation) {
+            segment.removeStale(entry);
+            misses.increment();
+            return 0;
+        }
+        if (!entry.referenced) {
+            entry.referenced = true;
+        }
+
+        byte[] packet = entry.packet;
+        if (packet.length > maxLength) {
+            misses.increment();
+            return 0;
+        }
+        System.arraycopy(packet, 0, out, outOffset, packet.length);
+
+        // Patch the ID, the RD bit and the client's spelling of the QNAME
+        int id = query.getID();
+        out[outOffset] = (byte) (id >> 8);
+        out[outOffset + 1] = (byte) id;
+        out[outOffset + 2] = (byte) ((out[outOffset + 2] & ~0x01) | (query.isRD() ? 0x01 : 0));
+        System.arraycopy(name, nameOffset, out, outOffset + MessageView.HEADER_LENGTH, query.getQNameLength());
+
+        hits.increment();
+        return packet.length;
+    }
+
+    // Generation to pass to put(), read before looking up the data a response is
+    // rendered from
+    public int getGeneration() {
+        return generation;
+    }
+
+    // Stores a complete response for the question at nameOffset, unless it was
+    // rendered under an older generation
+    public void put(byte[] name, int nameOffset, int type, int questionClass,
+                    byte[] response, int responseOffset, int length, int generation) {
+        if (generation != this.generation) {
+            return;
+        }
+        DomainName key = DomainName.intern(name, nameOffset);
+
+        byte[] packet = new byte[length];
+        System.arraycopy(response, responseOffset, packet, 0, length);
+
+        int hash = hash(key.hashCode(), type, questionClass);
+        if (key.length() + packet.length + ENTRY_OVERHEAD > maxBytesPerSegment) {
+            return; // Would evict the whole segment
+        }
+        segmentFor(hash).put(new Entry(hash, key, type, questionClass, packet, generation, null));
+    }
+
+    // Retires every cached response, e.g. after the zone data changed. Bumping the
+    // generation also rejects entries rendered from the old data that are put after
+    // the clear.
+    public void invalidateAll() {
+        generation++;
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    private Segment segmentFor(int hash) {
+        // Buckets use the low bits, segments the high ones
+        return segments[(hash >>> 26) & (SEGMENTS - 1)];
+    }
+
+    private static int hash(byte[] name, int nameOffset, int type, int questionClass) {
+        return hash(DomainNames.hash(name, nameOffset), type, questionClass);
+    }
+
+    // nameHash is DomainNames.hash, which a DomainName caches
+    private static int hash(int nameHash, int type, int questionClass) {
+        int h = nameHash;
+        h = h * 31 + type;
+        h = h * 31 + questionClass;
+        return h ^ (h >>> 15);
+    }
+}
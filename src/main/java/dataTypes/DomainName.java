@@ -0,0 +1,92 @@
+package dataTypes;
+
+import java.util.Arrays;
+
+// A domain name held in canonical form: uncompressed wire format, lowercased, with
+// its hash computed once. Used where a name outlives the packet
+// it came in (cache entries, in-flight upstream queries) so it is hashed, compared
+// and re-encoded without going through String. The hash is DomainNames.hash, so a
+// stored name can be probed with a name still sitting in a request buffer.
+//
+// intern() keeps a small lossy table of recently seen names: a hot name is looked
+// up in place and the same instance is returned, so repeated questions for it
+// allocate nothing. A colliding name simply takes the slot over.
+public final class DomainName {
+
+    private static final int INTERN_SLOTS = 1 << 14;
+    private static final DomainName[] interned = new DomainName[INTERN_SLOTS];
+
+    private final byte[] name;
+    private final int hash;
+    private String text; // Presentation form, computed on first use
+
+    private DomainName(byte[] name, int offset) {
+        int length = DomainNames.length(name, offset);
+        if (length > MessageView.MAX_NAME_LENGTH) {
+            throw new IllegalArgumentException("Name longer than " + MessageView.MAX_NAME_LENGTH + " bytes");
+        }
+        this.name = new byte[length];
+        for (int p = 0; p < length; p++) {
+            this.name[p] = (byte) DomainNames.toLower(name[offset + p]);
+        }
+        this.hash = DomainNames.hash(this.name, 0);
+    }
+
+    // A copy of the name at offset, which may use any case, or the shared instance
+    // when the name was seen recently
+    public static DomainName intern(byte[] name, int offset) {
+        int hash = DomainNames.hash(name, offset);
+        int slot = hash & (INTERN_SLOTS - 1);
+        DomainName cached = interned[slot];
+        if (cached != null && cached.hash == hash && cached.matches(name, offset)) {
+            return cached;
+        }
+        // All fields are final except text, so a racing reader sees a complete name
+        DomainName created = new DomainName(name, offset);
+        interned[slot] = created;
+        return created;
+    }
+
+    // Case-insensitive comparison with a wire-format name in a buffer. Length bytes
+    // are compared too, so the other name can't run past the end of this one.
+    public boolean matches(byte[] other, int offset) {
+        for (int i = 0; i < name.length; i++) {
+            if (name[i] != (byte) DomainNames.toLower(other[offset + i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Encoded length including the root label
+    public int length() {
+        return name.length;
+    }
+
+    public int copyTo(byte[] dst, int dstOffset) {
+        System.arraycopy(name, 0, dst, dstOffset, name.length);
+        return name.length;
+    }
+
+    // The same hash DomainNames.hash gives the name in any case
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof DomainName other && hash == other.hash && Arrays.equals(name, other.name);
+    }
+
+    // Presentation form without the trailing dot, "" for the root
+    @Override
+    public String toString() {
+        String s = text;
+        if (s == null) {
+            s = DomainNames.toString(name, 0);
+            text = s;
+        }
+        return s;
+    }
+}
@@ -0,0 +1,79 @@
+package dataTypes;
+
+import java.nio.charset.StandardCharsets;
+
+// Helpers for uncompressed wire-format names. DNS names compare case-insensitively
+// (ASCII only), so hashing and comparison fold A-Z without decoding to a String.
+public final class DomainNames {
+
+    private DomainNames() {
+    }
+
+    // Encoded length including the root label
+    public static int length(byte[] name, int offset) {
+        int pos = offset;
+        while ((name[pos] & 0xFF) != 0) {
+            pos += (name[pos] & 0xFF) + 1;
+        }
+        return pos - offset + 1;
+    }
+
+    public static int hash(byte[] name, int offset) {
+        int h = 0x811C9DC5;
+        int pos = offset;
+        while (true) {
+            int len = name[pos] & 0xFF;
+            h = (h ^ len) * 0x01000193;
+            if (len == 0) {
+                break;
+            }
+            for (int i = 1; i <= len; i++) {
+                h = (h ^ toLower(name[pos + i])) * 0x01000193;
+            }
+            pos += len + 1;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    public static boolean equalsIgnoreCase(byte[] a, int aOffset, byte[] b, int bOffset) {
+        int length = length(a, aOffset);
+        for (int i = 0; i < length; i++) {
+            if (toLower(a[aOffset + i]) != toLower(b[bOffset + i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static byte[] toLowerCase(byte[] name, int offset) {
+        byte[] lower = new byte[length(name, offset)];
+        for (int i = 0; i < lower.length; i++) {
+            lower[i] = (byte) toLower(name[offset + i]);
+        }
+        return lower;
+    }
+
+    // Presentation form without the trailing dot, "" for the root
+    public static String toString(byte[] name, int offset) {
+        StringBuilder domain = new StringBuilder();
+        int pos = offset;
+        while ((name[pos] & 0xFF) != 0) {
+            int len = name[pos] & 0xFF;
+            if (!domain.isEmpty()) {
+                domain.append('.');
+            }
+            domain.append(new String(name, pos + 1, len, StandardCharsets.UTF_8));
+            pos += len + 1;
+        }
+        return domain.toString();
+    }
+
+    // Offset of the next label's length byte, i.e. the parent name
+    public static int parent(byte[] name, int offset) {
+        return offset + (name[offset] & 0xFF) + 1;
+    }
+
+    public static int toLower(byte b) {
+        return (b >= 'A' && b <= 'Z') ? b + 32 : b & 0xFF;
+    }
+}
@@ -0,0 +1,42 @@
+package dataTypes;
+
+// EDNS(0) (RFC 6891). A client advertises the UDP payload size it can take in an
+// OPT pseudo-record; the server answers with its own OPT record, which carries the
+// upper bits of extended RCODEs such as BADVERS.
+public final class Edns {
+
+    public static final int TYPE_OPT = 41;
+
+    // Payload every client takes, and the limit for clients without an OPT record
+    public static final int MIN_UDP_PAYLOAD = 512;
+
+    // Root owner, TYPE, CLASS, TTL and RDLENGTH of an OPT record without options
+    public static final int OPT_LENGTH = 11;
+
+    public static final int RCODE_BADVERS = 16;
+
+    private Edns() {
+    }
+
+    // Appends an OPT record to the message of the given length and bumps ARCOUNT.
+    // The caller reserves OPT_LENGTH bytes. Returns the new length.
+    public static int appendOpt(byte[] buf, int offset, int length, int payloadSize, int rcode, boolean dnssecOk) {
+        int pos = offset + length;
+        buf[pos] = 0;                           // Root owner
+        buf[pos + 1] = 0;
+        buf[pos + 2] = (byte) TYPE_OPT;
+        buf[pos + 3] = (byte) (payloadSize >> 8);
+        buf[pos + 4] = (byte) payloadSize;
+        buf[pos + 5] = (byte) (rcode >> 4);     // The header keeps the low 4 bits
+        buf[pos + 6] = 0;                       // Version 0
+        buf[pos + 7] = (byte) (dnssecOk ? 0x80 : 0);
+        buf[pos + 8] = 0;
+        buf[pos + 9] = 0;                       // No options
+        buf[pos + 10] = 0;
+
+        int arcount = (((buf[offset + 10] & 0xFF) << 8) | (buf[offset + 11] & 0xFF)) + 1;
+        buf[offset + 10] = (byte) (arcount >> 8);
+        buf[offset + 11] = (byte) arcount;
+        return length + OPT_LENGTH;
+    }
+}
@@ -0,0 +1,493 @@
+package dataTypes;
+
+import java.nio.ByteBuffer;
+
+// Zero-copy view over a DNS message. Header fields are read straight from the
+// underlying buffer on every call and the question is only walked once, the first
+// time it is asked for. The other questions and the resource records are indexed
+// the first time any of them is asked for, and names are only decompressed by
+// readName(). A view is reset for each packet and never allocates after that
+// (beyond growing its index for an unusually large message), so one instance per
+// worker is enough.
+public class MessageView {
+
+    public static final int HEADER_LENGTH = 12;
+    public static final int MAX_NAME_LENGTH = 255;
+
+    private ByteBuffer data;
+    private byte[] wrappedArray;
+    private int base;
+    private int length;
+
+    // End of the QNAME (exclusive), -1 until the question has been parsed
+    private int qnameEnd = -1;
+
+    // Offset of the OPT pseudo-record, -1 when there is none and -2 until the
+    // records have been walked
+    private int optOffset = -2;
+    private int optCount;
+    private int optIndex;
+
+    // Start and TYPE offset of every question and record, in message order, plus
+    // the end of the last one. Built on first use, -1 until then; the array is kept
+    // across resets.
+    private int[] entries = new int[32];
+    private int entryCount = -1;
+
+    public MessageView reset(ByteBuffer buf) {
+        return reset(buf, buf.position(), buf.remaining());
+    }
+
+    public MessageView reset(byte[] buf, int offset, int length) {
+        // Only wrap again when the caller hands us a different array
+        if (buf != wrappedArray) {
+            wrappedArray = buf;
+            data = ByteBuffer.wrap(buf);
+        }
+        return reset(data, offset, length);
+    }
+
+    private MessageView reset(ByteBuffer buf, int offset, int length) {
+        if (length < HEADER_LENGTH) {
+            throw new IllegalArgumentException("Invalid header size");
+        }
+        if (buf != data) {
+            wrappedArray = null;
+            data = buf;
+        }
+        this.base = offset;
+        this.length = length;
+        this.qnameEnd = -1;
+        this.optOffset = -2;
+        this.entryCount = -1;
+        return this;
+    }
+
+    public ByteBuffer buffer() {
+        return data;
+    }
+
+    // Offset of the message's first byte inside buffer()
+    public int base() {
+        return base;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    // Raw byte at a message-relative offset
+    public int get(int index) {
+        return data.get(base + index) & 0xFF;
+    }
+
+    public int getShort(int index) {
+        return (get(index) << 8) | get(index + 1);
+    }
+
+    public long getInt(int index) {
+        return ((long) getShort(index) << 16) | getShort(index + 2);
+    }
+
+    // Offset just past the (possibly compressed) name starting at offset. A
+    // compression pointer ends the name, so it is never followed here.
+    public int skipName(int offset) {
+        int pos = offset;
+        while (true) {
+            if (pos >= length) {
+                throw new IllegalArgumentException("Name runs past end of message");
+            }
+            int len = get(pos);
+            if ((len & 0xC0) == 0xC0) {
+                if (pos + 2 > length) {
+                    throw new IllegalArgumentException("Truncated compression pointer");
+                }
+                return pos + 2;
+            }
+            if (len > 63) {
+                throw new IllegalArgumentException("Unsupported label type: " + len);
+            }
+            if (len == 0) {
+                return pos + 1;
+            }
+            pos += len + 1;
+        }
+    }
+
+    public int getID() {
+        return getShort(0);
+    }
+
+    public int getFlags() {
+        return getShort(2);
+    }
+
+    public boolean isQR() {
+        return (get(2) & 0x80) != 0;
+    }
+
+    public byte getOPCODE() {
+        return (byte) ((get(2) >> 3) & 0xF);
+    }
+
+    public boolean isAA() {
+        return (get(2) & 0x04) != 0;
+    }
+
+    public boolean isTC() {
+        return (get(2) & 0x02) != 0;
+    }
+
+    public boolean isRD() {
+        return (get(2) & 0x01) != 0;
+    }
+
+    public boolean isRA() {
+        return (get(3) & 0x80) != 0;
+    }
+
+    public byte getZ() {
+        return (byte) ((get(3) >> 4) & 0x7);
+    }
+
+    public byte getRCODE() {
+        return (byte) (get(3) & 0xF);
+    }
+
+    public int getQDCOUNT() {
+        return getShort(4);
+    }
+
+    public int getANCOUNT() {
+        return getShort(6);
+    }
+
+    public int getNSCOUNT() {
+        return getShort(8);
+    }
+
+    public int getARCOUNT() {
+        return getShort(10);
+    }
+
+    // The QNAME always starts right after the header
+    public int getQNameOffset() {
+        return HEADER_LENGTH;
+    }
+
+    // Length of the encoded QNAME including the root label
+    public int getQNameLength() {
+        return qnameEnd() - HEADER_LENGTH;
+    }
+
+    public int getQType() {
+        return getShort(qnameEnd());
+    }
+
+    public int getQClass() {
+        return getShort(qnameEnd() + 2);
+    }
+
+    // Offset of the first byte after the first question
+    public int getQuestionEnd() {
+        return qnameEnd() + 4;
+    }
+
+    public int getQuestionLength() {
+        return getQuestionEnd() - HEADER_LENGTH;
+    }
+
+    public void copyQName(byte[] dst, int dstOffset) {
+        int qnameLength = getQNameLength();
+        for (int i = 0; i < qnameLength; i++) {
+            dst[dstOffset + i] = (byte) get(HEADER_LENGTH + i);
+        }
+    }
+
+    // EDNS(0), RFC 6891: the OPT pseudo-record in the additional section
+    public boolean hasOpt() {
+        return optOffset() >= 0;
+    }
+
+    // Offset of the OPT record's (root) owner name, -1 without one
+    public int getOptOffset() {
+        return optOffset();
+    }
+
+    // More than one OPT record makes the message a FORMERR
+    public int getOptCount() {
+        optOffset();
+        return optCount;
+    }
+
+    // Additional records in front of the OPT record
+    public int getOptIndex() {
+        optOffset();
+        return optIndex;
+    }
+
+    // The OPT CLASS field carries the largest UDP payload the sender can take
+    public int getUdpPayloadSize() {
+        return getShort(optOffset() + 3);
+    }
+
+    // Upper 8 bits of the 12-bit RCODE
+    public int getExtendedRcode() {
+        return get(optOffset() + 5);
+    }
+
+    public int getEdnsVersion() {
+        return get(optOffset() + 6);
+    }
+
+    // DNSSEC OK, RFC 3225
+    public boolean isDO() {
+        return (get(optOffset() + 7) & 0x80) != 0;
+    }
+
+    private int optOffset() {
+        if (optOffset == -2) {
+            optOffset = findOpt();
+        }
+        return optOffset;
+    }
+
+    // The OPT record may only appear among the additional records
+    private int findOpt() {
+        optCount = 0;
+        optIndex = 0;
+        int found = -1;
+
+        int additionalStart = getANCOUNT() + getNSCOUNT();
+        int total = getRecordCount();
+        for (int i = additionalStart; i < total; i++) {
+            if (getRecordType(i) == Edns.TYPE_OPT) {
+                if (optCount++ == 0) {
+                    found = getRecordOffset(i);
+                    optIndex = i - additionalStart;
+                }
+            }
+        }
+        return found;
+    }
+
+    // Every question, in order. Unlike getQType() and friends, which only look at
+    // the first question, these index all of them on first use.
+    public int getQuestionOffset(int question) {
+        return entryStart(checkQuestion(question));
+    }
+
+    public int getQuestionType(int question) {
+        return getShort(entryFields(checkQuestion(question)));
+    }
+
+    public int getQuestionClass(int question) {
+        return getShort(entryFields(checkQuestion(question)) + 2);
+    }
+
+    // Resource records are numbered across the answer, authority and additional
+    // sections: the answers come first, the additional records start at
+    // ANCOUNT + NSCOUNT.
+    public int getRecordCount() {
+        return getANCOUNT() + getNSCOUNT() + getARCOUNT();
+    }
+
+    // Offset of the record's owner name
+    public int getRecordOffset(int record) {
+        return entryStart(checkRecord(record));
+    }
+
+    public int getRecordType(int record) {
+        return getShort(entryFields(checkRecord(record)));
+    }
+
+    public int getRecordClass(int record) {
+        return getShort(entryFields(checkRecord(record)) + 2);
+    }
+
+    // Unsigned 32-bit TTL
+    public long getRecordTTL(int record) {
+        return getInt(entryFields(checkRecord(record)) + 4);
+    }
+
+    // Offset of the TTL field, for callers that patch TTLs in a copy of the message
+    public int getRecordTTLOffset(int record) {
+        return entryFields(checkRecord(record)) + 4;
+    }
+
+    public int getRDataOffset(int record) {
+        return entryFields(checkRecord(record)) + 10;
+    }
+
+    public int getRDataLength(int record) {
+        return getShort(entryFields(checkRecord(record)) + 8);
+    }
+
+    // Offset of the first byte after the record
+    public int getRecordEnd(int record) {
+        return getRDataOffset(record) + getRDataLength(record);
+    }
+
+    // Offset of the first byte after the last record, the end of the parsed message
+    public int getRecordsEnd() {
+        index();
+        return entryStart(entryCount);
+    }
+
+    // Copies the name at offset into dst in uncompressed form, following
+    // compression pointers. Every pointer has to point before the one that was
+    // followed, so a pointer loop can't keep the walk going. Returns the length
+    // written, including the root label.
+    public int readName(int offset, byte[] dst, int dstOffset) {
+        int pos = offset;
+        int limit = offset; // Pointers must land before this
+        int written = 0;
+        while (true) {
+            if (pos >= length) {
+                throw new IllegalArgumentException("Name runs past end of message");
+            }
+            int len = get(pos);
+            if ((len & 0xC0) == 0xC0) {
+                if (pos + 2 > length) {
+                    throw new IllegalArgumentException("Truncated compression pointer");
+                }
+                int target = ((len & 0x3F) << 8) | get(pos + 1);
+                if (target >= limit) {
+                    throw new IllegalArgumentException("Compression pointer doesn't point backwards");
+                }
+                limit = target;
+                pos = target;
+                continue;
+            }
+            if (len > 63) {
+                throw new IllegalArgumentException("Unsupported label type: " + len);
+            }
+            if (written + len + 1 > MAX_NAME_LENGTH) {
+                throw new IllegalArgumentException("domain name above byte limit");
+            }
+            if (pos + len + 1 > length) {
+                throw new IllegalArgumentException("Label runs past end of message");
+            }
+            for (int i = 0; i <= len; i++) {
+                dst[dstOffset + written++] = (byte) get(pos + i);
+            }
+            if (len == 0) {
+                return written;
+            }
+            pos += len + 1;
+        }
+    }
+
+    // Presentation form of the (possibly compressed) name at offset, for logs and tools
+    public String nameToString(int offset) {
+        byte[] name = new byte[MAX_NAME_LENGTH];
+        readName(offset, name, 0);
+        return DomainNames.toString(name, 0);
+    }
+
+    private int checkQuestion(int question) {
+        if (question < 0 || question >= getQDCOUNT()) {
+            throw new IndexOutOfBoundsException("Question " + question + " of " + getQDCOUNT());
+        }
+        index();
+        return question;
+    }
+
+    // Records come after the questions in the index
+    private int checkRecord(int record) {
+        if (record < 0 || record >= getRecordCount()) {
+            throw new IndexOutOfBoundsException("Record " + record + " of " + getRecordCount());
+        }
+        index();
+        return getQDCOUNT() + record;
+    }
+
+    private int entryStart(int entry) {
+        return entries[entry * 2];
+    }
+
+    // Offset of the TYPE field
+    private int entryFields(int entry) {
+        return entries[entry * 2 + 1];
+    }
+
+    // Walks every question and record once, checking bounds but decoding nothing:
+    // only where each entry starts and where its fixed fields are get recorded.
+    // The walk doesn't follow compression pointers, readName() does that on demand.
+    private void index() {
+        if (entryCount >= 0) {
+            return;
+        }
+        int questions = getQDCOUNT();
+        int total = questions + getRecordCount();
+        // The counts come from the sender: before sizing the index by them, check the
+        // message could hold that many entries at their smallest (a root name plus the
+        // fixed fields), so a junk header can't make every handler allocate megabytes
+        if (questions * 5 + (total - questions) * 11 > length - HEADER_LENGTH) {
+            throw new IllegalArgumentException("Section counts exceed the message length");
+        }
+        if (entries.length < total * 2 + 1) {
+            entries = new int[Math.max(entries.length * 2, total * 2 + 1)];
+        }
+
+        int pos = HEADER_LENGTH;
+        for (int i = 0; i < total; i++) {
+            entries[i * 2] = pos;
+            int fields = skipName(pos);
+            entries[i * 2 + 1] = fields;
+            if (i < questions) {
+                pos = fields + 4;
+                if (pos > length) {
+                    throw new IllegalArgumentException("Question truncated");
+                }
+            } else {
+                if (fields + 10 > length) {
+                    throw new IllegalArgumentException("Resource record truncated");
+                }
+                pos = fields + 10 + getShort(fields + 8);
+                if (pos > length) {
+                    throw new IllegalArgumentException("RDATA runs past end of message");
+                }
+            }
+        }
+        entries[total * 2] = pos;
+        entryCount = total;
+    }
+
+    private int qnameEnd() {
+        if (qnameEnd < 0) {
+            qnameEnd = parseQName();
+        }
+        return qnameEnd;
+    }
+
+    private int parseQName() {
+        if (getQDCOUNT() == 0) {
+            throw new IllegalArgumentException("Message has no question");
+        }
+
+        int pos = HEADER_LENGTH;
+        while (true) {
+            if (pos >= length) {
+                throw new IllegalArgumentException("Question name runs past end of message");
+            }
+            int len = get(pos);
+            if (len == 0) {
+                break;
+            }
+            if (len > 63) {
+                throw new IllegalArgumentException("Unsupported label type in question: " + len);
+            }
+            pos += len + 1;
+        }
+        pos++; // Root label
+
+        if (pos - HEADER_LENGTH > MAX_NAME_LENGTH) {
+            throw new IllegalArgumentException("domain name above byte limit");
+        }
+        if (pos + 4 > length) {
+            throw new IllegalArgumentException("Question truncated");
+        }
+        return pos;
+    }
+}
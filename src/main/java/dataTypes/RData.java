@@ -1,7 +1,5 @@
 package dataTypes;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
@@ -13,6 +11,8 @@ public class RData {
     public static final int TYPE_A = 1;
     public static final int TYPE_NS = 2;
     public static final int TYPE_CNAME = 5;
+    public static final int TYPE_SOA = 6;
+    public static final int TYPE_PTR = 12;
     public static final int TYPE_MX = 15;
     public static final int TYPE_TXT = 16;
     public static final int TYPE_AAAA = 28;
@@ -90,25 +90,60 @@ public class RData {
         return rdata;
     }
 
-    // Helper method to encode domain names
-    private static byte[] encodeDomainName(String domainName) {
-        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
-        String[] labels = domainName.split("\\.");
+    // SOA Record - Start of authority (two domain names + five 32-bit values)
+    public static byte[] createSOA(String primaryServer, String mailbox, long serial,
+                                   int refresh, int retry, int expire, int minimum) {
+        byte[] mname = encodeDomainName(primaryServer);
+        byte[] rname = encodeDomainName(mailbox);
+        byte[] rdata = new byte[mname.length + rname.length + 20];
+
+        System.arraycopy(mname, 0, rdata, 0, mname.length);
+        System.arraycopy(rname, 0, rdata, mname.length, rname.length);
+
+        int pos = mname.length + rname.length;
+        long[] values = {serial, refresh, retry, expire, minimum};
+        for (long value : values) {
+            rdata[pos++] = (byte) (value >> 24);
+            rdata[pos++] = (byte) (value >> 16);
+            rdata[pos++] = (byte) (value >> 8);
+            rdata[pos++] = (byte) (value & 0xFF);
+        }
 
-        for (String label : labels) {
-            if (label.length() > 63) {
-                throw new IllegalArgumentException("Label too long: " + label);
-            }
-            encoded.write((byte) label.length());
-            try {
-                encoded.write(label.getBytes(StandardCharsets.UTF_8));
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+        return rdata;
+    }
+
+    // Helper method to encode domain names. The text is copied once and every dot
+    // becomes the length byte of the label that follows it.
+    public static byte[] encodeDomainName(String domainName) {
+        byte[] text = domainName.getBytes(StandardCharsets.UTF_8);
+        int textLength = text.length;
+        if (textLength > 0 && text[textLength - 1] == '.') {
+            textLength--; // Fully qualified form
+        }
+        if (textLength == 0) {
+            return new byte[] {0}; // Root
+        }
+
+        byte[] encoded = new byte[textLength + 2];
+        System.arraycopy(text, 0, encoded, 1, textLength);
+
+        int labelStart = 0;
+        for (int i = 0; i <= textLength; i++) {
+            if (i == textLength || text[i] == '.') {
+                int len = i - labelStart;
+                if (len > 63) {
+                    throw new IllegalArgumentException("Label too long: " + new String(text, labelStart, len, StandardCharsets.UTF_8));
+                }
+                if (len == 0) {
+                    throw new IllegalArgumentException("Empty label in: " + domainName);
+                }
+                encoded[labelStart] = (byte) len;
+                labelStart = i + 1;
             }
         }
 
-        encoded.write(0); // Null terminator
-        return encoded.toByteArray();
+        encoded[textLength + 1] = 0; // Null terminator
+        return encoded;
     }
 
     // Create RDATA based on type
@@ -120,6 +155,9 @@ public class RData {
             case TYPE_CNAME -> createCNAME(params[0]);
             case TYPE_MX -> createMX(Integer.parseInt(params[0]), params[1]);
             case TYPE_TXT -> createTXT(params[0]);
+            case TYPE_SOA -> createSOA(params[0], params[1], Long.parseLong(params[2]),
+                    Integer.parseInt(params[3]), Integer.parseInt(params[4]),
+                    Integer.parseInt(params[5]), Integer.parseInt(params[6]));
             default -> throw new IllegalArgumentException("Unsupported record type: " + type);
         };
     }
@@ -0,0 +1,347 @@
+package dataTypes;
+
+import java.nio.ByteBuffer;
+
+// Serializes a whole response (header, question and resource records) straight
+// into a caller-owned buffer. Names are compressed with RFC 1035 pointers against
+// everything already written. A writer keeps no per-message garbage and is reset
+// for each packet, so each worker keeps one next to its response buffer.
+public class ResponseWriter {
+
+    public static final int ANSWER = 0;
+    public static final int AUTHORITY = 1;
+    public static final int ADDITIONAL = 2;
+
+    // Offsets of names already in the packet that later names may point to
+    private static final int MAX_COMPRESSION_TARGETS = 128;
+    private static final int MAX_POINTER_OFFSET = 0x3FFF;
+
+    private byte[] buf;
+    private int base;
+    private int limit;
+    private int pos;
+
+    private int flags;
+    private int qdcount;
+    private final int[] counts = new int[3];
+    private int section;
+    private boolean truncated;
+    private int truncatedSection;
+
+    private final int[] targets = new int[MAX_COMPRESSION_TARGETS];
+    private int targetCount;
+
+    public ResponseWriter reset(ByteBuffer out) {
+        return reset(out.array(), out.arrayOffset() + out.position(), out.remaining());
+    }
+
+    public ResponseWriter reset(byte[] buf, int offset, int maxLength) {
+        if (maxLength < MessageView.HEADER_LENGTH) {
+            throw new IllegalArgumentException("Response buffer too small");
+        }
+        this.buf = buf;
+        this.base = offset;
+        this.limit = maxLength;
+        this.pos = MessageView.HEADER_LENGTH;
+        this.flags = 0;
+        this.qdcount = 0;
+        this.counts[ANSWER] = 0;
+        this.counts[AUTHORITY] = 0;
+        this.counts[ADDITIONAL] = 0;
+        this.section = ANSWER;
+        this.truncated = false;
+        this.truncatedSection = ADDITIONAL;
+        this.targetCount = 0;
+        return this;
+    }
+
+    // Lowers the size the response may grow to, e.g. 512 bytes for plain UDP
+    public void setLimit(int maxLength) {
+        if (maxLength < pos) {
+            throw new IllegalArgumentException("Limit below bytes already written");
+        }
+        this.limit = maxLength;
+    }
+
+    public void writeHeader(int id, int flags) {
+        putShort(0, id);
+        this.flags = flags;
+    }
+
+    public void setRCODE(byte rcode) {
+        flags = (flags & ~0xF) | (rcode & 0xF);
+    }
+
+    public int length() {
+        return pos;
+    }
+
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    public int getCount(int section) {
+        return counts[section];
+    }
+
+    // Copies the first question of the query verbatim, keeping the client's case
+    public boolean writeQuestion(MessageView query) {
+        int questionLength = query.getQuestionLength();
+        if (pos + questionLength > limit) {
+            markTruncated(ANSWER);
+            return false;
+        }
+
+        for (int i = 0; i < questionLength; i++) {
+            buf[base + pos + i] = (byte) query.get(MessageView.HEADER_LENGTH + i);
+        }
+
+        // Every label of the QNAME can be pointed at by later names
+        for (int i = pos; buf[base + i] != 0; i += (buf[base + i] & 0xFF) + 1) {
+            addTarget(i);
+        }
+        pos += questionLength;
+        qdcount = 1;
+        return true;
+    }
+
+    // Writes one resource record. The record is either written completely or not at
+    // all; when it doesn't fit the writer is marked truncated and false is returned.
+    public boolean writeRecord(int section, byte[] name, int nameOffset, int type, int recordClass,
+                               int ttl, byte[] rdata, int rdataOffset, int rdataLength) {
+        if (section < this.section) {
+            throw new IllegalStateException("Records must be written in section order");
+        }
+        if (truncated) {
+            return false;
+        }
+
+        int start = pos;
+        int startTargets = targetCount;
+        if (!writeName(name, nameOffset)
+                || !putFixed(type, recordClass, ttl)
+                || !writeRData(type, rdata, rdataOffset, rdataLength)) {
+            pos = start;
+            targetCount = startTargets;
+            markTruncated(section);
+            return false;
+        }
+
+        this.section = section;
+        counts[section]++;
+        return true;
+    }
+
+    public boolean writeRecord(int section, byte[] name, int type, int recordClass, int ttl, byte[] rdata) {
+        return writeRecord(section, name, 0, type, recordClass, ttl, rdata, 0, rdata.length);
+    }
+
+    // Appends records that are already wire encoded and need no compression
+    public boolean writeEncoded(int section, byte[] src, int offset, int length, int recordCount) {
+        if (section < this.section) {
+            throw new IllegalStateException("Records must be written in section order");
+        }
+        if (truncated) {
+            return false;
+        }
+        if (pos + length > limit) {
+            markTruncated(section);
+            return false;
+        }
+        System.arraycopy(src, offset, buf, base + pos, length);
+        pos += length;
+        this.section = section;
+        counts[section] += recordCount;
+        return true;
+    }
+
+    // Appends count records stored wire encoded from TYPE through RDATA, i.e. without
+    // their owner, each behind the given owner name, which is compressed as usual.
+    // RDATA is copied as is. A ttl of -1 keeps the stored TTLs. Records are written
+    // completely or not at all, as with writeRecord().
+    public boolean writeEncodedRecords(int section, byte[] name, int nameOffset, ByteBuffer src, int offset,
+                                       int count, int ttl) {
+        if (section < this.section) {
+            throw new IllegalStateException("Records must be written in section order");
+        }
+
+        int record = offset;
+        for (int i = 0; i < count; i++) {
+            if (truncated) {
+                return false;
+            }
+            int fixedLength = 10 + (((src.get(record + 8) & 0xFF) << 8) | (src.get(record + 9) & 0xFF));
+
+            int start = pos;
+            int startTargets = targetCount;
+            if (!writeName(name, nameOffset) || pos + fixedLength > limit) {
+                pos = start;
+                targetCount = startTargets;
+                markTruncated(section);
+                return false;
+            }
+            src.get(record, buf, base + pos, fixedLength);
+            if (ttl >= 0) {
+                putShort(pos + 4, ttl >>> 16);
+                putShort(pos + 6, ttl);
+            }
+            pos += fixedLength;
+            record += fixedLength;
+
+            this.section = section;
+            counts[section]++;
+        }
+        return true;
+    }
+
+    // Patches flags and section counts into the header and returns the packet length.
+    // TC is only set when answer or authority data was dropped.
+    public int finish() {
+        int finalFlags = flags;
+        if (truncated && truncatedSection < ADDITIONAL) {
+            finalFlags |= 0x0200;
+        }
+        putShort(2, finalFlags);
+        putShort(4, qdcount);
+        putShort(6, counts[ANSWER]);
+        putShort(8, counts[AUTHORITY]);
+        putShort(10, counts[ADDITIONAL]);
+        return pos;
+    }
+
+    private void markTruncated(int section) {
+        truncated = true;
+        truncatedSection = section;
+    }
+
+    private boolean putFixed(int type, int recordClass, int ttl) {
+        if (pos + 10 > limit) {
+            return false;
+        }
+        putShort(pos, type);
+        putShort(pos + 2, recordClass);
+        putShort(pos + 4, ttl >>> 16);
+        putShort(pos + 6, ttl);
+        pos += 8; // RDLENGTH is written with the data
+        return true;
+    }
+
+    private boolean writeRData(int type, byte[] rdata, int offset, int length) {
+        int lengthAt = pos;
+        pos += 2;
+
+        // Names inside the RFC 1035 types may be compressed too
+        boolean written = switch (type) {
+            case RData.TYPE_NS, RData.TYPE_CNAME, RData.TYPE_PTR -> writeName(rdata, offset);
+            case RData.TYPE_MX -> putBytes(rdata, offset, 2) && writeName(rdata, offset + 2);
+            case RData.TYPE_SOA -> {
+                int rname = offset + nameLength(rdata, offset);
+                int serial = rname + nameLength(rdata, rname);
+                yield writeName(rdata, offset) && writeName(rdata, rname) && putBytes(rdata, serial, 20);
+            }
+            default -> putBytes(rdata, offset, length);
+        };
+        if (!written) {
+            return false;
+        }
+
+        putShort(lengthAt, pos - lengthAt - 2);
+        return true;
+    }
+
+    private boolean putBytes(byte[] src, int offset, int length) {
+        if (pos + length > limit) {
+            return false;
+        }
+        System.arraycopy(src, offset, buf, base + pos, length);
+        pos += length;
+        return true;
+    }
+
+    // Writes an uncompressed wire-format name, replacing the longest suffix already
+    // present in the packet with a pointer
+    private boolean writeName(byte[] name, int offset) {
+        int label = offset;
+        while ((name[label] & 0xFF) != 0) {
+            int target = findTarget(name, label);
+            if (target >= 0) {
+                if (pos + 2 > limit) {
+                    return false;
+                }
+                putShort(pos, 0xC000 | target);
+                pos += 2;
+                return true;
+            }
+
+            int len = name[label] & 0xFF;
+            if (pos + len + 1 > limit) {
+                return false;
+            }
+            addTarget(pos);
+            System.arraycopy(name, label, buf, base + pos, len + 1);
+            pos += len + 1;
+            label += len + 1;
+        }
+
+        if (pos + 1 > limit) {
+            return false;
+        }
+        buf[base + pos++] = 0;
+        return true;
+    }
+
+    private int findTarget(byte[] name, int offset) {
+        for (int i = 0; i < targetCount; i++) {
+            if (nameEquals(name, offset, targets[i])) {
+                return targets[i];
+            }
+        }
+        return -1;
+    }
+
+    // Compares an uncompressed name with a (possibly compressed) name in the packet
+    private boolean nameEquals(byte[] name, int offset, int packetOffset) {
+        int a = offset;
+        int b = packetOffset;
+        while (true) {
+            int lenB = buf[base + b] & 0xFF;
+            if ((lenB & 0xC0) == 0xC0) {
+                b = ((lenB & 0x3F) << 8) | (buf[base + b + 1] & 0xFF);
+                continue;
+            }
+            int lenA = name[a] & 0xFF;
+            if (lenA != lenB) {
+                return false;
+            }
+            if (lenA == 0) {
+                return true;
+            }
+            for (int i = 1; i <= lenA; i++) {
+                if (DomainNames.toLower(name[a + i]) != DomainNames.toLower(buf[base + b + i])) {
+                    return false;
+                }
+            }
+            a += lenA + 1;
+            b += lenB + 1;
+        }
+    }
+
+    private void addTarget(int offset) {
+        if (targetCount < MAX_COMPRESSION_TARGETS && offset <= MAX_POINTER_OFFSET) {
+            targets[targetCount++] = offset;
+        }
+    }
+
+    private void putShort(int offset, int value) {
+        buf[base + offset] = (byte) (value >> 8);
+        buf[base + offset + 1] = (byte) value;
+    }
+
+    private static int nameLength(byte[] name, int offset) {
+        int pos = offset;
+        while ((name[pos] & 0xFF) != 0) {
+            pos += (name[pos] & 0xFF) + 1;
+        }
+        return pos - offset + 1;
+    }
+}
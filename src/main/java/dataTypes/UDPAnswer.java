@@ -1,8 +1,5 @@
 package dataTypes;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-
 public class UDPAnswer {
 
     public static byte[] createAnswer(byte[] domainName,int type,int questionClass,int ttl,byte[] rData ){
@@ -23,36 +20,31 @@ public class UDPAnswer {
             throw new IllegalArgumentException("Invalid class type");
         }
 
-        ByteArrayOutputStream answer = new ByteArrayOutputStream();
-
-        try {
-            answer.write(domainName);
+        byte[] answer = new byte[domainName.length + 10 + rdLength];
+        int pos = domainName.length;
 
-            // write type
-            answer.write((byte)(type >> 8));
-            answer.write((byte)(type & 0xFF));
+        System.arraycopy(domainName, 0, answer, 0, pos);
 
-            //question class
-            answer.write((byte)(questionClass >> 8));
-            answer.write((byte)(questionClass & 0xFF));
+        // write type
+        answer[pos++] = (byte)(type >> 8);
+        answer[pos++] = (byte)(type & 0xFF);
 
-            //Time to live
-            answer.write((byte)(ttl >> 24));
-            answer.write((byte)(ttl >> 16));
-            answer.write((byte)(ttl >> 8));
-            answer.write((byte)(ttl & 0xFF));
+        //question class
+        answer[pos++] = (byte)(questionClass >> 8);
+        answer[pos++] = (byte)(questionClass & 0xFF);
 
-            //RD Length
-            answer.write((byte)(rdLength >> 8));
-            answer.write((byte)(rdLength & 0xFF));
+        //Time to live
+        answer[pos++] = (byte)(ttl >> 24);
+        answer[pos++] = (byte)(ttl >> 16);
+        answer[pos++] = (byte)(ttl >> 8);
+        answer[pos++] = (byte)(ttl & 0xFF);
 
-            answer.write(rData);
+        //RD Length
+        answer[pos++] = (byte)(rdLength >> 8);
+        answer[pos++] = (byte)(rdLength & 0xFF);
 
+        System.arraycopy(rData, 0, answer, pos, rdLength);
 
-        } catch (IOException e){
-            throw new RuntimeException(e);
-        }
-
-        return answer.toByteArray();
+        return answer;
     }
 }
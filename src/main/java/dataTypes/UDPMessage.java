@@ -17,30 +17,28 @@ public class UDPMessage {
     private final UDPQuestion question;
 
     public UDPMessage (byte[] buff){
-        if(buff.length < 12){
-            throw new IllegalArgumentException("Invalid header size");
-        }
-
-        this.ID = ((buff[0] & 0xFF) << 8) | (buff[1] & 0xFF);
-
-        int flags = ((buff[2] & 0xFF) << 8) | (buff[3] & 0xFF);
+        this(new MessageView().reset(buff, 0, buff.length));
+    }
 
-        this.QR = (byte)((flags & 0x8000) >> 15) == 1;
-        this.OPCODE = (byte)((flags & 0x7800) >> 11);
-        this.AA = (byte)((flags & 0x400)>> 10) == 1;
-        this.TC = (byte)((flags & 0x200)>>9) == 1;
-        this.RD = (byte)((flags & 0x100)>>8) == 1;
-        this.RA = (byte)((flags & 0x0080)>>7) == 1;
-        this.Z = (byte)((flags & 0x0070)>>4);
-        this.RCODE = (byte)((flags & 0x000F));
+    // Snapshot of a view's fields, for code that wants a plain object
+    public UDPMessage (MessageView view){
+        this.ID = view.getID();
 
+        this.QR = view.isQR();
+        this.OPCODE = view.getOPCODE();
+        this.AA = view.isAA();
+        this.TC = view.isTC();
+        this.RD = view.isRD();
+        this.RA = view.isRA();
+        this.Z = view.getZ();
+        this.RCODE = view.getRCODE();
 
-        this.QDCOUNT = ((buff[4] & 0xFF) << 8) | (buff[5] & 0xFF);
-        this.ANCOUNT = ((buff[6] & 0xFF) << 8) | (buff[7] & 0xFF);
-        this.NSCOUNT = ((buff[8] & 0xFF) << 8) | (buff[9] & 0xFF);
-        this.ARCOUNT = ((buff[10] & 0xFF) << 8) | (buff[11] & 0xFF);
+        this.QDCOUNT = view.getQDCOUNT();
+        this.ANCOUNT = view.getANCOUNT();
+        this.NSCOUNT = view.getNSCOUNT();
+        this.ARCOUNT = view.getARCOUNT();
 
-        this.question = new UDPQuestion(buff);
+        this.question = QDCOUNT > 0 ? new UDPQuestion(view) : null;
     }
 
     public static byte[] createUDPHeader(int id, boolean qr, byte opCode, boolean aa,
@@ -55,17 +53,7 @@ public class UDPMessage {
         header[1] = (byte)(id & 0xFF);
 
         // Bytes 2-3: Flags
-        int flags = 0;
-
-        // Set each flag in its correct bit position
-        if (qr) flags |= 0x8000;           // Bit 15
-        flags |= (opCode & 0xF) << 11;     // Bits 11-14 (mask to ensure only 4 bits)
-        if (aa) flags |= 0x0400;           // Bit 10
-        if (tc) flags |= 0x0200;           // Bit 9
-        if (rd) flags |= 0x0100;           // Bit 8
-        if (ra) flags |= 0x0080;           // Bit 7
-        flags |= (z & 0x7) << 4;           // Bits 4-6 (mask to ensure only 3 bits)
-        flags |= (rcode & 0xF);            // Bits 0-3 (mask to ensure only 4 bits)
+        int flags = encodeFlags(qr, opCode, aa, tc, rd, ra, z, rcode);
 
         header[2] = (byte)(flags >> 8);
         header[3] = (byte)(flags & 0xFF);
@@ -90,6 +78,23 @@ public class UDPMessage {
     }
 
 
+    public static int encodeFlags(boolean qr, byte opCode, boolean aa, boolean tc,
+                                  boolean rd, boolean ra, byte z, byte rcode) {
+        int flags = 0;
+
+        // Set each flag in its correct bit position
+        if (qr) flags |= 0x8000;           // Bit 15
+        flags |= (opCode & 0xF) << 11;     // Bits 11-14 (mask to ensure only 4 bits)
+        if (aa) flags |= 0x0400;           // Bit 10
+        if (tc) flags |= 0x0200;           // Bit 9
+        if (rd) flags |= 0x0100;           // Bit 8
+        if (ra) flags |= 0x0080;           // Bit 7
+        flags |= (z & 0x7) << 4;           // Bits 4-6 (mask to ensure only 3 bits)
+        flags |= (rcode & 0xF);            // Bits 0-3 (mask to ensure only 4 bits)
+
+        return flags;
+    }
+
     public int getID() {
         return ID;
     }
@@ -1,9 +1,5 @@
 package dataTypes;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-
 public class UDPQuestion {
 
     private final byte[] domainName;
@@ -11,38 +7,15 @@ public class UDPQuestion {
     private final int questionClass;
 
     public UDPQuestion(byte[] buf){
-        this.domainName = extractDomainName(buf,12);
-        int domainNameLen = getDomainNameLength(buf,12);
-        int pos = 12 + domainNameLen;
-        this.type = ((buf[pos] & 0xFF) << 8 )| (buf[pos+1] & 0xFF);
-        this.questionClass = ((buf[pos+2] & 0xFF) << 8 )| (buf[pos+3] & 0xFF);
-    }
-
-    private static byte[] extractDomainName(byte[] data, int offset){
-        ByteArrayOutputStream name = new ByteArrayOutputStream();
-        int pos = offset;
-
-        while(pos <data.length && data[pos] != 0){
-            int len = data[pos] & 0xFF;
-            name.write(data[pos]); // Length byte
-            pos++;
-
-            //Copy label
-            name.write(data,pos,len);
-            pos += len;
-        }
-        name.write(0); // Null terminator
-
-        return name.toByteArray();
+        this(new MessageView().reset(buf, 0, buf.length));
     }
 
-    private static int getDomainNameLength(byte[] data, int offset){
-        int pos = offset;
-        while(pos< data.length && data[pos] !=0){
-            int len = data[pos] & 0xFF;
-            pos += len +1;
-        }
-        return (pos - offset) + 1;
+    public UDPQuestion(MessageView view){
+        // Single copy of the QNAME, the view already knows where it ends
+        this.domainName = new byte[view.getQNameLength()];
+        view.copyQName(this.domainName, 0);
+        this.type = view.getQType();
+        this.questionClass = view.getQClass();
     }
 
     public static byte[] createUDPQuestion(String domainName,int type,int questionClass){
@@ -53,66 +26,62 @@ public class UDPQuestion {
             throw new IllegalArgumentException("Invalid class type");
         }
 
-        ByteArrayOutputStream question = new ByteArrayOutputStream();
-
-        try {
-            byte[] encodedDomainame = domainNameEncode(domainName);
-            question.write(encodedDomainame);
-
-            // write type
-            question.write((byte)(type >> 8));
-            question.write((byte)(type & 0xFF));
+        byte[] encodedDomainame = domainNameEncode(domainName);
+        byte[] question = new byte[encodedDomainame.length + 4];
+        int pos = encodedDomainame.length;
 
-            //question class
-            question.write((byte)(questionClass >> 8));
-            question.write((byte)(questionClass & 0xFF));
+        System.arraycopy(encodedDomainame, 0, question, 0, pos);
 
+        // write type
+        question[pos++] = (byte)(type >> 8);
+        question[pos++] = (byte)(type & 0xFF);
 
-        } catch (IOException e){
-            throw new RuntimeException(e);
-        }
+        //question class
+        question[pos++] = (byte)(questionClass >> 8);
+        question[pos] = (byte)(questionClass & 0xFF);
 
-        return question.toByteArray();
+        return question;
     }
 
     private static byte[] domainNameEncode(String url){
-        ByteArrayOutputStream encodeName = new ByteArrayOutputStream();
-        String[] labels = url.split("\\.");
-
-        for(String label: labels){
-            if(label.length() > 63) {
-                throw new IllegalArgumentException("domain name label past character limit");
-            }
-            encodeName.write((byte) label.length());
-
-            try {
-                encodeName.write(label.getBytes(StandardCharsets.UTF_8));
-            } catch (IOException e){
-                throw new RuntimeException(e);
-            }
-        }
+        byte[] encodeName = RData.encodeDomainName(url);
 
-        if(encodeName.size() > 255){
+        if(encodeName.length > 255){
             throw new IllegalArgumentException("domain name above byte limit");
         }
 
-        encodeName.write(0);
-
-        return encodeName.toByteArray();
+        return encodeName;
     }
 
+    // Length of the question at offset. A compression pointer ends the name, and
+    // a question running past the end of data is rejected.
     public static int parseQuestionLength(byte[] data, int offset) {
         int pos = offset;
 
         // Skip the domain name
-        while (pos < data.length && data[pos] != 0) {
+        while (true) {
+            if (pos >= data.length) {
+                throw new IllegalArgumentException("Question name runs past end of message");
+            }
             int labelLength = data[pos] & 0xFF;
+            if ((labelLength & 0xC0) == 0xC0) {
+                pos += 2; // Pointer
+                break;
+            }
+            if (labelLength > 63) {
+                throw new IllegalArgumentException("Unsupported label type in question: " + labelLength);
+            }
             pos += labelLength + 1;
+            if (labelLength == 0) {
+                break; // Root label
+            }
         }
-        pos++; // Skip the null terminator
 
         // Add 4 bytes for QTYPE and QCLASS
         pos += 4;
+        if (pos > data.length) {
+            throw new IllegalArgumentException("Question truncated");
+        }
 
         return pos - offset;
     }
@@ -132,7 +101,7 @@ public class UDPQuestion {
     @Override
     public String toString() {
         // Decode domain name from bytes
-        String decodedDomain = decodeDomainName(domainName);
+        String decodedDomain = DomainNames.toString(domainName, 0);
 
         // Get string representations of type and class
         String typeStr = getTypeString(type);
@@ -141,28 +110,8 @@ public class UDPQuestion {
         return String.format("Question: %s %s %s", decodedDomain, classStr, typeStr);
     }
 
-    // Helper method to decode domain name from DNS format
-    private String decodeDomainName(byte[] encodedName) {
-        StringBuilder domain = new StringBuilder();
-        int pos = 0;
-
-        while (pos < encodedName.length && encodedName[pos] != 0) {
-            int labelLength = encodedName[pos] & 0xFF;
-            pos++;
-
-            if (!domain.isEmpty()) {
-                domain.append(".");
-            }
-
-            domain.append(new String(encodedName, pos, labelLength, StandardCharsets.UTF_8));
-            pos += labelLength;
-        }
-
-        return domain.toString();
-    }
-
     // Get human-readable type string
-    private String getTypeString(int type) {
+    public static String getTypeString(int type) {
         return switch (type) {
             case 1 -> "A";
             case 2 -> "NS";
@@ -178,7 +127,7 @@ public class UDPQuestion {
     }
 
     // Get human-readable class string
-    private String getClassString(int questionClass) {
+    public static String getClassString(int questionClass) {
         return switch (questionClass) {
             case 1 -> "IN";
             case 2 -> "CS";
@@ -0,0 +1,67 @@
+package metrics;
+
+// Builds a Prometheus text-format (version 0.0.4) exposition. Only used when the
+// endpoint is scraped, never on the query path.
+public class PrometheusText {
+
+    // Histogram bucket bounds in seconds, 50us to 5s
+    private static final double[] BUCKETS = {
+            0.00005, 0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005,
+            0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5
+    };
+
+    private final StringBuilder out = new StringBuilder(4096);
+    private String current;
+
+    public PrometheusText counter(String name, String help, long value) {
+        header(name, help, "counter");
+        out.append(name).append(' ').append(value).append('\n');
+        return this;
+    }
+
+    public PrometheusText gauge(String name, String help, long value) {
+        header(name, help, "gauge");
+        out.append(name).append(' ').append(value).append('\n');
+        return this;
+    }
+
+    // One sample of a labelled counter family, the header is written once per family
+    public PrometheusText counter(String name, String help, String label, String labelValue, long value) {
+        header(name, help, "counter");
+        out.append(name).append('{').append(label).append("=\"").append(labelValue).append("\"} ")
+                .append(value).append('\n');
+        return this;
+    }
+
+    public PrometheusText histogram(String name, String help, LatencyHistogram histogram) {
+        header(name, help, "histogram");
+        long count = histogram.getCount();
+        for (double bound : BUCKETS) {
+            out.append(name).append("_bucket{le=\"").append(format(bound)).append("\"} ")
+                    .append(histogram.getCountAtOrBelow((long) (bound * 1e9))).append('\n');
+        }
+        out.append(name).append("_bucket{le=\"+Inf\"} ").append(count).append('\n');
+        out.append(name).append("_sum ").append(format(histogram.getSum() / 1e9)).append('\n');
+        out.append(name).append("_count ").append(count).append('\n');
+        return this;
+    }
+
+    private void header(String name, String help, String type) {
+        if (name.equals(current)) {
+            return;
+        }
+        current = name;
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    // Same float syntax the Java client library uses, e.g. 5.0E-5
+    private static String format(double value) {
+        return Double.toString(value);
+    }
+
+    @Override
+    public String toString() {
+        return out.toString();
+    }
+}
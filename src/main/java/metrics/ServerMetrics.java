@@ -0,0 +1,139 @@
+package metrics;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counters and latency histograms updated on the hot path. Everything is a LongAdder
+// or a LatencyHistogram, so recording never locks, allocates or formats; the text
+// form is only built when the metrics endpoint is scraped.
+public class ServerMetrics {
+
+    // QTYPEs above this share the last counter
+    public static final int MAX_TRACKED_TYPE = 255;
+
+    private final LongAdder[] queriesByType = new LongAdder[MAX_TRACKED_TYPE + 2];
+    private final LongAdder[] responsesByRcode = new LongAdder[16];
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder malformed = new LongAdder();
+    private final LongAdder truncated = new LongAdder();
+    private final LongAdder shed = new LongAdder();
+    private final LongAdder tcpAccepted = new LongAdder();
+    private final LongAdder tcpClosed = new LongAdder();
+    private final LongAdder tcpRejected = new LongAdder();
+    private final LongAdder tcpIdleClosed = new LongAdder();
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LatencyHistogram upstreamLatency = new LatencyHistogram();
+
+    public ServerMetrics() {
+        for (int i = 0; i < queriesByType.length; i++) {
+            queriesByType[i] = new LongAdder();
+        }
+        for (int i = 0; i < responsesByRcode.length; i++) {
+            responsesByRcode[i] = new LongAdder();
+        }
+    }
+
+    public void recordQuery(int qtype) {
+        queriesByType[Math.min(qtype, MAX_TRACKED_TYPE + 1)].increment();
+    }
+
+    // Counts the RCODE and TC bit of a response written from index 0
+    public void recordResponse(ByteBuffer response) {
+        recordResponse(response.get(2), response.get(3));
+    }
+
+    public void recordResponse(byte[] response) {
+        recordResponse(response[2], response[3]);
+    }
+
+    private void recordResponse(byte flagsHigh, byte flagsLow) {
+        responsesByRcode[flagsLow & 0x0F].increment();
+        if ((flagsHigh & 0x02) != 0) {
+            truncated.increment();
+        }
+    }
+
+    // A query that got no answer at all
+    public void recordDrop() {
+        dropped.increment();
+    }
+
+    // A packet the handler couldn't parse, also counted as a drop
+    public void recordMalformed() {
+        malformed.increment();
+        dropped.increment();
+    }
+
+    // A query turned away because it waited too long, answered or not
+    public void recordShed() {
+        shed.increment();
+    }
+
+    public void recordTcpAccepted() {
+        tcpAccepted.increment();
+    }
+
+    public void recordTcpClosed() {
+        tcpClosed.increment();
+    }
+
+    // Turned away because the connection limit was reached
+    public void recordTcpRejected() {
+        tcpRejected.increment();
+    }
+
+    // Closed by the server after the idle timeout, also counted as closed
+    public void recordTcpIdleClosed() {
+        tcpIdleClosed.increment();
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    // Time from receiving a forwarded query to sending the upstream's answer
+    public LatencyHistogram getUpstreamLatency() {
+        return upstreamLatency;
+    }
+
+    public long getQueries(int qtype) {
+        return queriesByType[Math.min(qtype, MAX_TRACKED_TYPE + 1)].sum();
+    }
+
+    public long getResponses(int rcode) {
+        return responsesByRcode[rcode].sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public long getShed() {
+        return shed.sum();
+    }
+
+    public long getMalformed() {
+        return malformed.sum();
+    }
+
+    public long getTruncated() {
+        return truncated.sum();
+    }
+
+    public long getTcpAccepted() {
+        return tcpAccepted.sum();
+    }
+
+    public long getTcpClosed() {
+        return tcpClosed.sum();
+    }
+
+    public long getTcpRejected() {
+        return tcpRejected.sum();
+    }
+
+    public long getTcpIdleClosed() {
+        return tcpIdleClosed.sum();
+    }
+}
@@ -0,0 +1,473 @@
+package policy;
+
+import dataTypes.DomainNames;
+import dataTypes.RData;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// A response policy (blocklist) for filtering resolvers, matched against the QNAME
+// before anything else answers it. Rules name a domain or, with a "*." prefix,
+// everything below one; the most specific matching rule wins, and an exact rule
+// beats a wildcard on the same name. Actions are NXDOMAIN, NODATA, PASSTHRU (an
+// exception carved out of a blocked suffix) or a rewrite to fixed addresses.
+//
+// Rules are compiled into a trie over reversed labels (com, example, www) kept in
+// flat arrays: per node its label, its children, which are contiguous and sorted so
+// they can be binary searched, and its two actions. Labels are stored once per node
+// in a shared byte array. In front of the trie sits a blocked Bloom filter over
+// every rule name, probed with one cache line per suffix of the QNAME, so the
+// common case of an unlisted name never touches the trie.
+//
+// Immutable once loaded and safe to share between workers; match() allocates nothing.
+public class ResponsePolicy {
+
+    public static final int NONE = 0;
+    public static final int NXDOMAIN = 1;
+    public static final int NODATA = 2;
+    public static final int PASSTHRU = 3;
+    public static final int REWRITE = 4; // REWRITE + i is rewrite i
+
+    // Answers synthesized from rewrite rules live this long
+    public static final int REWRITE_TTL = 300;
+
+    // Node layout: label offset, first child, child count, exact action << 16 | wildcard action
+    private static final int NODE_INTS = 4;
+    private static final int ROOT = 0;
+    private static final int ROOT_HASH = 0x811C9DC5;
+    private static final int BLOOM_BITS_PER_NAME = 10;
+
+    private final int[] nodes;
+    private final byte[] labels;
+    private final long[] bloom;
+    private final int bloomMask;
+    private final byte[][] rewriteA;    // Per rewrite, null when it has no IPv4 address
+    private final byte[][] rewriteAAAA; // Per rewrite, null when it has no IPv6 address
+    private final int ruleCount;
+
+    private final LongAdder[] hits = {new LongAdder(), new LongAdder(), new LongAdder(), new LongAdder()};
+
+    private ResponsePolicy(int[] nodes, byte[] labels, long[] bloom, byte[][] rewriteA, byte[][] rewriteAAAA,
+                           int ruleCount) {
+        this.nodes = nodes;
+        this.labels = labels;
+        this.bloom = bloom;
+        this.bloomMask = bloom.length - 1;
+        this.rewriteA = rewriteA;
+        this.rewriteAAAA = rewriteAAAA;
+        this.ruleCount = ruleCount;
+    }
+
+    // One rule per line, "#" starts a comment:
+    //   ads.example.com                 NXDOMAIN (the default action)
+    //   *.tracker.example  nodata       everything below tracker.example
+    //   ok.tracker.example passthru     answered normally despite the rule above
+    //   portal.example     192.0.2.1 2001:db8::1
+    public static ResponsePolicy load(List<Path> files) throws IOException {
+        Builder builder = new Builder();
+        for (Path file : files) {
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                int lineNumber = 0;
+                while ((line = reader.readLine()) != null) {
+                    lineNumber++;
+                    try {
+                        builder.addLine(line);
+                    } catch (IllegalArgumentException e) {
+                        throw new IllegalArgumentException(file + ":" + lineNumber + ": " + e.getMessage(), e);
+                    }
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    // The action for a wire-format QNAME, NONE when no rule matches
+    public int match(byte[] name, int offset) {
+        if ((mayMatch(name, offset) & 1L << 32) == 0) {
+            return NONE;
+        }
+        long walked = walk(name, offset);
+        int node = (int) (walked >>> 32);
+        int action = node >= 0 ? nodes[node * NODE_INTS + 3] >>> 16 : NONE;
+        return action != NONE ? action : (int) walked;
+    }
+
+    // The suffix hash of the name at p in the low bits, bit 32 set when the Bloom
+    // filter may hold the name or one of its parents
+    private long mayMatch(byte[] name, int p) {
+        int len = name[p] & 0xFF;
+        if (len == 0) {
+            return probe(ROOT_HASH) ? 1L << 32 | (ROOT_HASH & 0xFFFFFFFFL) : ROOT_HASH & 0xFFFFFFFFL;
+        }
+        long parent = mayMatch(name, p + len + 1);
+        int hash = labelHash((int) parent, name, p);
+        long hit = (parent | (probe(hash) ? 1L << 32 : 0)) & 1L << 32;
+        return hit | (hash & 0xFFFFFFFFL);
+    }
+
+    // The node of the name at p (-1 when it isn't in the trie) in the high bits and
+    // the action of the closest wildcard above it in the low bits
+    private long walk(byte[] name, int p) {
+        int len = name[p] & 0xFF;
+        if (len == 0) {
+            return (long) ROOT << 32 | NONE;
+        }
+        long parent = walk(name, p + len + 1);
+        int node = (int) (parent >>> 32);
+        if (node < 0) {
+            return parent;
+        }
+        int best = (int) parent;
+        int wildcard = nodes[node * NODE_INTS + 3] & 0xFFFF;
+        if (wildcard != NONE) {
+            best = wildcard;
+        }
+        return (long) findChild(node, name, p) << 32 | best;
+    }
+
+    // Children are sorted by label length, then by their (lowercase) bytes
+    private int findChild(int node, byte[] name, int p) {
+        int lo = nodes[node * NODE_INTS + 1];
+        int hi = lo + nodes[node * NODE_INTS + 2] - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compareLabel(nodes[mid * NODE_INTS], name, p);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private int compareLabel(int stored, byte[] name, int p) {
+        int len = name[p] & 0xFF;
+        int cmp = Integer.compare(labels[stored] & 0xFF, len);
+        for (int i = 1; cmp == 0 && i <= len; i++) {
+            cmp = Integer.compare(labels[stored + i] & 0xFF, DomainNames.toLower(name[p + i]));
+        }
+        return cmp;
+    }
+
+    // The hash of a name from its parent's hash and its first label
+    private static int labelHash(int parentHash, byte[] label, int p) {
+        int len = label[p] & 0xFF;
+        int h = (parentHash ^ len) * 0x01000193;
+        for (int i = 1; i <= len; i++) {
+            h = (h ^ DomainNames.toLower(label[p + i])) * 0x01000193;
+        }
+        return h;
+    }
+
+    // Blocked Bloom filter: one 64-bit word per name, three bits set within it
+    private boolean probe(int hash) {
+        long spread = hash * 0x9E3779B97F4A7C15L;
+        long bits = bloomBits(spread);
+        return (bloom[(int) (spread >>> 40) & bloomMask] & bits) == bits;
+    }
+
+    private static long bloomBits(long spread) {
+        return 1L << (spread & 63) | 1L << (spread >>> 6 & 63) | 1L << (spread >>> 12 & 63);
+    }
+
+    public static boolean isRewrite(int action) {
+        return action >= REWRITE;
+    }
+
+    // The rewrite's RDATA for an A or AAAA query, null when it has none of that type
+    public byte[] getRewrite(int action, int type) {
+        int index = action - REWRITE;
+        return type == RData.TYPE_A ? rewriteA[index] : type == RData.TYPE_AAAA ? rewriteAAAA[index] : null;
+    }
+
+    public void recordHit(int action) {
+        hits[Math.min(action, REWRITE) - 1].increment();
+    }
+
+    // Matches of NXDOMAIN, NODATA, PASSTHRU or, for any rewrite, REWRITE
+    public long getHits(int action) {
+        return hits[action - 1].sum();
+    }
+
+    public int getRuleCount() {
+        return ruleCount;
+    }
+
+    public int getNodeCount() {
+        return nodes.length / NODE_INTS;
+    }
+
+    // Collects rules as reversed, lowercase label sequences in one growing byte
+    // array, then sorts them and lays the trie out breadth first, so every node's
+    // children end up next to each other
+    private static final class Builder {
+
+        private byte[] pool = new byte[1 << 16];
+        private int poolLength;
+        private int[] keyStart = new int[1024]; // Per rule, offset of its key in pool
+        private int[] keyEnd = new int[1024];
+        private int[] ruleAction = new int[1024]; // action << 1 | 1 for wildcard rules
+        private int ruleCount;
+
+        private final Map<String, Integer> rewriteIds = new HashMap<>();
+        private byte[][] rewriteA = new byte[4][];
+        private byte[][] rewriteAAAA = new byte[4][];
+
+        void addLine(String line) {
+            int comment = line.indexOf('#');
+            String[] tokens = (comment >= 0 ? line.substring(0, comment) : line).trim().split("\\s+");
+            if (tokens[0].isEmpty()) {
+                return;
+            }
+
+            String domain = tokens[0];
+            boolean wildcard = domain.equals("*") || domain.startsWith("*.");
+            if (wildcard) {
+                domain = domain.substring(1);
+            }
+            byte[] name = RData.encodeDomainName(domain.startsWith(".") ? domain.substring(1) : domain);
+            if (name.length > 255) {
+                throw new IllegalArgumentException("Name too long: " + tokens[0]);
+            }
+            addRule(name, action(tokens), wildcard);
+        }
+
+        private int action(String[] tokens) {
+            if (tokens.length == 1) {
+                return NXDOMAIN;
+            }
+            if (tokens.length == 2) {
+                int action = switch (tokens[1].toUpperCase(Locale.ROOT)) {
+                    case "NXDOMAIN" -> NXDOMAIN;
+                    case "NODATA" -> NODATA;
+                    case "PASSTHRU" -> PASSTHRU;
+                    default -> NONE; // A single address
+                };
+                if (action != NONE) {
+                    return action;
+                }
+            }
+
+            // Addresses: one rewrite per distinct list, as most rules share a few sinkholes
+            String key = String.join(" ", List.of(tokens).subList(1, tokens.length));
+            Integer id = rewriteIds.get(key);
+            if (id == null) {
+                id = rewriteIds.size();
+                if (REWRITE + id > 0xFFFF) {
+                    throw new IllegalArgumentException("Too many distinct rewrite targets");
+                }
+                if (id == rewriteA.length) {
+                    rewriteA = Arrays.copyOf(rewriteA, id * 2);
+                    rewriteAAAA = Arrays.copyOf(rewriteAAAA, id * 2);
+                }
+                for (int i = 1; i < tokens.length; i++) {
+                    if (tokens[i].indexOf(':') >= 0) {
+                        rewriteAAAA[id] = RData.createAAAA(tokens[i]);
+                    } else {
+                        rewriteA[id] = createA(tokens[i]);
+                    }
+                }
+                rewriteIds.put(key, id);
+            }
+            return REWRITE + id;
+        }
+
+        private static byte[] createA(String address) {
+            try {
+                return RData.createA(address);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Unknown action or address: " + address);
+            }
+        }
+
+        private void addRule(byte[] name, int action, boolean wildcard) {
+            if (ruleCount == keyStart.length) {
+                int capacity = ruleCount * 2;
+                keyStart = Arrays.copyOf(keyStart, capacity);
+                keyEnd = Arrays.copyOf(keyEnd, capacity);
+                ruleAction = Arrays.copyOf(ruleAction, capacity);
+            }
+            if (poolLength + name.length > pool.length) {
+                pool = Arrays.copyOf(pool, Math.max(pool.length * 2, poolLength + name.length));
+            }
+
+            // Labels in reverse order, each still prefixed with its length; no root label
+            int end = poolLength + name.length - 1;
+            int pos = end;
+            for (int p = 0; name[p] != 0; p = DomainNames.parent(name, p)) {
+                int len = name[p] & 0xFF;
+                pos -= len + 1;
+                pool[pos] = (byte) len;
+                for (int i = 1; i <= len; i++) {
+                    pool[pos + i] = (byte) DomainNames.toLower(name[p + i]);
+                }
+            }
+            keyStart[ruleCount] = poolLength;
+            keyEnd[ruleCount] = end;
+            ruleAction[ruleCount] = action << 1 | (wildcard ? 1 : 0);
+            ruleCount++;
+            poolLength = end;
+        }
+
+        ResponsePolicy build() {
+            int[] order = new int[ruleCount];
+            for (int i = 0; i < ruleCount; i++) {
+                order[i] = i;
+            }
+            sort(order, 0, ruleCount - 1);
+
+            // Breadth first: node i covers rules order[lo[i]..hi[i]), which share its
+            // labels, and cursor[] tracks how far into its key each rule has been consumed
+            int[] cursor = keyStart.clone();
+            int[] nodes = new int[(ruleCount + 16) * NODE_INTS];
+            int[] lo = new int[nodes.length / NODE_INTS];
+            int[] hi = new int[nodes.length / NODE_INTS];
+            int[] hashes = new int[nodes.length / NODE_INTS];
+            byte[] labels = new byte[Math.max(16, poolLength / 2)];
+            int labelsLength = 1; // Offset 0 is the root's empty label
+            hashes[ROOT] = ROOT_HASH;
+            hi[ROOT] = ruleCount;
+            int nodeCount = 1;
+
+            for (int node = 0; node < nodeCount; node++) {
+                int i = lo[node];
+                int exact = NONE;
+                int wildcard = NONE;
+                int exactRule = -1;
+                int wildcardRule = -1;
+                // Rules whose key ends here sort first; the last one listed wins
+                for (; i < hi[node] && cursor[order[i]] == keyEnd[order[i]]; i++) {
+                    int rule = order[i];
+                    if ((ruleAction[rule] & 1) != 0 && rule > wildcardRule) {
+                        wildcard = ruleAction[rule] >>> 1;
+                        wildcardRule = rule;
+                    } else if ((ruleAction[rule] & 1) == 0 && rule > exactRule) {
+                        exact = ruleAction[rule] >>> 1;
+                        exactRule = rule;
+                    }
+                }
+                nodes[node * NODE_INTS + 3] = exact << 16 | wildcard;
+                nodes[node * NODE_INTS + 1] = nodeCount;
+
+                // One child per distinct next label
+                while (i < hi[node]) {
+                    int label = cursor[order[i]];
+                    int next = i + 1;
+                    while (next < hi[node] && sameLabel(cursor[order[next]], label)) {
+                        next++;
+                    }
+
+                    if (nodeCount * NODE_INTS == nodes.length) {
+                        nodes = Arrays.copyOf(nodes, nodes.length * 2);
+                        lo = Arrays.copyOf(lo, lo.length * 2);
+                        hi = Arrays.copyOf(hi, hi.length * 2);
+                        hashes = Arrays.copyOf(hashes, hashes.length * 2);
+                    }
+                    int len = pool[label] & 0xFF;
+                    if (labelsLength + len + 1 > labels.length) {
+                        labels = Arrays.copyOf(labels, Math.max(labels.length * 2, labelsLength + len + 1));
+                    }
+                    System.arraycopy(pool, label, labels, labelsLength, len + 1);
+                    nodes[nodeCount * NODE_INTS] = labelsLength;
+                    hashes[nodeCount] = labelHash(hashes[node], pool, label);
+                    labelsLength += len + 1;
+
+                    for (int j = i; j < next; j++) {
+                        cursor[order[j]] += len + 1;
+                    }
+                    lo[nodeCount] = i;
+                    hi[nodeCount] = next;
+                    nodeCount++;
+                    i = next;
+                }
+                nodes[node * NODE_INTS + 2] = nodeCount - nodes[node * NODE_INTS + 1];
+            }
+
+            // Only names that carry a rule go into the filter
+            int named = 0;
+            for (int node = 0; node < nodeCount; node++) {
+                if (nodes[node * NODE_INTS + 3] != 0) {
+                    named++;
+                }
+            }
+            int words = Integer.highestOneBit(Math.max(1, named * BLOOM_BITS_PER_NAME / 64)) * 2;
+            long[] bloom = new long[words];
+            for (int node = 0; node < nodeCount; node++) {
+                if (nodes[node * NODE_INTS + 3] != 0) {
+                    long spread = hashes[node] * 0x9E3779B97F4A7C15L;
+                    bloom[(int) (spread >>> 40) & (words - 1)] |= bloomBits(spread);
+                }
+            }
+
+            int rewrites = rewriteIds.size();
+            return new ResponsePolicy(Arrays.copyOf(nodes, nodeCount * NODE_INTS),
+                    Arrays.copyOf(labels, labelsLength), bloom,
+                    Arrays.copyOf(rewriteA, rewrites), Arrays.copyOf(rewriteAAAA, rewrites),
+                    ruleCount);
+        }
+
+        private boolean sameLabel(int a, int b) {
+            int len = pool[a] & 0xFF;
+            return Arrays.equals(pool, a, a + len + 1, pool, b, b + len + 1);
+        }
+
+        // Keys compare as unsigned bytes, a key before any key it is a prefix of. That
+        // orders sibling labels by length, then bytes, as findChild expects.
+        private int compare(int a, int b) {
+            int cmp = Arrays.compareUnsigned(pool, keyStart[a], keyEnd[a], pool, keyStart[b], keyEnd[b]);
+            return cmp != 0 ? cmp : Integer.compare(a, b);
+        }
+
+        // Quicksort on the rule indexes, a boxed sort would double the memory for large lists
+        private void sort(int[] order, int left, int right) {
+            while (right - left > 16) {
+                int pivot = order[(left + right) >>> 1];
+                int i = left;
+                int j = right;
+                while (i <= j) {
+                    while (compare(order[i], pivot) < 0) {
+                        i++;
+                    }
+                    while (compare(order[j], pivot) > 0) {
+                        j--;
+                    }
+                    if (i <= j) {
+                        int t = order[i];
+                        order[i++] = order[j];
+                        order[j--] = t;
+                    }
+                }
+                // Recurse into the smaller half to bound the stack depth
+                if (j - left < right - i) {
+                    sort(order, left, j);
+                    left = i;
+                } else {
+                    sort(order, i, right);
+                    right = j;
+                }
+            }
+            for (int i = left + 1; i <= right; i++) {
+                int rule = order[i];
+                int j = i - 1;
+                while (j >= left && compare(order[j], rule) > 0) {
+                    order[j + 1] = order[j];
+                    j--;
+                }
+                order[j + 1] = rule;
+            }
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package querylog;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Binary query/response log in the spirit of dnstap. Worker threads append a
+// fixed-size record per answered query into a bounded lock-free ring (a Vyukov
+// style multi-producer queue: each slot carries a sequence number that says whose
+// turn it is). A background thread drains the ring in batches into rotating
+// memory-mapped files. When the ring is full the record is dropped and counted,
+// so logging never blocks a worker.
+public class QueryLog implements AutoCloseable {
+
+    private static final int SLOT_SIZE = 320; // >= QueryLogFormat.MAX_RECORD
+    private static final long IDLE_PARK_NANOS = 1_000_000L;
+
+    private final int capacity;
+    private final int mask;
+    private final byte[] slots;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private long head;       // Only touched by the writer thread
+    private boolean failing; // Only touched by the writer thread
+
+    private final RotatingLogWriter writer;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    private final LongAdder written = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    public QueryLog(Path directory, long fileBytes, int maxFiles, int ringCapacity) throws IOException {
+        if (Integer.bitCount(ringCapacity) != 1) {
+            throw new IllegalArgumentException("Ring capacity must be a power of two");
+        }
+        this.capacity = ringCapacity;
+        this.mask = ringCapacity - 1;
+        this.slots = new byte[ringCapacity * SLOT_SIZE];
+        this.sequences = new AtomicLongArray(ringCapacity);
+        for (int i = 0; i < ringCapacity; i++) {
+            sequences.set(i, i);
+        }
+
+        this.writer = new RotatingLogWriter(directory, fileBytes, maxFiles);
+        this.thread = new Thread(this::drain, "dns-querylog");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    // Records one answered query. The request holds the client's header and question,
+    // the response at least its header. Never blocks; drops the record if the ring is full.
+    public void append(int transport, byte[] request, int requestOffset, int requestLength,
+                       InetSocketAddress client, byte[] response, int responseOffset, long latencyNanos) {
+        int questionLength = questionLength(request, requestOffset, requestLength);
+
+        long position;
+        while (true) {
+            position = tail.get();
+            long sequence = sequences.get((int) position & mask);
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if (sequence < position) {
+                dropped.increment(); // Full, the writer is behind
+                return;
+            }
+            // Another producer took this slot, try the next one
+        }
+
+        int slot = (int) (position & mask);
+        int base = slot * SLOT_SIZE;
+        int length = QueryLogFormat.QUESTION + questionLength;
+
+        putShort(base + QueryLogFormat.LENGTH, length);
+        slots[base + QueryLogFormat.TRANSPORT] = (byte) transport;
+        InetAddress address = client.getAddress();
+        byte[] raw = address.getAddress();
+        slots[base + QueryLogFormat.ADDRESS_LENGTH] = (byte) raw.length;
+        System.arraycopy(raw, 0, slots, base + QueryLogFormat.ADDRESS, raw.length);
+        putShort(base + QueryLogFormat.PORT, client.getPort());
+        slots[base + QueryLogFormat.FLAGS] = response[responseOffset + 2];
+        slots[base + QueryLogFormat.FLAGS + 1] = response[responseOffset + 3];
+        slots[base + QueryLogFormat.ANCOUNT] = response[responseOffset + 6];
+        slots[base + QueryLogFormat.ANCOUNT + 1] = response[responseOffset + 7];
+        putInt(base + QueryLogFormat.LATENCY, (int) Math.min(Integer.MAX_VALUE, latencyNanos / 1000));
+        putLong(base + QueryLogFormat.TIMESTAMP, System.currentTimeMillis());
+        putShort(base + QueryLogFormat.QUESTION_LENGTH, questionLength);
+        System.arraycopy(request, requestOffset + 12, slots, base + QueryLogFormat.QUESTION, questionLength);
+
+        // Publish: the writer may read the slot once it sees position + 1
+        sequences.set(slot, position + 1);
+    }
+
+    // Length of the first question, 0 if it is missing or malformed
+    private static int questionLength(byte[] message, int offset, int length) {
+        int end = offset + length;
+        int pos = offset + 12;
+        if (length < 12 || (((message[offset + 4] & 0xFF) << 8) | (message[offset + 5] & 0xFF)) == 0) {
+            return 0;
+        }
+        while (pos < end) {
+            int label = message[pos] & 0xFF;
+            if (label == 0) {
+                pos++;
+                break;
+            }
+            if (label > 63) {
+                return 0; // Pointer or reserved label type in a question
+            }
+            pos += label + 1;
+        }
+        pos += 4;
+        int questionLength = pos - offset - 12;
+        return pos <= end && questionLength <= 259 ? questionLength : 0;
+    }
+
+    private void drain() {
+        while (true) {
+            int batch = 0;
+            while (batch < capacity) {
+                int slot = (int) (head & mask);
+                if (sequences.get(slot) != head + 1) {
+                    break; // Empty
+                }
+                int base = slot * SLOT_SIZE;
+                int length = ((slots[base] & 0xFF) << 8) | (slots[base + 1] & 0xFF);
+                try {
+                    writer.write(slots, base, length);
+                    written.increment();
+                    failing = false;
+                } catch (IOException e) {
+                    dropped.increment();
+                    if (!failing) {
+                        System.out.println("Query log write failed: " + e.getMessage());
+                        failing = true; // Report once until a write succeeds again
+                    }
+                }
+                sequences.set(slot, head + capacity); // Free for the lap after this one
+                head++;
+                batch++;
+            }
+
+            if (batch == 0) {
+                if (!running) {
+                    break;
+                }
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    public long getWritten() {
+        return written.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    // Drains what is already queued, then closes the current file
+    @Override
+    public void close() {
+        running = false;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            writer.close();
+        } catch (IOException e) {
+            System.out.println("Query log close failed: " + e.getMessage());
+        }
+    }
+
+    private void putShort(int pos, int value) {
+        slots[pos] = (byte) (value >> 8);
+        slots[pos + 1] = (byte) value;
+    }
+
+    private void putInt(int pos, int value) {
+        slots[pos] = (byte) (value >> 24);
+        slots[pos + 1] = (byte) (value >> 16);
+        slots[pos + 2] = (byte) (value >> 8);
+        slots[pos + 3] = (byte) value;
+    }
+
+    private void putLong(int pos, long value) {
+        putInt(pos, (int) (value >> 32));
+        putInt(pos + 4, (int) value);
+    }
+}
@@ -0,0 +1,48 @@
+package querylog;
+
+import java.nio.charset.StandardCharsets;
+
+// Layout shared by the ring, the writer and the reader. A log file starts with
+// FILE_HEADER bytes (MAGIC, then the creation time as epoch millis) followed by
+// records; a record length of 0 marks the end of the data. All values big-endian.
+//
+// Record:
+//   0  u16  record length, including this field
+//   2  u8   transport (TRANSPORT_UDP, TRANSPORT_TCP)
+//   3  u8   client address length, 4 or 16
+//   4  16   client address, left-aligned
+//  20  u16  client port
+//  22  u16  response flags (QR, opcode, AA, TC, RD, RA, Z, RCODE)
+//  24  u16  response ANCOUNT
+//  26  u32  latency in microseconds, receive to send
+//  30  i64  time the response was sent, epoch millis
+//  38  u16  question length
+//  40  ..   question as on the wire: QNAME, QTYPE, QCLASS
+public final class QueryLogFormat {
+
+    public static final byte[] MAGIC = "DNSQLOG1".getBytes(StandardCharsets.US_ASCII);
+    public static final int FILE_HEADER = 16;
+
+    public static final int TRANSPORT_UDP = 0;
+    public static final int TRANSPORT_TCP = 1;
+
+    public static final int LENGTH = 0;
+    public static final int TRANSPORT = 2;
+    public static final int ADDRESS_LENGTH = 3;
+    public static final int ADDRESS = 4;
+    public static final int PORT = 20;
+    public static final int FLAGS = 22;
+    public static final int ANCOUNT = 24;
+    public static final int LATENCY = 26;
+    public static final int TIMESTAMP = 30;
+    public static final int QUESTION_LENGTH = 38;
+    public static final int QUESTION = 40;
+
+    // Longest question: a 255 byte QNAME plus QTYPE and QCLASS
+    public static final int MAX_RECORD = QUESTION + 255 + 4;
+
+    public static final String FILE_SUFFIX = ".qlog";
+
+    private QueryLogFormat() {
+    }
+}
@@ -0,0 +1,88 @@
+package querylog;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Locale;
+
+// Appends records to memory-mapped files of a fixed size. When a record doesn't fit
+// the file is flushed, cut to the bytes actually used and a new one is started;
+// only the newest maxFiles files are kept. Not thread-safe: owned by the log's
+// writer thread.
+class RotatingLogWriter implements AutoCloseable {
+
+    private final Path directory;
+    private final long fileBytes;
+    private final int maxFiles;
+    private final Deque<Path> files = new ArrayDeque<>();
+
+    private FileChannel channel;
+    private MappedByteBuffer mapped;
+    private int sequence;
+
+    RotatingLogWriter(Path directory, long fileBytes, int maxFiles) throws IOException {
+        if (fileBytes < QueryLogFormat.FILE_HEADER + QueryLogFormat.MAX_RECORD + 2 || fileBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Query log file size out of range: " + fileBytes);
+        }
+        if (maxFiles < 1) {
+            throw new IllegalArgumentException("At least one query log file is required");
+        }
+        this.directory = directory;
+        this.fileBytes = fileBytes;
+        this.maxFiles = maxFiles;
+        Files.createDirectories(directory);
+        open();
+    }
+
+    void write(byte[] record, int offset, int length) throws IOException {
+        // Keep room for the 0 length that ends the data
+        if (mapped == null) {
+            open(); // The last rotation failed half way
+        } else if (mapped.remaining() < length + 2) {
+            rotate();
+        }
+        mapped.put(record, offset, length);
+    }
+
+    private void open() throws IOException {
+        long now = System.currentTimeMillis();
+        Path file = directory.resolve(
+                String.format(Locale.ROOT, "querylog-%d-%04d%s", now, sequence++, QueryLogFormat.FILE_SUFFIX));
+        channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileBytes);
+        mapped.put(QueryLogFormat.MAGIC);
+        mapped.putLong(now);
+
+        files.addLast(file);
+        while (files.size() > maxFiles) {
+            Files.deleteIfExists(files.removeFirst());
+        }
+    }
+
+    private void finish() throws IOException {
+        long used = mapped.position();
+        mapped.force();
+        mapped = null;
+        // Mapped pages beyond the cut are never touched again
+        channel.truncate(used + 2);
+        channel.close();
+    }
+
+    private void rotate() throws IOException {
+        finish();
+        open();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mapped != null) {
+            finish();
+        }
+    }
+}
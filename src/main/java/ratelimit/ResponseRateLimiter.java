@@ -0,0 +1,162 @@
+package ratelimit;
+
+import dataTypes.DomainNames;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Response Rate Limiting in the style of BIND's RRL. Identical responses (same
+// QNAME, QTYPE and RCODE) to one client network (IPv4 /24, IPv6 /56) get a token
+// bucket of ratePerSecond responses, refilled every second. Past that the response
+// is dropped, except every slip-th one, which goes out as an empty TC=1 reply so a
+// real client behind a spoofed address can still retry over TCP.
+//
+// Buckets live in a fixed table of packed longs updated with CAS: no locks and no
+// allocation per client. Each key may use one of two neighbouring slots; when both
+// are held by other keys the one idle longer is taken over. A collision therefore
+// at worst forgets a bucket, which resets it to full.
+public class ResponseRateLimiter {
+
+    public static final int ALLOW = 0;
+    public static final int DROP = 1;
+    public static final int SLIP = 2;
+
+    // 8 bytes a slot, so at most 128 MB
+    public static final int MAX_SLOTS = 1 << 24;
+
+    private static final int IPV4_PREFIX_BYTES = 3; // /24
+    private static final int IPV6_PREFIX_BYTES = 7; // /56
+    private static final int MIN_BALANCE = -0x7FFF;
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    // Slot layout: key fingerprint (32 bits), second stamp (16), signed balance (16)
+    private final AtomicLongArray table;
+    private final int mask;
+    private final int ratePerSecond;
+    private final int slip;
+    private final long startedAt = System.nanoTime();
+
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder slipped = new LongAdder();
+
+    // slots is rounded up to a power of two; slip 0 drops every limited response
+    public ResponseRateLimiter(int slots, int ratePerSecond, int slip) {
+        if (slots < 2 || slots > MAX_SLOTS) {
+            throw new IllegalArgumentException("Rate limit table size out of range: " + slots);
+        }
+        if (ratePerSecond < 1 || ratePerSecond > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("Rate limit out of range: " + ratePerSecond);
+        }
+        if (slip < 0) {
+            throw new IllegalArgumentException("Slip must not be negative");
+        }
+        int size = Integer.highestOneBit(slots - 1) << 1;
+        this.table = new AtomicLongArray(size);
+        this.mask = size - 1;
+        this.ratePerSecond = ratePerSecond;
+        this.slip = slip;
+    }
+
+    // Decides what to do with a response. The QNAME is an uncompressed wire-format
+    // name; rcode is the response's 4-bit RCODE.
+    // network is the client's networkKey().
+    public int check(long network, byte[] qname, int qnameOffset, int qtype, int rcode) {
+        long hash = hash(network, qname, qnameOffset, qtype, rcode);
+        long fingerprint = (hash >>> 32) | 1; // Never 0, the empty slot
+        int first = (int) hash & mask;
+        int second = first ^ 1;
+        int now = (int) ((System.nanoTime() - startedAt) / NANOS_PER_SECOND) & 0xFFFF;
+
+        while (true) {
+            long a = table.get(first);
+            long b = table.get(second);
+            int slot;
+            long current;
+            if (a >>> 32 == fingerprint) {
+                slot = first;
+                current = a;
+            } else if (b >>> 32 == fingerprint) {
+                slot = second;
+                current = b;
+            } else {
+                // A new bucket, full, in whichever slot has been idle longer
+                boolean replaceFirst = idle(a, now) >= idle(b, now);
+                slot = replaceFirst ? first : second;
+                current = replaceFirst ? a : b;
+                if (table.compareAndSet(slot, current, pack(fingerprint, now, ratePerSecond - 1))) {
+                    return ALLOW;
+                }
+                continue;
+            }
+
+            int balance = (short) current;
+            long elapsed = idle(current, now);
+            if (elapsed > 0) {
+                balance = (int) Math.min(ratePerSecond, balance + elapsed * ratePerSecond);
+            }
+            balance = Math.max(MIN_BALANCE, balance - 1);
+            if (!table.compareAndSet(slot, current, pack(fingerprint, now, balance))) {
+                continue;
+            }
+
+            if (balance >= 0) {
+                return ALLOW;
+            }
+            if (slip > 0 && -balance % slip == 0) {
+                slipped.increment();
+                return SLIP;
+            }
+            dropped.increment();
+            return DROP;
+        }
+    }
+
+    // Seconds since the slot was last used, 16-bit wrap-around included
+    private static long idle(long slot, int now) {
+        if (slot == 0) {
+            return Long.MAX_VALUE;
+        }
+        return (now - (int) (slot >>> 16)) & 0xFFFF;
+    }
+
+    private static long pack(long fingerprint, int now, int balance) {
+        return fingerprint << 32 | (long) (now & 0xFFFF) << 16 | (balance & 0xFFFF);
+    }
+
+    // Identifies the client's network. InetAddress only hands out copies of its bytes,
+    // so callers work this out once per client address object and reuse it: the
+    // datagram channel returns the same address object for consecutive packets from
+    // one source, which is exactly the flood RRL is for.
+    public static long networkKey(InetAddress client) {
+        byte[] address = client.getAddress();
+        int prefixBytes = client instanceof Inet4Address ? IPV4_PREFIX_BYTES : IPV6_PREFIX_BYTES;
+        long h = address.length;
+        for (int i = 0; i < prefixBytes; i++) {
+            h = h * 31 + (address[i] & 0xFF);
+        }
+        return h;
+    }
+
+    private static long hash(long network, byte[] qname, int qnameOffset, int qtype, int rcode) {
+        long h = network;
+        h = h * 0x9E3779B97F4A7C15L + DomainNames.hash(qname, qnameOffset);
+        h = h * 0x9E3779B97F4A7C15L + ((long) qtype << 4 | rcode);
+        // Murmur3 finalizer, so the index and the fingerprint use independent bits
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public long getSlipped() {
+        return slipped.sum();
+    }
+}
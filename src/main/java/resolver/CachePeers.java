@@ -0,0 +1,359 @@
+package resolver;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Shares a RecordCache with other instances of the server, so a name one of them
+// resolved is a hit on all of them. Every answer the cache takes from an upstream
+// is pushed to each peer over UDP; answers that arrive from peers are cached with
+// the TTLs they have left there but never pushed on, so there are no loops.
+//
+// Pushes are batched: the sender waits up to BATCH_MILLIS for more answers to fill
+// a datagram of at most MAX_DATAGRAM bytes. Nothing is acknowledged or resent. A
+// lost datagram, or an answer dropped because the queue is full, only costs a peer
+// the upstream query it would have made anyway.
+//
+// Whatever a peer sends is served to clients, so datagrams are authenticated: each
+// one ends in an HMAC-SHA256 (truncated to MAC_LENGTH bytes) keyed with a secret
+// all peers share, and carries its send time so a captured datagram can't be
+// replayed more than MAX_CLOCK_SKEW_MILLIS later. On top of that, datagrams are
+// only accepted from the listed peer addresses, so peers must send from the
+// address they are listed with (their --peer-port), and RecordCache.restore()
+// caps what arrives at the local maximum TTL.
+//
+// Datagram layout, all integers big-endian:
+//   header  magic, version, entry count (1 byte), send time (wall clock millis)
+//   entry   packet length (2 bytes), packet, negative flag, milliseconds left
+//           until expiry, TTL count (2 bytes), then per TTL its offset in the
+//           packet (2 bytes) and the seconds it has left
+//   mac     over everything before it
+public class CachePeers implements AutoCloseable {
+
+    static final byte[] MAGIC = {'D', 'N', 'S', 'P'};
+    static final int VERSION = 2;
+    static final int HEADER_LENGTH = 14;
+    static final int COUNT_OFFSET = 5;
+    static final int MAC_LENGTH = 16;
+    static final int MIN_KEY_LENGTH = 16;
+    static final int MAX_DATAGRAM = 1400;
+    static final int MAX_ENTRIES = 255;
+
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final long MAX_CLOCK_SKEW_MILLIS = 30_000;
+
+    private static final int QUEUE_CAPACITY = 4096;
+    private static final long BATCH_MILLIS = 20;
+    // How often the sender checks for close() while nothing is cached
+    private static final long POLL_MILLIS = 100;
+
+    private final RecordCache cache;
+    private final InetSocketAddress address;
+    private final List<InetSocketAddress> peers;
+    private final Set<InetSocketAddress> accepted;
+    private final SecretKeySpec key;
+    private final ArrayBlockingQueue<RecordCache.Entry> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+    private DatagramChannel channel;
+    private Thread sender;
+    private Thread receiver;
+    private volatile boolean running;
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    public CachePeers(RecordCache cache, InetSocketAddress address, List<InetSocketAddress> peers, byte[] key) {
+        if (peers.isEmpty()) {
+            throw new IllegalArgumentException("At least one peer is required");
+        }
+        if (key.length < MIN_KEY_LENGTH) {
+            throw new IllegalArgumentException("The peer key must be at least " + MIN_KEY_LENGTH + " bytes");
+        }
+        this.cache = cache;
+        this.address = address;
+        this.peers = List.copyOf(peers);
+        this.accepted = new HashSet<>(peers);
+        this.key = new SecretKeySpec(key, MAC_ALGORITHM);
+    }
+
+    // Each thread signs or verifies with its own instance
+    private Mac newMac() {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(key);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(MAC_ALGORITHM + " not available", e);
+        }
+    }
+
+    public void start() throws IOException {
+        channel = DatagramChannel.open();
+        channel.bind(address);
+
+        running = true;
+        sender = new Thread(this::send, "dns-peer-send");
+        sender.setDaemon(true);
+        sender.start();
+        receiver = new Thread(this::receive, "dns-peer-receive");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    public InetSocketAddress getLocalAddress() throws IOException {
+        return (InetSocketAddress) channel.getLocalAddress();
+    }
+
+    // Queues a newly cached entry for the peers, dropping it when the queue is full
+    void offer(RecordCache.Entry entry) {
+        if (running && !queue.offer(entry)) {
+            dropped.increment();
+        }
+    }
+
+    private void send() {
+        Mac mac = newMac();
+        ByteBuffer batch = ByteBuffer.allocate(MAX_DATAGRAM);
+        while (running) {
+            RecordCache.Entry entry;
+            try {
+                entry = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return; // close()
+            }
+            if (entry == null) {
+                continue;
+            }
+
+            startBatch(batch);
+            int count = 0;
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(BATCH_MILLIS);
+            while (entry != null) {
+                int appended = append(batch, entry, System.nanoTime());
+                if (appended < 0 && count > 0) {
+                    flush(batch, count, mac);
+                    startBatch(batch);
+                    count = 0;
+                    continue; // Try the entry again in an empty datagram
+                }
+                if (appended < 0) {
+                    dropped.increment(); // Doesn't fit in a datagram at all
+                } else {
+                    count += appended;
+                }
+                if (count == MAX_ENTRIES) {
+                    flush(batch, count, mac);
+                    startBatch(batch);
+                    count = 0;
+                }
+                try {
+                    entry = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            if (count > 0) {
+                flush(batch, count, mac);
+            }
+        }
+    }
+
+    // The send time is filled in by flush()
+    private static void startBatch(ByteBuffer batch) {
+        batch.clear();
+        batch.put(MAGIC).put((byte) VERSION).put((byte) 0).putLong(0);
+        batch.limit(MAX_DATAGRAM - MAC_LENGTH);
+    }
+
+    // Returns the number of entries added: 0 for an entry that already expired, -1
+    // when it doesn't fit
+    private static int append(ByteBuffer batch, RecordCache.Entry entry, long now) {
+        long leftMillis = (entry.expiresAt - now) / 1_000_000L;
+        if (leftMillis <= 0) {
+            return 0;
+        }
+        int length = 2 + entry.packet.length + 1 + 4 + 2 + entry.ttlOffsets.length * 6;
+        if (length > batch.remaining()) {
+            return -1;
+        }
+        int elapsed = (int) ((now - entry.storedAt) / 1_000_000_000L);
+        batch.putShort((short) entry.packet.length)
+                .put(entry.packet)
+                .put((byte) (entry.negative ? 1 : 0))
+                .putInt((int) Math.min(leftMillis, Integer.MAX_VALUE))
+                .putShort((short) entry.ttlOffsets.length);
+        for (int i = 0; i < entry.ttlOffsets.length; i++) {
+            batch.putShort((short) entry.ttlOffsets[i]).putInt(Math.max(0, entry.ttls[i] - elapsed));
+        }
+        return 1;
+    }
+
+    private void flush(ByteBuffer batch, int count, Mac mac) {
+        batch.put(COUNT_OFFSET, (byte) count);
+        batch.putLong(COUNT_OFFSET + 1, System.currentTimeMillis());
+        mac.update(batch.array(), 0, batch.position());
+        byte[] tag = mac.doFinal();
+        batch.limit(MAX_DATAGRAM);
+        batch.put(tag, 0, MAC_LENGTH);
+        batch.flip();
+        for (InetSocketAddress peer : peers) {
+            batch.rewind();
+            try {
+                channel.send(batch, peer);
+            } catch (IOException e) {
+                dropped.add(count); // Lost like any other datagram
+                continue;
+            }
+            sent.add(count);
+        }
+    }
+
+    private void receive() {
+        Mac mac = newMac();
+        ByteBuffer datagram = ByteBuffer.allocate(MAX_DATAGRAM);
+        while (running) {
+            datagram.clear();
+            SocketAddress from;
+            try {
+                from = channel.receive(datagram);
+            } catch (ClosedChannelException e) {
+                return; // close()
+            } catch (IOException e) {
+                continue;
+            }
+            if (!accepted.contains(from)) {
+                rejected.increment();
+                continue;
+            }
+            datagram.flip();
+            if (!verify(datagram, mac)) {
+                rejected.increment();
+                continue;
+            }
+            try {
+                read(datagram);
+            } catch (IllegalArgumentException e) {
+                rejected.increment();
+            }
+        }
+    }
+
+    // Checks the MAC and the send time, and on success leaves the MAC out of the
+    // datagram's limit
+    private static boolean verify(ByteBuffer datagram, Mac mac) {
+        int signed = datagram.limit() - MAC_LENGTH;
+        if (signed < HEADER_LENGTH) {
+            return false;
+        }
+        mac.update(datagram.array(), 0, signed);
+        byte[] expected = Arrays.copyOf(mac.doFinal(), MAC_LENGTH);
+        byte[] tag = Arrays.copyOfRange(datagram.array(), signed, signed + MAC_LENGTH);
+        if (!MessageDigest.isEqual(expected, tag)) {
+            return false;
+        }
+        long sentAt = datagram.getLong(COUNT_OFFSET + 1);
+        if (Math.abs(System.currentTimeMillis() - sentAt) > MAX_CLOCK_SKEW_MILLIS) {
+            return false;
+        }
+        datagram.limit(signed);
+        return true;
+    }
+
+    // Caches the entries of a verified datagram. Lengths and counts are checked
+    // against what is left of it before anything is allocated for them; throws
+    // IllegalArgumentException at the first one that doesn't fit.
+    void read(ByteBuffer datagram) {
+        require(datagram, HEADER_LENGTH);
+        byte[] magic = new byte[MAGIC.length];
+        datagram.get(magic);
+        if (!Arrays.equals(magic, MAGIC) || datagram.get() != VERSION) {
+            throw new IllegalArgumentException("Not a peer datagram");
+        }
+        int count = datagram.get() & 0xFF;
+        datagram.getLong(); // Send time, checked by verify()
+        long now = System.nanoTime();
+        for (int n = 0; n < count; n++) {
+            require(datagram, 2);
+            int length = datagram.getShort() & 0xFFFF;
+            require(datagram, length);
+            byte[] packet = new byte[length];
+            datagram.get(packet);
+            require(datagram, 1 + 4 + 2);
+            boolean negative = datagram.get() != 0;
+            long expiresAt = now + datagram.getInt() * 1_000_000L;
+            int ttlCount = datagram.getShort() & 0xFFFF;
+            require(datagram, ttlCount * 6);
+            int[] ttlOffsets = new int[ttlCount];
+            int[] ttls = new int[ttlCount];
+            for (int i = 0; i < ttlOffsets.length; i++) {
+                ttlOffsets[i] = datagram.getShort() & 0xFFFF;
+                ttls[i] = datagram.getInt();
+            }
+            if (cache.restore(packet, negative, now, expiresAt, ttlOffsets, ttls, now)) {
+                received.increment();
+            }
+        }
+    }
+
+    private static void require(ByteBuffer datagram, int length) {
+        if (length > datagram.remaining()) {
+            throw new IllegalArgumentException("Entry runs past the end of the datagram");
+        }
+    }
+
+    // Entries pushed, counted once per peer
+    public long getSent() {
+        return sent.sum();
+    }
+
+    // Entries from peers that were cached
+    public long getReceived() {
+        return received.sum();
+    }
+
+    // Entries not pushed: the queue was full, they didn't fit or the send failed
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    // Datagrams from unknown senders, with a bad MAC or send time, or malformed
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        if (channel == null) {
+            return;
+        }
+        sender.interrupt();
+        try {
+            channel.close(); // Wakes the receiver
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        try {
+            sender.join();
+            receiver.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package resolver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+// Keeps a RecordCache on disk so a restarted server doesn't start cold. On start
+// the snapshot is streamed back into the cache on the snapshot's own thread, so
+// the server is answering at once and the restored entries turn into hits as they
+// arrive; entries that expired while the server was down are skipped. After that
+// the cache is written out every interval and once more on close, unless close()
+// cut the restore short: the partly restored cache would replace a full snapshot.
+//
+// A snapshot is written next to the target and moved over it when complete, so a
+// crash mid-write leaves the previous one.
+//
+// File layout, all integers big-endian:
+//   header  magic, version
+//   entries as RecordCache.writeTo() writes them, up to a zero length
+public class CacheSnapshot implements AutoCloseable {
+
+    static final byte[] MAGIC = {'D', 'N', 'S', 'C', 'A', 'C', 'H', 'E'};
+    static final int VERSION = 1;
+
+    private final RecordCache cache;
+    private final Path file;
+    private final long intervalMillis;
+    private Thread thread;
+    private volatile boolean running = true;
+    private volatile boolean restored; // The cache holds what the file had, it may be saved over
+
+    public CacheSnapshot(RecordCache cache, Path file, long intervalMillis) {
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("Snapshot interval must be positive");
+        }
+        this.cache = cache;
+        this.file = file;
+        this.intervalMillis = intervalMillis;
+    }
+
+    public void start() {
+        thread = new Thread(this::run, "dns-cache-snapshot");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void run() {
+        if (!restore()) {
+            return; // close()
+        }
+        restored = true;
+        while (running) {
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                return; // close()
+            }
+            save();
+        }
+    }
+
+    // Returns false when close() interrupted it
+    private boolean restore() {
+        long startedAt = System.nanoTime();
+        int count;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IllegalArgumentException("Not a cache snapshot");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unsupported cache snapshot version: " + version);
+            }
+            count = cache.readFrom(in);
+        } catch (ClosedByInterruptException e) {
+            return false;
+        } catch (NoSuchFileException e) {
+            return true; // First start
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("Cache snapshot not restored: " + e.getMessage());
+            return true;
+        }
+        System.out.printf("Restored %d cached answer(s) in %.1fms%n", count, (System.nanoTime() - startedAt) / 1e6);
+        return true;
+    }
+
+    // Returns the number of entries written, -1 when writing failed
+    public synchronized int save() {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        int written;
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+                out.write(MAGIC);
+                out.writeInt(VERSION);
+                written = cache.writeTo(out);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("Cache snapshot failed: " + e.getMessage());
+            return -1;
+        }
+        return written;
+    }
+
+    // Stops the periodic snapshots and writes a last one once the restore is done
+    @Override
+    public void close() {
+        running = false;
+        if (thread == null) {
+            return;
+        }
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (restored) {
+            save();
+        }
+    }
+}
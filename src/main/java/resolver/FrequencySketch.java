@@ -0,0 +1,70 @@
+package resolver;
+
+// Count-min sketch with 4-bit counters, used to estimate how often a key was asked
+// for recently (the TinyLFU admission filter). Counters are halved after a sample
+// period so old popularity fades. Not thread-safe: each cache stripe owns one and
+// uses it under the stripe lock.
+class FrequencySketch {
+
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+
+    private final long[] table;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    FrequencySketch(int expectedEntries) {
+        int size = Integer.highestOneBit(Math.max(16, expectedEntries) - 1) << 1;
+        this.table = new long[size];
+        this.mask = size - 1;
+        this.sampleSize = 10 * size;
+    }
+
+    int frequency(int hash) {
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            frequency = Math.min(frequency, counter(hash, i));
+        }
+        return frequency;
+    }
+
+    void increment(int hash) {
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            int index = index(hash, i);
+            int shift = shift(hash, i);
+            if (((table[index] >>> shift) & 0xF) < 15) {
+                table[index] += 1L << shift;
+                added = true;
+            }
+        }
+        if (added && ++additions == sampleSize) {
+            reset();
+        }
+    }
+
+    // Halves every counter
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions /= 2;
+    }
+
+    private int counter(int hash, int depth) {
+        return (int) ((table[index(hash, depth)] >>> shift(hash, depth)) & 0xF);
+    }
+
+    private int index(int hash, int depth) {
+        long h = (hash + SEEDS[depth]) * SEEDS[depth];
+        return (int) (h >>> 32) & mask;
+    }
+
+    // Each long holds 16 counters, pick one per depth
+    private static int shift(int hash, int depth) {
+        return (((hash >>> (depth * 8)) & 3) + depth * 4) << 2;
+    }
+}
@@ -0,0 +1,609 @@
+package resolver;
+
+import dataTypes.DomainName;
+import dataTypes.DomainNames;
+import dataTypes.Edns;
+import dataTypes.MessageView;
+import dataTypes.RData;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+// Cache of upstream answers for the forwarding mode. Each entry is the upstream
+// response in wire format plus the offsets of every TTL field in it, so serving a
+// hit is a copy followed by rewriting the TTLs with the time left.
+//
+// The cache is lock striped: a key hashes to one of STRIPES stripes and only that
+// stripe's lock is taken. Each stripe keeps its entries in LRU order and admits
+// new entries TinyLFU style: when the stripe is full a newcomer only replaces the
+// LRU victim if the frequency sketch says it is asked for more often. A one-off
+// scan of unique names therefore can't flush the popular names.
+//
+// Negative answers (NXDOMAIN and NODATA) are cached per RFC 2308 for
+// min(SOA TTL, SOA MINIMUM) when the response carries the zone's SOA.
+//
+// Popular entries are kept warm: a hit in the last prefetchPercent of an entry's
+// TTL asks the upstream again in the background, and the fresh answer replaces the
+// entry before it expires. With serve-stale (RFC 8767) an expired entry is kept
+// for staleSeconds more; hits on it are answered at once with a TTL of STALE_TTL
+// while a refresh runs, so an upstream outage or a slow refresh doesn't turn into
+// SERVFAIL or latency for the client. A failed refresh is retried no sooner than
+// REFRESH_RETRY_SECONDS later.
+//
+// The entries can be written out and read back (see CacheSnapshot) so a restarted
+// server starts warm, and new upstream answers can be pushed to peer servers (see
+// CachePeers), whose answers come back in through restore().
+public class RecordCache {
+
+    private static final int STRIPES = 64;
+    private static final int MIN_BUCKETS_PER_STRIPE = 16;
+    private static final int ENTRY_OVERHEAD = 128;
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+    // RFC 8767: the TTL of stale answers and the failure recheck timer
+    private static final int STALE_TTL = 30;
+    private static final int REFRESH_RETRY_SECONDS = 30;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final long maxBytesPerStripe;
+    private final int maxTtl;
+    private final int prefetchPercent;
+    private final long staleNanos;
+    private volatile UpstreamMultiplexer upstream; // Set once the multiplexer exists
+    private volatile CachePeers peers;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder negativeHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+    private final LongAdder staleHits = new LongAdder();
+    private final LongAdder prefetches = new LongAdder();
+    private final LongAdder refreshFailures = new LongAdder();
+
+    public RecordCache(long maxBytes, int maxTtl) {
+        this(maxBytes, maxTtl, 0, 0);
+    }
+
+    // prefetchPercent 0 turns prefetching off, staleSeconds 0 serving stale answers
+    public RecordCache(long maxBytes, int maxTtl, int prefetchPercent, int staleSeconds) {
+        if (prefetchPercent < 0 || prefetchPercent > 100) {
+            throw new IllegalArgumentException("Prefetch percentage out of range: " + prefetchPercent);
+        }
+        this.maxBytesPerStripe = Math.max(1, maxBytes / STRIPES);
+        this.maxTtl = maxTtl;
+        this.prefetchPercent = prefetchPercent;
+        this.staleNanos = staleSeconds * NANOS_PER_SECOND;
+        // Assume small entries when sizing the sketches and the hash tables, so chains
+        // stay about one entry long when the cache is full
+        int expectedEntries = (int) Math.min(1 << 20, maxBytesPerStripe / 256);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(expectedEntries);
+        }
+    }
+
+    static final class Entry {
+        final int hash;
+        final DomainName name;   // The question, interned so hot names share it
+        final int type;
+        final int questionClass;
+        final byte[] packet;     // ID zeroed, OPT removed
+        final int[] ttlOffsets;
+        final int[] ttls;        // Original TTL for each offset, already capped
+        final boolean negative;
+        final long storedAt;
+        final long expiresAt;
+        final long prefetchAt;   // Hits from here on refresh the entry
+        long refreshAllowedAt;   // Guarded by the stripe lock, delays a retry after a refresh
+
+        Entry chainNext;
+        Entry newer;
+        Entry older;
+
+        Entry(int hash, DomainName name, int type, int questionClass, byte[] packet, int[] ttlOffsets, int[] ttls,
+              boolean negative, long storedAt, long expiresAt, long prefetchAt) {
+            this.hash = hash;
+            this.name = name;
+            this.type = type;
+            this.questionClass = questionClass;
+            this.packet = packet;
+            this.ttlOffsets = ttlOffsets;
+            this.ttls = ttls;
+            this.negative = negative;
+            this.storedAt = storedAt;
+            this.expiresAt = expiresAt;
+            this.prefetchAt = prefetchAt;
+        }
+
+        int size() {
+            return name.length() + packet.length + ttlOffsets.length * 8 + ENTRY_OVERHEAD;
+        }
+    }
+
+    private final class Stripe {
+        final Entry[] buckets;
+        final int bucketMask;
+        final FrequencySketch sketch;
+        Entry newest;
+        Entry oldest;
+        long bytes;
+
+        Stripe(int expectedEntries) {
+            int bucketCount = Math.max(MIN_BUCKETS_PER_STRIPE,
+                    Integer.highestOneBit(Math.max(1, expectedEntries - 1)) << 1);
+            this.buckets = new Entry[bucketCount];
+            this.bucketMask = bucketCount - 1;
+            this.sketch = new FrequencySketch(expectedEntries);
+        }
+
+        Entry find(int hash, byte[] name, int nameOffset, int type, int questionClass) {
+            for (Entry e = buckets[hash & bucketMask]; e != null; e = e.chainNext) {
+                if (e.hash == hash && e.type == type && e.questionClass == questionClass
+                        && e.name.matches(name, nameOffset)) {
+                    return e;
+                }
+            }
+            return null;
+        }
+
+        void insert(Entry entry, long now) {
+            Entry existing = findKey(entry);
+            if (existing != null) {
+                remove(existing);
+            }
+
+            while (bytes + entry.size() > maxBytesPerStripe && oldest != null) {
+                Entry victim = oldest;
+                if (victim.expiresAt > now && sketch.frequency(entry.hash) <= sketch.frequency(victim.hash)) {
+                    rejections.increment(); // The victim is the more popular of the two
+                    return;
+                }
+                remove(victim);
+                evictions.increment();
+            }
+
+            int bucket = entry.hash & bucketMask;
+            entry.chainNext = buckets[bucket];
+            buckets[bucket] = entry;
+            linkNewest(entry);
+            bytes += entry.size();
+        }
+
+        private Entry findKey(Entry entry) {
+            for (Entry e = buckets[entry.hash & bucketMask]; e != null; e = e.chainNext) {
+                if (e.hash == entry.hash && e.type == entry.type && e.questionClass == entry.questionClass
+                        && e.name.equals(entry.name)) {
+                    return e;
+                }
+            }
+            return null;
+        }
+
+        void remove(Entry entry) {
+            int bucket = entry.hash & bucketMask;
+            if (buckets[bucket] == entry) {
+                buckets[bucket] = entry.chainNext;
+            } else {
+                for (Entry e = buckets[bucket]; e != null; e = e.chainNext) {
+                    if (e.chainNext == entry) {
+                        e.chainNext = entry.chainNext;
+                        break;
+                    }
+                }
+            }
+            unlink(entry);
+            bytes -= entry.size();
+        }
+
+        void touch(Entry entry) {
+            if (newest != entry) {
+                unlink(entry);
+                linkNewest(entry);
+            }
+        }
+
+        private void linkNewest(Entry entry) {
+            entry.older = newest;
+            entry.newer = null;
+            if (newest != null) {
+                newest.newer = entry;
+            }
+            newest = entry;
+            if (oldest == null) {
+                oldest = entry;
+            }
+        }
+
+        private void unlink(Entry entry) {
+            if (entry.newer != null) {
+                entry.newer.older = entry.older;
+            } else {
+                newest = entry.older;
+            }
+            if (entry.older != null) {
+                entry.older.newer = entry.newer;
+            } else {
+                oldest = entry.newer;
+            }
+            entry.newer = null;
+            entry.older = null;
+        }
+    }
+
+    // Lets hits refresh entries through the multiplexer that fills the cache
+    public void setUpstream(UpstreamMultiplexer upstream) {
+        this.upstream = upstream;
+    }
+
+    // Shares every answer put() caches with the peers
+    public void setPeers(CachePeers peers) {
+        this.peers = peers;
+    }
+
+    // Null when the cache isn't shared
+    public CachePeers getPeers() {
+        return peers;
+    }
+
+    // Copies a cached answer for the query into out with TTLs counted down. Returns
+    // the response length, or 0 on a miss (including answers that don't fit).
+    public int get(MessageView query, byte[] name, int nameOffset, byte[] out, int outOffset, int maxLength) {
+        int type = query.getQType();
+        int questionClass = query.getQClass();
+        int hash = hash(name, nameOffset, type, questionClass);
+        long now = System.nanoTime();
+
+        int length;
+        DomainName refresh = null; // The name to resolve again once the lock is released
+        Stripe stripe = stripes[stripeIndex(hash)];
+        synchronized (stripe) {
+            stripe.sketch.increment(hash);
+
+            Entry entry = stripe.find(hash, name, nameOffset, type, questionClass);
+            if (entry == null) {
+                misses.increment();
+                return 0;
+            }
+            boolean stale = now >= entry.expiresAt;
+            if (stale && now - entry.expiresAt >= staleNanos) {
+                stripe.remove(entry);
+                expirations.increment();
+                misses.increment();
+                return 0;
+            }
+            if (entry.packet.length > maxLength) {
+                misses.increment();
+                return 0;
+            }
+            stripe.touch(entry);
+
+            length = entry.packet.length;
+            System.arraycopy(entry.packet, 0, out, outOffset, length);
+            int elapsed = (int) ((now - entry.storedAt) / NANOS_PER_SECOND);
+            for (int i = 0; i < entry.ttlOffsets.length; i++) {
+                int ttl = stale ? STALE_TTL : Math.max(0, entry.ttls[i] - elapsed);
+                putInt(out, outOffset + entry.ttlOffsets[i], ttl);
+            }
+
+            if ((stale || now >= entry.prefetchAt) && now >= entry.refreshAllowedAt) {
+                entry.refreshAllowedAt = now + REFRESH_RETRY_SECONDS * NANOS_PER_SECOND;
+                refresh = entry.name;
+            }
+            if (entry.negative) {
+                negativeHits.increment();
+            }
+            if (stale) {
+                staleHits.increment();
+            }
+            hits.increment();
+        }
+
+        UpstreamMultiplexer refresher = upstream;
+        if (refresh != null && refresher != null) {
+            // The answer reaches the cache through put(), like any other
+            prefetches.increment();
+            refresher.query(refresh, type, questionClass, (response, responseLength) -> {
+                if (responseLength < 0) {
+                    refreshFailures.increment();
+                }
+            });
+        }
+
+        // Patch the ID, the RD bit and the client's spelling of the QNAME
+        int id = query.getID();
+        out[outOffset] = (byte) (id >> 8);
+        out[outOffset + 1] = (byte) id;
+        out[outOffset + 2] = (byte) ((out[outOffset + 2] & ~0x01) | (query.isRD() ? 0x01 : 0));
+        System.arraycopy(name, nameOffset, out, outOffset + MessageView.HEADER_LENGTH, query.getQNameLength());
+        return length;
+    }
+
+    // Caches an upstream response if it is a cacheable positive or negative answer
+    public void put(MessageView response) {
+        if (response.isTC() || response.getQDCOUNT() != 1) {
+            return;
+        }
+        int rcode = response.getRCODE();
+        if (rcode != 0 && rcode != 3) {
+            return; // Only NOERROR and NXDOMAIN are cacheable
+        }
+
+        int answers = response.getANCOUNT();
+        int authority = response.getNSCOUNT();
+        int additional = response.getARCOUNT();
+        int total = answers + authority + additional;
+        boolean negative = rcode == 3 || answers == 0;
+
+        int[] ttlOffsets = new int[total];
+        int[] ttls = new int[total];
+        int ttlCount = 0;
+        int minTtl = maxTtl;
+        boolean sawSoa = false;
+        int keptLength = response.getQuestionEnd();
+        int keptAdditional = 0;
+
+        try {
+            response.getRecordsEnd(); // Indexes the records, malformed responses aren't cached
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+        for (int i = 0; i < total; i++) {
+            int type = response.getRecordType(i);
+            long ttl = response.getRecordTTL(i);
+            int end = response.getRecordEnd(i);
+
+            if (type == Edns.TYPE_OPT) {
+                // The OPT pseudo-record is per hop; drop it and, unless it is last,
+                // the rest of the additional section so no pointer goes stale
+                break;
+            }
+
+            int capped = (int) Math.min(ttl > Integer.MAX_VALUE ? 0 : ttl, maxTtl);
+            if (negative && type == RData.TYPE_SOA && i >= answers && i < answers + authority) {
+                // RFC 2308: negative TTL is min(SOA TTL, SOA MINIMUM)
+                capped = (int) Math.min(capped, response.getInt(end - 4));
+                sawSoa = true;
+            }
+            ttlOffsets[ttlCount] = response.getRecordTTLOffset(i);
+            ttls[ttlCount++] = capped;
+            minTtl = Math.min(minTtl, capped);
+
+            keptLength = end;
+            if (i >= answers + authority) {
+                keptAdditional++;
+            }
+        }
+
+        if (negative && !sawSoa) {
+            return; // RFC 2308: no SOA, no negative caching
+        }
+        if (minTtl <= 0) {
+            return;
+        }
+
+        byte[] packet = new byte[keptLength];
+        for (int i = 0; i < keptLength; i++) {
+            packet[i] = (byte) response.get(i);
+        }
+        packet[0] = 0;
+        packet[1] = 0;
+        packet[2] &= ~0x04; // AA: cached data is never authoritative
+        packet[3] |= (byte) 0x80; // RA
+        packet[10] = (byte) (keptAdditional >> 8);
+        packet[11] = (byte) keptAdditional;
+
+        DomainName name = DomainName.intern(packet, MessageView.HEADER_LENGTH);
+        int qtype = response.getQType();
+        int qclass = response.getQClass();
+        int hash = hash(name.hashCode(), qtype, qclass);
+
+        long now = System.nanoTime();
+        Entry entry = new Entry(hash, name, qtype, qclass, packet,
+                Arrays.copyOf(ttlOffsets, ttlCount), Arrays.copyOf(ttls, ttlCount),
+                negative, now, now + minTtl * NANOS_PER_SECOND, prefetchAt(now, now + minTtl * NANOS_PER_SECOND));
+        insert(entry, now);
+
+        CachePeers sharing = peers;
+        if (sharing != null) {
+            sharing.offer(entry);
+        }
+    }
+
+    // Caches an entry that was cached before, here or by a peer, unless it can't be
+    // served anymore. Returns whether it was cached; throws IllegalArgumentException
+    // when the entry is malformed. The times and TTLs come from a file or the network,
+    // so they get the same maxTtl cap as an upstream answer.
+    boolean restore(byte[] packet, boolean negative, long storedAt, long expiresAt, int[] ttlOffsets, int[] ttls,
+                    long now) {
+        storedAt = Math.min(storedAt, now);
+        expiresAt = Math.min(expiresAt, storedAt + maxTtl * NANOS_PER_SECOND);
+        if (now - expiresAt >= staleNanos && now >= expiresAt) {
+            return false;
+        }
+        try {
+            for (int i = 0; i < ttlOffsets.length; i++) {
+                if (ttlOffsets[i] < MessageView.HEADER_LENGTH || ttlOffsets[i] > packet.length - 4) {
+                    throw new IllegalArgumentException("TTL offset out of range");
+                }
+                ttls[i] = Math.max(0, Math.min(ttls[i], maxTtl));
+            }
+            int questionEnd = MessageView.HEADER_LENGTH + DomainNames.length(packet, MessageView.HEADER_LENGTH) + 4;
+            if (questionEnd > packet.length) {
+                throw new IllegalArgumentException("Truncated question");
+            }
+            DomainName name = DomainName.intern(packet, MessageView.HEADER_LENGTH);
+            int qtype = (packet[questionEnd - 4] & 0xFF) << 8 | packet[questionEnd - 3] & 0xFF;
+            int qclass = (packet[questionEnd - 2] & 0xFF) << 8 | packet[questionEnd - 1] & 0xFF;
+            insert(new Entry(hash(name.hashCode(), qtype, qclass), name, qtype, qclass, packet, ttlOffsets, ttls,
+                    negative, storedAt, expiresAt, prefetchAt(storedAt, expiresAt)), now);
+            return true;
+        } catch (IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Name runs past the packet");
+        }
+    }
+
+    private long prefetchAt(long storedAt, long expiresAt) {
+        return prefetchPercent > 0 ? storedAt + (expiresAt - storedAt) / 100 * (100 - prefetchPercent) : Long.MAX_VALUE;
+    }
+
+    private void insert(Entry entry, long now) {
+        if (entry.size() > maxBytesPerStripe) {
+            return;
+        }
+        Stripe stripe = stripes[stripeIndex(entry.hash)];
+        synchronized (stripe) {
+            stripe.insert(entry, now);
+        }
+    }
+
+    // Writes the entries that can still be served, each stripe oldest first so that
+    // reading them back rebuilds its LRU order. A stripe's lock is only held while
+    // its entries are listed. Times go out as wall clock milliseconds since
+    // nanoTime has no meaning in another process. Returns the number written.
+    //
+    // Entry: packet length (0 ends the list), packet, negative flag, stored at,
+    // expires at, TTL count, then per TTL its offset in the packet and original value
+    int writeTo(DataOutputStream out) throws IOException {
+        long now = System.nanoTime();
+        long wallNow = System.currentTimeMillis();
+        List<Entry> entries = new ArrayList<>();
+        int written = 0;
+        for (Stripe stripe : stripes) {
+            entries.clear();
+            synchronized (stripe) {
+                for (Entry e = stripe.oldest; e != null; e = e.newer) {
+                    if (now - e.expiresAt < staleNanos || now < e.expiresAt) {
+                        entries.add(e);
+                    }
+                }
+            }
+            for (Entry e : entries) {
+                out.writeInt(e.packet.length);
+                out.write(e.packet);
+                out.writeBoolean(e.negative);
+                out.writeLong(wallNow - (now - e.storedAt) / 1_000_000L);
+                out.writeLong(wallNow - (now - e.expiresAt) / 1_000_000L);
+                out.writeShort(e.ttlOffsets.length);
+                for (int i = 0; i < e.ttlOffsets.length; i++) {
+                    out.writeShort(e.ttlOffsets[i]);
+                    out.writeInt(e.ttls[i]);
+                }
+            }
+            written += entries.size();
+        }
+        out.writeInt(0);
+        return written;
+    }
+
+    // Reads entries written by writeTo() one at a time and caches those that can
+    // still be served, through the same admission as put(). Returns the number
+    // cached; throws IllegalArgumentException when the data is malformed.
+    int readFrom(DataInputStream in) throws IOException {
+        long now = System.nanoTime();
+        long wallNow = System.currentTimeMillis();
+        int restored = 0;
+        try {
+            int length;
+            while ((length = in.readInt()) != 0) {
+                if (length < MessageView.HEADER_LENGTH || length > 0xFFFF) {
+                    throw new IllegalArgumentException("Corrupt cache snapshot");
+                }
+                byte[] packet = new byte[length];
+                in.readFully(packet);
+                boolean negative = in.readBoolean();
+                long storedAt = toNanoTime(in.readLong(), wallNow, now);
+                long expiresAt = toNanoTime(in.readLong(), wallNow, now);
+                int[] ttlOffsets = new int[in.readUnsignedShort()];
+                int[] ttls = new int[ttlOffsets.length];
+                for (int i = 0; i < ttlOffsets.length; i++) {
+                    ttlOffsets[i] = in.readUnsignedShort();
+                    ttls[i] = in.readInt();
+                }
+                // Entries that expired while the server was down are skipped
+                if (restore(packet, negative, storedAt, expiresAt, ttlOffsets, ttls, now)) {
+                    restored++;
+                }
+            }
+        } catch (EOFException e) {
+            throw new IllegalArgumentException("Truncated cache snapshot");
+        }
+        return restored;
+    }
+
+    // The nanoTime of a wall clock time from a snapshot. No real one is so far off
+    // that the conversion overflows, so such a time means the file is corrupt.
+    private static long toNanoTime(long wallMillis, long wallNow, long now) {
+        try {
+            return Math.subtractExact(now, Math.multiplyExact(Math.subtractExact(wallNow, wallMillis), 1_000_000L));
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("Corrupt cache snapshot");
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getNegativeHits() {
+        return negativeHits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getExpirations() {
+        return expirations.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getRejections() {
+        return rejections.sum();
+    }
+
+    // Hits answered from expired entries, also counted in getHits()
+    public long getStaleHits() {
+        return staleHits.sum();
+    }
+
+    // Background refreshes started by hits near or past expiry
+    public long getPrefetches() {
+        return prefetches.sum();
+    }
+
+    public long getRefreshFailures() {
+        return refreshFailures.sum();
+    }
+
+    private static int stripeIndex(int hash) {
+        return (hash >>> 26) & (STRIPES - 1);
+    }
+
+    private static int hash(byte[] name, int nameOffset, int type, int questionClass) {
+        return hash(DomainNames.hash(name, nameOffset), type, questionClass);
+    }
+
+    // nameHash is DomainNames.hash, which a DomainName caches
+    private static int hash(int nameHash, int type, int questionClass) {
+        int h = nameHash;
+        h = h * 31 + type;
+        h = h * 31 + questionClass;
+        return h ^ (h >>> 15);
+    }
+
+    private static void putInt(byte[] out, int offset, int value) {
+        out[offset] = (byte) (value >> 24);
+        out[offset + 1] = (byte) (value >> 16);
+        out[offset + 2] = (byte) (value >> 8);
+        out[offset + 3] = (byte) value;
+    }
+}
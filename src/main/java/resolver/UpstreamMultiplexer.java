@@ -0,0 +1,683 @@
+package resolver;
+
+import dataTypes.DomainName;
+import dataTypes.Edns;
+import dataTypes.MessageView;
+import dataTypes.UDPMessage;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+// Non-blocking upstream client shared by all workers. Queries go out over a small
+// set of NIO datagram channels, each bound to its own OS-chosen ephemeral port, and
+// are driven by one selector thread. Every send picks a random channel and a random
+// ID that is free on it, so a reply is matched through the (channel, ID) table and
+// then checked against the upstream it was sent to and the question asked.
+//
+// A spoofed answer has to guess the ID and the port. With a fixed set of sockets the
+// ports would be fixed too, so each socket is replaced by one on a fresh random port
+// after SENDS_PER_SOCKET sends. The old socket stays open until the last query sent
+// on it has timed out, then it is closed. A port is therefore only good for a few
+// hundred queries, at the cost of one bind per SENDS_PER_SOCKET sends. A fresh port
+// for every query would be stronger but costs a bind and a selector registration
+// per query. At most MAX_RETIRED_SOCKETS wait to be closed; past that the oldest is
+// closed early, and queries still unanswered on it are resent when they time out.
+//
+// Identical concurrent misses are coalesced: while a question is in flight, later
+// callers with the same (case-insensitive) question are added as waiters and all of
+// them are completed by the one upstream answer.
+//
+// A query that isn't answered within the timeout is resent to the next upstream,
+// on a new channel and ID, until the attempts run out.
+//
+// A truncated (TC) answer is asked again over TCP, from the same upstream and within
+// the same attempt, on a connection driven by the same selector. Should that fail
+// too, the next attempt starts over on UDP, and when the attempts run out the
+// truncated answer is passed on rather than a failure.
+public class UpstreamMultiplexer implements AutoCloseable {
+
+    // Receives the upstream answer for one waiting caller, or length -1 when no
+    // upstream answered. Runs on the multiplexer thread, so it must not block.
+    public interface Callback {
+        void complete(byte[] response, int length);
+    }
+
+    private static final int MAX_RESPONSE = 65535;
+    private static final int UPSTREAM_PAYLOAD = 1232; // Advertised in our OPT record
+    private static final int ID_ATTEMPTS = 16;
+    private static final int SENDS_PER_SOCKET = 256;
+    private static final int MAX_RETIRED_SOCKETS = 64;
+
+    private final List<InetSocketAddress> upstreams;
+    private final int socketCount;
+    private final long timeoutNanos;
+    private final int attempts;
+    private final Consumer<MessageView> listener; // Sees each upstream answer once, may be null
+
+    private final ConcurrentHashMap<Key, InFlight> inFlight = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<InFlight> submitted = new ConcurrentLinkedQueue<>();
+
+    // Only touched by the multiplexer thread
+    private final SecureRandom random = new SecureRandom();
+    private final ArrayDeque<Timeout> timeouts = new ArrayDeque<>();
+    private final ByteBuffer received = ByteBuffer.allocateDirect(MAX_RESPONSE);
+    private final MessageView reply = new MessageView();
+    private UpstreamSocket[] sockets;
+    private final ArrayDeque<UpstreamSocket> retired = new ArrayDeque<>(); // Ordered by closeAt
+    private int nextUpstream;
+
+    private Selector selector;
+    private Thread thread;
+    private volatile boolean running;
+
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder mismatched = new LongAdder();
+    private final LongAdder rotations = new LongAdder();
+    private final LongAdder tcpRetries = new LongAdder();
+
+    public UpstreamMultiplexer(List<InetSocketAddress> upstreams, int sockets, int timeoutMillis,
+                               int attempts, Consumer<MessageView> listener) {
+        if (upstreams.isEmpty()) {
+            throw new IllegalArgumentException("At least one upstream is required");
+        }
+        if (sockets < 1) {
+            throw new IllegalArgumentException("At least one upstream socket is required");
+        }
+        this.upstreams = List.copyOf(upstreams);
+        this.socketCount = sockets;
+        this.timeoutNanos = timeoutMillis * 1_000_000L;
+        this.attempts = attempts;
+        this.listener = listener;
+    }
+
+    // The coalescing key; the name is canonical, so any spelling of it matches
+    private record Key(DomainName name, int type, int questionClass) {
+    }
+
+    private static final class InFlight {
+        final Key key;
+        final byte[] query;
+        final List<Callback> waiters = new ArrayList<>(1); // Only changed under the map's key lock
+
+        // Multiplexer thread state
+        int attempt;
+        int sequence; // Bumped on every send, so only the latest Timeout counts
+        int firstUpstream = -1;
+        UpstreamSocket socket;
+        int id;
+        InetSocketAddress upstream;
+        TcpExchange tcp;   // While the query is asked over TCP
+        byte[] truncated;  // The last TC answer, used when every attempt fails
+        boolean done;
+
+        InFlight(Key key, byte[] query) {
+            this.key = key;
+            this.query = query;
+        }
+    }
+
+    private record Timeout(InFlight flight, int sequence, long deadline) {
+    }
+
+    // One query over TCP: the length-prefixed query is written, then the two-byte
+    // length of the answer is read and then the answer itself
+    private static final class TcpExchange {
+        final InFlight flight;
+        final SocketChannel channel;
+        final ByteBuffer out;
+        ByteBuffer in = ByteBuffer.allocate(2);
+        boolean lengthRead;
+
+        TcpExchange(InFlight flight, SocketChannel channel) {
+            this.flight = flight;
+            this.channel = channel;
+            this.out = ByteBuffer.allocate(2 + flight.query.length);
+            out.putShort((short) flight.query.length).put(flight.query).flip();
+        }
+    }
+
+    // A channel and the queries waiting for an answer on it. A socket carries at most
+    // SENDS_PER_SOCKET queries, so their IDs go in a small open-addressing table rather
+    // than a slot per possible ID. IDs are random, so the low bits spread them. An ID
+    // is never reused on a socket and keeps its slot after the answer, so the table is
+    // at most half full and every probe ends.
+    private static final class UpstreamSocket {
+        static final int TABLE_SIZE = 2 * SENDS_PER_SOCKET; // A power of two
+
+        final DatagramChannel channel;
+        final int[] ids = new int[TABLE_SIZE]; // -1 where unused
+        final InFlight[] pending = new InFlight[TABLE_SIZE];
+        int sends;
+        long closeAt; // Once retired
+
+        UpstreamSocket(DatagramChannel channel) {
+            this.channel = channel;
+            Arrays.fill(ids, -1);
+        }
+
+        // The slot holding the ID, or the unused slot it would go in
+        private int slot(int id) {
+            int slot = id & (TABLE_SIZE - 1);
+            while (ids[slot] != -1 && ids[slot] != id) {
+                slot = (slot + 1) & (TABLE_SIZE - 1);
+            }
+            return slot;
+        }
+
+        boolean isUsed(int id) {
+            return ids[slot(id)] == id;
+        }
+
+        void put(int id, InFlight flight) {
+            int slot = slot(id);
+            ids[slot] = id;
+            pending[slot] = flight;
+            sends++;
+        }
+
+        InFlight get(int id) {
+            int slot = slot(id);
+            return ids[slot] == id ? pending[slot] : null;
+        }
+
+        void remove(int id) {
+            int slot = slot(id);
+            if (ids[slot] == id) {
+                pending[slot] = null; // The ID stays, it isn't reused
+            }
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+
+    public void start() throws IOException {
+        selector = Selector.open();
+        sockets = new UpstreamSocket[socketCount];
+        for (int i = 0; i < socketCount; i++) {
+            sockets[i] = openSocket();
+        }
+
+        running = true;
+        thread = new Thread(this::run, "dns-upstream");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Resolves the question upstream and completes the callback with the answer.
+    // Joins an identical query that is already in flight instead of sending another.
+    public void query(byte[] name, int nameOffset, int type, int questionClass, Callback callback) {
+        query(DomainName.intern(name, nameOffset), type, questionClass, callback);
+    }
+
+    public void query(DomainName name, int type, int questionClass, Callback callback) {
+        queries.increment();
+        Key key = new Key(name, type, questionClass);
+
+        InFlight[] created = new InFlight[1];
+        InFlight flight = inFlight.compute(key, (k, existing) -> {
+            InFlight f = existing;
+            if (f == null) {
+                f = new InFlight(k, encodeQuery(k));
+                created[0] = f;
+            }
+            f.waiters.add(callback);
+            return f;
+        });
+        if (flight != created[0]) {
+            coalesced.increment();
+            return;
+        }
+        if (!running) {
+            complete(flight, null, -1);
+            return;
+        }
+        submitted.add(flight);
+        selector.wakeup();
+        // close() may have drained the queue between the check and the add. Whoever
+        // takes the flight out of the queue completes it, so it is completed once.
+        if (!running && submitted.remove(flight)) {
+            complete(flight, null, -1);
+        }
+    }
+
+    private UpstreamSocket openSocket() throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            channel.bind(null); // Ephemeral port picked (and randomized) by the OS
+            channel.configureBlocking(false);
+            UpstreamSocket socket = new UpstreamSocket(channel);
+            channel.register(selector, SelectionKey.OP_READ, socket);
+            return socket;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // Swaps the socket for one on a new port. Answers to queries already sent on the
+    // old one are still received until they have all timed out. Returns false when
+    // no new socket could be opened.
+    private boolean rotate(int index) {
+        UpstreamSocket fresh;
+        try {
+            fresh = openSocket();
+        } catch (IOException e) {
+            System.out.println("Upstream socket not rotated: " + e.getMessage());
+            return false;
+        }
+        if (retired.size() == MAX_RETIRED_SOCKETS) {
+            retired.pollFirst().close(); // Early, late answers on it are lost
+        }
+        UpstreamSocket old = sockets[index];
+        old.closeAt = System.nanoTime() + timeoutNanos; // After the last deadline on it
+        retired.addLast(old);
+        sockets[index] = fresh;
+        rotations.increment();
+        return true;
+    }
+
+    // By closeAt every query sent on a retired socket has been answered or timed out
+    private void closeRetired(long now) {
+        while (!retired.isEmpty() && retired.peekFirst().closeAt <= now) {
+            retired.pollFirst().close();
+        }
+    }
+
+    // The name is already in wire format, so the question is copied as is. Every
+    // query carries an EDNS(0) OPT record.
+    private static byte[] encodeQuery(Key key) {
+        byte[] header = UDPMessage.createUDPHeader(0, false, (byte) 0, false, false, true, false,
+                (byte) 0, (byte) 0, 1, 0, 0, 0);
+        int questionEnd = header.length + key.name().length() + 4;
+        byte[] query = Arrays.copyOf(header, questionEnd + Edns.OPT_LENGTH);
+        int pos = header.length + key.name().copyTo(query, header.length);
+        query[pos] = (byte) (key.type() >> 8);
+        query[pos + 1] = (byte) key.type();
+        query[pos + 2] = (byte) (key.questionClass() >> 8);
+        query[pos + 3] = (byte) key.questionClass();
+        // Ask for large answers in one datagram instead of a TC reply
+        Edns.appendOpt(query, 0, questionEnd, UPSTREAM_PAYLOAD, 0, false);
+        return query;
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                selector.select(nextTimeoutMillis());
+
+                InFlight flight;
+                while ((flight = submitted.poll()) != null) {
+                    send(flight);
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.attachment() instanceof TcpExchange exchange) {
+                        exchange(exchange, key);
+                    } else if (key.isReadable()) {
+                        receive((UpstreamSocket) key.attachment());
+                    }
+                }
+
+                long now = System.nanoTime();
+                expire(now);
+                closeRetired(now);
+            } catch (IOException e) {
+                if (running) {
+                    System.out.println("Upstream I/O error: " + e.getMessage());
+                }
+            }
+        }
+
+        // Nobody will answer the rest
+        InFlight flight;
+        while ((flight = submitted.poll()) != null) {
+            complete(flight, null, -1);
+        }
+        for (Timeout timeout : timeouts) {
+            if (!timeout.flight().done) {
+                timeout.flight().done = true;
+                closeTcp(timeout.flight());
+                complete(timeout.flight(), null, -1);
+            }
+        }
+        timeouts.clear();
+    }
+
+    // 0 blocks until woken up, otherwise wait no longer than the earliest deadline
+    // or the next retired socket to close
+    private long nextTimeoutMillis() {
+        Timeout first = timeouts.peekFirst();
+        UpstreamSocket retiring = retired.peekFirst();
+        if (first == null && retiring == null) {
+            return 0;
+        }
+        long due = first == null ? retiring.closeAt
+                : retiring == null ? first.deadline() : Math.min(first.deadline(), retiring.closeAt);
+        return Math.max(1, (due - System.nanoTime() + 999_999) / 1_000_000);
+    }
+
+    private void send(InFlight flight) {
+        int index = random.nextInt(sockets.length);
+        if (sockets[index].sends >= SENDS_PER_SOCKET && !rotate(index)) {
+            fail(flight); // The socket's table is full and there is no new one
+            return;
+        }
+        UpstreamSocket socket = sockets[index];
+        int id = -1;
+        for (int i = 0; i < ID_ATTEMPTS; i++) {
+            int candidate = random.nextInt(0x10000);
+            if (!socket.isUsed(candidate)) {
+                id = candidate;
+                break;
+            }
+        }
+        if (id < 0) {
+            fail(flight); // Never with a few hundred of 65536 IDs used, but don't reuse one
+            return;
+        }
+
+        if (flight.firstUpstream < 0) {
+            flight.firstUpstream = nextUpstream;
+            nextUpstream = (nextUpstream + 1) % upstreams.size();
+        }
+        flight.socket = socket;
+        flight.id = id;
+        flight.upstream = upstreams.get((flight.firstUpstream + flight.attempt) % upstreams.size());
+        flight.query[0] = (byte) (id >> 8);
+        flight.query[1] = (byte) id;
+        socket.put(id, flight);
+
+        try {
+            socket.channel.send(ByteBuffer.wrap(flight.query), flight.upstream);
+        } catch (IOException e) {
+            // Treated like a lost packet, the timeout moves on to the next upstream
+        }
+        addTimeout(flight);
+    }
+
+    // Every query uses the same timeout, so the deque stays ordered by deadline
+    private void addTimeout(InFlight flight) {
+        timeouts.addLast(new Timeout(flight, ++flight.sequence, System.nanoTime() + timeoutNanos));
+    }
+
+    // Asks the upstream that sent a truncated answer again over TCP, with a fresh timeout
+    private void sendTcp(InFlight flight, byte[] truncated) {
+        tcpRetries.increment();
+        flight.truncated = truncated;
+        addTimeout(flight);
+        try {
+            SocketChannel channel = SocketChannel.open();
+            flight.tcp = new TcpExchange(flight, channel);
+            channel.configureBlocking(false);
+            boolean connected = channel.connect(flight.upstream);
+            channel.register(selector, connected ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT, flight.tcp);
+        } catch (IOException e) {
+            closeTcp(flight); // Left to the timeout, like a lost packet
+        }
+    }
+
+    private void exchange(TcpExchange exchange, SelectionKey key) {
+        SocketChannel channel = exchange.channel;
+        try {
+            if (key.isConnectable() && channel.finishConnect()) {
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+            if (key.isWritable()) {
+                channel.write(exchange.out);
+                if (!exchange.out.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            }
+            if (key.isReadable()) {
+                while (true) {
+                    if (channel.read(exchange.in) < 0) {
+                        throw new EOFException("Upstream closed the connection");
+                    }
+                    if (exchange.in.hasRemaining()) {
+                        return; // The rest comes later
+                    }
+                    if (exchange.lengthRead) {
+                        break;
+                    }
+                    exchange.lengthRead = true;
+                    exchange.in = ByteBuffer.allocate(exchange.in.getShort(0) & 0xFFFF);
+                }
+            }
+        } catch (IOException e) {
+            closeTcp(exchange.flight); // Left to the timeout, like a lost packet
+            return;
+        }
+        if (!exchange.lengthRead || exchange.in.hasRemaining()) {
+            return;
+        }
+
+        InFlight flight = exchange.flight;
+        closeTcp(flight);
+        byte[] data = exchange.in.array();
+        if (data.length < MessageView.HEADER_LENGTH || ((data[0] & 0xFF) << 8 | (data[1] & 0xFF)) != flight.id
+                || !isAnswerTo(data, flight)) {
+            mismatched.increment();
+            return; // Left to the timeout
+        }
+        deliver(flight, data);
+    }
+
+    private void closeTcp(InFlight flight) {
+        if (flight.tcp == null) {
+            return;
+        }
+        try {
+            flight.tcp.channel.close(); // Cancels its key
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        flight.tcp = null;
+    }
+
+    private void receive(UpstreamSocket socket) throws IOException {
+        while (true) {
+            received.clear();
+            Object source = socket.channel.receive(received);
+            if (source == null) {
+                return;
+            }
+            received.flip();
+            if (received.remaining() < MessageView.HEADER_LENGTH) {
+                mismatched.increment();
+                continue;
+            }
+
+            int id = received.getShort(0) & 0xFFFF;
+            InFlight flight = socket.get(id);
+            if (flight == null || !flight.upstream.equals(source)) {
+                mismatched.increment(); // Late, spoofed or from the wrong server
+                continue;
+            }
+
+            byte[] data = new byte[received.remaining()];
+            received.get(data);
+            if (!isAnswerTo(data, flight)) {
+                mismatched.increment();
+                continue;
+            }
+
+            socket.remove(id);
+            if (reply.isTC()) {
+                sendTcp(flight, data);
+                continue;
+            }
+            deliver(flight, data);
+        }
+    }
+
+    // The answer is in reply
+    private void deliver(InFlight flight, byte[] data) {
+        flight.done = true;
+        if (listener != null) {
+            try {
+                listener.accept(reply);
+            } catch (RuntimeException e) {
+                System.out.println("Upstream listener failed: " + e);
+            }
+        }
+        complete(flight, data, data.length);
+    }
+
+    private boolean isAnswerTo(byte[] data, InFlight flight) {
+        try {
+            reply.reset(data, 0, data.length);
+            if (!reply.isQR() || reply.getQDCOUNT() != 1) {
+                return false;
+            }
+            Key key = flight.key;
+            return reply.getQNameLength() == key.name().length()
+                    && reply.getQType() == key.type()
+                    && reply.getQClass() == key.questionClass()
+                    && key.name().matches(data, reply.getQNameOffset());
+        } catch (IllegalArgumentException e) {
+            return false; // Malformed reply
+        }
+    }
+
+    private void expire(long now) {
+        while (!timeouts.isEmpty() && timeouts.peekFirst().deadline() <= now) {
+            Timeout timeout = timeouts.pollFirst();
+            InFlight flight = timeout.flight();
+            if (flight.done || flight.sequence != timeout.sequence()) {
+                continue; // Answered or already resent
+            }
+
+            if (flight.tcp != null) {
+                closeTcp(flight);
+            } else {
+                flight.socket.remove(flight.id);
+            }
+            if (++flight.attempt < attempts) {
+                retries.increment();
+                send(flight);
+            } else {
+                fail(flight);
+            }
+        }
+    }
+
+    private void fail(InFlight flight) {
+        flight.done = true;
+        failures.increment();
+        if (flight.truncated != null) {
+            complete(flight, flight.truncated, flight.truncated.length); // Better than nothing
+        } else {
+            complete(flight, null, -1);
+        }
+    }
+
+    private void complete(InFlight flight, byte[] response, int length) {
+        // Once removed no caller can join, so the waiter list is final
+        inFlight.remove(flight.key, flight);
+        for (Callback waiter : flight.waiters) {
+            try {
+                waiter.complete(response, length);
+            } catch (RuntimeException e) {
+                System.out.println("Failed to deliver upstream answer: " + e);
+            }
+        }
+    }
+
+    public long getQueries() {
+        return queries.sum();
+    }
+
+    // Callers that joined a query already in flight
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    // Replies that matched no pending query
+    public long getMismatched() {
+        return mismatched.sum();
+    }
+
+    // Truncated answers asked again over TCP
+    public long getTcpRetries() {
+        return tcpRetries.sum();
+    }
+
+    // Sockets replaced by one on a new port
+    public long getSocketRotations() {
+        return rotations.sum();
+    }
+
+    // The longest a callback can take: every attempt timing out, plus one timeout of slack
+    public long getMaxWaitMillis() {
+        return (attempts + 1) * timeoutNanos / 1_000_000L;
+    }
+
+    public int getInFlight() {
+        return inFlight.size();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        if (selector == null) {
+            return;
+        }
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<UpstreamSocket> open = new ArrayList<>(retired);
+        open.addAll(Arrays.asList(sockets));
+        for (UpstreamSocket socket : open) {
+            if (socket != null) { // Unless start() failed before opening it
+                socket.close();
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package server;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+// A UDP socket that moves many datagrams per system call: recvmmsg and sendmmsg on
+// Linux. The implementation, MmsgSocket, calls them through the Foreign Function &
+// Memory API, which is a preview API in Java 21. It therefore lives in src/ffm/java
+// and is only compiled by the ffm profile, as preview class files, while the rest
+// of the server stays plain Java 21. open() loads it by name and reports why when
+// it can't run, so the caller can fall back to a DatagramChannel.
+interface BatchSocket extends AutoCloseable {
+
+    String IMPLEMENTATION = "server.MmsgSocket";
+
+    // Waits for datagrams, but no longer than about 100 ms so the caller can check
+    // whether to stop. Fills requests (cleared, then flipped) and clients from index
+    // 0 and returns how many arrived, 0 when none did.
+    int receive(ByteBuffer[] requests, InetSocketAddress[] clients) throws IOException;
+
+    // Sends responses[i] to clients[i] for each i below count whose client isn't
+    // null, as few system calls as it takes. sent[i] tells whether it went out.
+    void send(ByteBuffer[] responses, InetSocketAddress[] clients, boolean[] sent, int count) throws IOException;
+
+    // One datagram, from any thread
+    void send(ByteBuffer response, InetSocketAddress client) throws IOException;
+
+    InetSocketAddress getLocalAddress() throws IOException;
+
+    @Override
+    void close();
+
+    // Binds a new socket, with SO_REUSEPORT, that moves up to batchSize datagrams of
+    // up to maxPayload bytes per call. Throws UnsupportedOperationException with the
+    // reason when the implementation isn't built or can't run here.
+    static BatchSocket open(InetSocketAddress address, int batchSize, int maxPayload) throws IOException {
+        Class<?> implementation;
+        try {
+            implementation = Class.forName(IMPLEMENTATION);
+        } catch (ClassNotFoundException e) {
+            throw new UnsupportedOperationException("not built, package with -P ffm");
+        } catch (UnsupportedClassVersionError e) {
+            throw new UnsupportedOperationException("needs the Java 21 it was built for, run with --enable-preview");
+        }
+        try {
+            return (BatchSocket) implementation.getDeclaredConstructor(InetSocketAddress.class, int.class, int.class)
+                    .newInstance(address, batchSize, maxPayload);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException cause) {
+                throw cause;
+            }
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause; // UnsupportedOperationException when not on Linux
+            }
+            throw new UnsupportedOperationException(String.valueOf(e.getCause()));
+        } catch (ReflectiveOperationException | LinkageError e) {
+            throw new UnsupportedOperationException(e.toString());
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package server;
+
+// How received datagrams are turned into handled queries
+public enum ExecutionMode {
+
+    // The original loop: one thread receives and handles every query in turn
+    SINGLE,
+
+    // A fixed set of platform threads, each receiving and handling on its own socket
+    WORKERS,
+
+    // Receive threads hand every datagram to a new virtual thread, so slow paths
+    // (upstream lookups) may simply block
+    VIRTUAL;
+
+    static ExecutionMode parse(String value) {
+        for (ExecutionMode mode : values()) {
+            if (mode.name().equalsIgnoreCase(value)) {
+                return mode;
+            }
+        }
+        throw new IllegalArgumentException("Unknown mode: " + value + " (expected single, workers or virtual)");
+    }
+}
@@ -0,0 +1,49 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Admission control on queue sojourn time, after CoDel as used for server request
+// queues. Each query is judged by how long it waited between being received and a
+// thread picking it up. While the queue is healthy a query may wait up to a whole
+// interval. When even the shortest wait of an interval stayed above the target,
+// the queue has a standing backlog and the next interval admits only queries that
+// waited less than the target; the rest are shed, so the ones that do get answered
+// are still fresh for the client and the backlog drains instead of growing.
+//
+// Shared by all threads: the per-query path reads a flag and at most lowers the
+// interval minimum with a plain write, so two racing updates can lose one sample.
+public class LoadShedder {
+
+    private final long targetNanos;
+    private final long intervalNanos;
+
+    private final AtomicLong intervalEnd;
+    private volatile long minSojourn = Long.MAX_VALUE;
+    private volatile boolean overloaded;
+
+    public LoadShedder(long targetNanos, long intervalNanos) {
+        if (targetNanos <= 0 || intervalNanos < targetNanos) {
+            throw new IllegalArgumentException("The interval must be positive and at least the target");
+        }
+        this.targetNanos = targetNanos;
+        this.intervalNanos = intervalNanos;
+        this.intervalEnd = new AtomicLong(System.nanoTime() + intervalNanos);
+    }
+
+    // Whether a query that waited sojournNanos should still be handled
+    public boolean admit(long sojournNanos, long now) {
+        if (sojournNanos < minSojourn) {
+            minSojourn = sojournNanos;
+        }
+        long end = intervalEnd.get();
+        if (now >= end && intervalEnd.compareAndSet(end, now + intervalNanos)) {
+            overloaded = minSojourn > targetNanos;
+            minSojourn = Long.MAX_VALUE;
+        }
+        return sojournNanos <= (overloaded ? targetNanos : intervalNanos);
+    }
+
+    public boolean isOverloaded() {
+        return overloaded;
+    }
+}
@@ -0,0 +1,139 @@
+package server;
+
+import cache.ResponseCache;
+import dataTypes.UDPQuestion;
+import metrics.PrometheusText;
+import metrics.ServerMetrics;
+import policy.ResponsePolicy;
+import querylog.QueryLog;
+import ratelimit.ResponseRateLimiter;
+import resolver.CachePeers;
+import resolver.RecordCache;
+import resolver.UpstreamMultiplexer;
+
+// Renders the server's counters in Prometheus text format for the metrics endpoint
+public final class MetricsReport {
+
+    private static final String[] RCODES = {
+            "NOERROR", "FORMERR", "SERVFAIL", "NXDOMAIN", "NOTIMP", "REFUSED", "YXDOMAIN", "YXRRSET",
+            "NXRRSET", "NOTAUTH", "NOTZONE", "RCODE11", "RCODE12", "RCODE13", "RCODE14", "RCODE15"
+    };
+
+    private MetricsReport() {
+    }
+
+    public static String render(ServerContext context) {
+        ServerMetrics metrics = context.getMetrics();
+        PrometheusText text = new PrometheusText();
+
+        for (int type = 0; type <= ServerMetrics.MAX_TRACKED_TYPE + 1; type++) {
+            long count = metrics.getQueries(type);
+            if (count > 0) {
+                String name = type > ServerMetrics.MAX_TRACKED_TYPE ? "other" : UDPQuestion.getTypeString(type);
+                text.counter("dns_queries_total", "Queries received by QTYPE.", "qtype", name, count);
+            }
+        }
+        for (int rcode = 0; rcode < RCODES.length; rcode++) {
+            long count = metrics.getResponses(rcode);
+            if (count > 0) {
+                text.counter("dns_responses_total", "Responses sent by RCODE.", "rcode", RCODES[rcode], count);
+            }
+        }
+        text.counter("dns_dropped_total", "Queries that got no response.", metrics.getDropped())
+                .counter("dns_malformed_total", "Packets that could not be parsed.", metrics.getMalformed())
+                .counter("dns_truncated_total", "Responses sent with the TC bit.", metrics.getTruncated())
+                .counter("dns_shed_total", "Queries shed because they waited too long.", metrics.getShed())
+                .counter("dns_tcp_connections_accepted_total", "TCP connections accepted.", metrics.getTcpAccepted())
+                .counter("dns_tcp_connections_closed_total", "TCP connections closed.", metrics.getTcpClosed())
+                .counter("dns_tcp_connections_rejected_total", "TCP connections refused at the connection limit.",
+                        metrics.getTcpRejected())
+                .counter("dns_tcp_idle_timeouts_total", "TCP connections closed after the idle timeout.",
+                        metrics.getTcpIdleClosed())
+                .histogram("dns_request_duration_seconds",
+                        "Time from receiving a query to sending the answer.", metrics.getLatency());
+
+        ResponseCache responseCache = context.getResponseCache();
+        if (responseCache != null) {
+            text.counter("dns_response_cache_hits_total", "Response cache hits.", responseCache.getHits())
+                    .counter("dns_response_cache_misses_total", "Response cache misses.", responseCache.getMisses())
+                    .counter("dns_response_cache_evictions_total", "Response cache evictions.",
+                            responseCache.getEvictions());
+        }
+
+        RecordCache recordCache = context.getRecordCache();
+        if (recordCache != null) {
+            text.counter("dns_record_cache_hits_total", "Record cache hits.", recordCache.getHits())
+                    .counter("dns_record_cache_negative_hits_total", "Record cache hits on NXDOMAIN or NODATA.",
+                            recordCache.getNegativeHits())
+                    .counter("dns_record_cache_misses_total", "Record cache misses.", recordCache.getMisses())
+                    .counter("dns_record_cache_expirations_total", "Entries dropped because their TTL ran out.",
+                            recordCache.getExpirations())
+                    .counter("dns_record_cache_evictions_total", "Entries evicted for space.",
+                            recordCache.getEvictions())
+                    .counter("dns_record_cache_rejections_total", "New entries refused by TinyLFU admission.",
+                            recordCache.getRejections())
+                    .counter("dns_record_cache_stale_hits_total", "Hits answered from expired entries (RFC 8767).",
+                            recordCache.getStaleHits())
+                    .counter("dns_record_cache_prefetches_total", "Background refreshes of entries near or past expiry.",
+                            recordCache.getPrefetches())
+                    .counter("dns_record_cache_refresh_failures_total", "Background refreshes no upstream answered.",
+                            recordCache.getRefreshFailures());
+            CachePeers peers = recordCache.getPeers();
+            if (peers != null) {
+                text.counter("dns_cache_peer_sent_total", "Cached answers pushed to peers, once per peer.",
+                                peers.getSent())
+                        .counter("dns_cache_peer_received_total", "Answers from peers that were cached.",
+                                peers.getReceived())
+                        .counter("dns_cache_peer_dropped_total", "Cached answers that couldn't be pushed.",
+                                peers.getDropped())
+                        .counter("dns_cache_peer_rejected_total", "Peer datagrams from unknown senders or malformed.",
+                                peers.getRejected());
+            }
+        }
+
+        UpstreamMultiplexer upstream = context.getUpstream();
+        if (upstream != null) {
+            text.counter("dns_upstream_queries_total", "Cache misses sent upstream.", upstream.getQueries())
+                    .counter("dns_upstream_coalesced_total", "Misses that joined a query already in flight.",
+                            upstream.getCoalesced())
+                    .counter("dns_upstream_retries_total", "Upstream queries resent after a timeout.",
+                            upstream.getRetries())
+                    .counter("dns_upstream_failures_total", "Upstream queries that ran out of attempts.",
+                            upstream.getFailures())
+                    .counter("dns_upstream_mismatched_total", "Upstream replies that matched no query.",
+                            upstream.getMismatched())
+                    .counter("dns_upstream_tcp_retries_total", "Truncated upstream answers asked again over TCP.",
+                            upstream.getTcpRetries())
+                    .counter("dns_upstream_socket_rotations_total", "Upstream sockets moved to a new port.",
+                            upstream.getSocketRotations())
+                    .gauge("dns_upstream_in_flight", "Distinct questions waiting for an upstream.",
+                            upstream.getInFlight())
+                    .histogram("dns_upstream_duration_seconds",
+                            "Time from receiving a forwarded query to sending the upstream answer.",
+                            metrics.getUpstreamLatency());
+        }
+        ResponseRateLimiter rateLimiter = context.getRateLimiter();
+        if (rateLimiter != null) {
+            text.counter("dns_rrl_dropped_total", "UDP responses dropped by rate limiting.", rateLimiter.getDropped())
+                    .counter("dns_rrl_slipped_total", "Rate limited UDP responses sent truncated instead.",
+                            rateLimiter.getSlipped());
+        }
+        ResponsePolicy policy = context.getPolicy();
+        if (policy != null) {
+            String help = "Queries matched by a response policy rule, by action.";
+            text.counter("dns_policy_hits_total", help, "action", "nxdomain", policy.getHits(ResponsePolicy.NXDOMAIN))
+                    .counter("dns_policy_hits_total", help, "action", "nodata", policy.getHits(ResponsePolicy.NODATA))
+                    .counter("dns_policy_hits_total", help, "action", "passthru",
+                            policy.getHits(ResponsePolicy.PASSTHRU))
+                    .counter("dns_policy_hits_total", help, "action", "rewrite",
+                            policy.getHits(ResponsePolicy.REWRITE));
+        }
+        QueryLog queryLog = context.getQueryLog();
+        if (queryLog != null) {
+            text.counter("dns_query_log_written_total", "Records written to the query log.", queryLog.getWritten())
+                    .counter("dns_query_log_dropped_total", "Records dropped because the log fell behind.",
+                            queryLog.getDropped());
+        }
+        return text.toString();
+    }
+}
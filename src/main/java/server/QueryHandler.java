@@ -0,0 +1,16 @@
+package server;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+public interface QueryHandler {
+
+    // Returned by handle() when the answer will be sent later through the Responder
+    int DEFERRED = -1;
+
+    // Handles one query. The request buffer is flipped (position 0, limit = packet length)
+    // and the response buffer is cleared. Returns the number of response bytes written
+    // from index 0, 0 when nothing should be sent back, or DEFERRED when the handler
+    // keeps what it needs and answers later through the responder.
+    int handle(ByteBuffer request, ByteBuffer response, InetSocketAddress client, Responder responder);
+}
@@ -0,0 +1,402 @@
+package server;
+
+import cache.ResponseCache;
+import dataTypes.DomainNames;
+import dataTypes.Edns;
+import dataTypes.MessageView;
+import dataTypes.ResponseWriter;
+import dataTypes.UDPMessage;
+import dataTypes.RData;
+import metrics.ServerMetrics;
+import policy.ResponsePolicy;
+import querylog.QueryLog;
+import querylog.QueryLogFormat;
+import ratelimit.ResponseRateLimiter;
+import resolver.RecordCache;
+import resolver.UpstreamMultiplexer;
+import zone.ZoneLookup;
+import zone.ZoneSource;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// Not thread-safe: holds per-packet scratch state, so each worker owns one
+public class QueryProcessor implements QueryHandler {
+
+    private static final byte RCODE_FORMERR = 1;
+    private static final byte RCODE_SERVFAIL = 2;
+    private static final byte RCODE_NXDOMAIN = 3;
+    private static final byte RCODE_NOTIMP = 4;
+    private static final int CLASS_IN = 1;
+    private static final int TYPE_ANY = 255;
+    private static final byte[] ROOT = {0};
+
+    private final ZoneSource zones;
+    private final ResponseCache responseCache; // null when disabled
+    private final RecordCache recordCache;     // null unless forwarding
+    private final UpstreamMultiplexer upstream; // null unless forwarding, shared by all workers
+    private final ServerMetrics metrics;
+    private final QueryLog queryLog;            // null when query logging is off
+    private final int ednsPayload;              // UDP payload size advertised in our OPT records
+    private final ResponseRateLimiter rateLimiter; // null when rate limiting is off
+    private final ResponsePolicy policy;        // null when no blocklist is loaded
+
+    private final MessageView query = new MessageView();
+    private final ResponseWriter writer = new ResponseWriter();
+    private final ZoneLookup lookup = new ZoneLookup();
+    private InetSocketAddress rrlClient; // Whose network key rrlNetwork is
+    private long rrlNetwork;
+
+    public QueryProcessor(ServerContext context) {
+        this.zones = context.getZones();
+        this.responseCache = context.getResponseCache();
+        this.recordCache = context.getRecordCache();
+        this.upstream = context.getUpstream();
+        this.metrics = context.getMetrics();
+        this.queryLog = context.getQueryLog();
+        this.ednsPayload = context.getConfig().getMaxUdpPayload();
+        this.rateLimiter = context.getRateLimiter();
+        this.policy = context.getPolicy();
+    }
+
+    @Override
+    public int handle(ByteBuffer request, ByteBuffer response, InetSocketAddress client, Responder responder) {
+        // Parse incoming message, fields are read lazily from the request buffer
+        query.reset(request);
+        if (query.isQR()) {
+            return 0; // Never answer responses
+        }
+
+        // Build the response straight into the worker's reusable buffer, leaving room
+        // for our OPT record when the client sent one
+        boolean edns = query.hasOpt();
+        int limit = responseLimit(edns, responder, response);
+        int reserved = edns ? Edns.OPT_LENGTH : 0;
+        writer.reset(response);
+        writer.setLimit(limit - reserved);
+
+        int length = answer(request, response, client, responder, edns, limit - reserved);
+        if (length > 0 && edns) {
+            int rcode = query.getOptCount() == 1 && query.getEdnsVersion() != 0 ? Edns.RCODE_BADVERS : 0;
+            length = Edns.appendOpt(response.array(), response.arrayOffset() + response.position(), length,
+                    ednsPayload, rcode, query.isDO());
+        }
+        if (length > 0 && rateLimiter != null && responder.transport() == QueryLogFormat.TRANSPORT_UDP) {
+            length = rateLimit(rateLimiter, networkKey(client), response.array(),
+                    response.arrayOffset() + response.position(), length);
+        }
+        return length;
+    }
+
+    // The RRL key of the client's network, remembered for as long as the packets
+    // come from the same address object
+    private long networkKey(InetSocketAddress client) {
+        if (client != rrlClient) {
+            rrlClient = client;
+            rrlNetwork = ResponseRateLimiter.networkKey(client.getAddress());
+        }
+        return rrlNetwork;
+    }
+
+    // RRL only applies to UDP, TCP clients can't spoof their address. Returns the
+    // length of what may be sent: the response, a truncated stand-in or 0 (drop).
+    // The key comes from the response's own question, which we wrote.
+    private static int rateLimit(ResponseRateLimiter rateLimiter, long network, byte[] buf, int offset,
+                                 int length) {
+        boolean hasQuestion = ((buf[offset + 4] & 0xFF) << 8 | (buf[offset + 5] & 0xFF)) == 1;
+        int nameOffset = offset + MessageView.HEADER_LENGTH;
+        int questionLength = hasQuestion ? DomainNames.length(buf, nameOffset) + 4 : 0;
+        int qtype = hasQuestion ? (buf[nameOffset + questionLength - 4] & 0xFF) << 8
+                | (buf[nameOffset + questionLength - 3] & 0xFF) : 0;
+
+        int action = hasQuestion
+                ? rateLimiter.check(network, buf, nameOffset, qtype, buf[offset + 3] & 0x0F)
+                : rateLimiter.check(network, ROOT, 0, 0, buf[offset + 3] & 0x0F);
+        if (action == ResponseRateLimiter.ALLOW) {
+            return length;
+        }
+        if (action == ResponseRateLimiter.DROP) {
+            return 0;
+        }
+
+        // Slip: header and question only, with TC set so a real client retries over TCP
+        buf[offset + 2] |= 0x02;
+        for (int i = 6; i < MessageView.HEADER_LENGTH; i++) {
+            buf[offset + i] = 0;
+        }
+        return MessageView.HEADER_LENGTH + questionLength;
+    }
+
+    // Largest response for this query: 512 bytes over UDP unless the client's OPT
+    // record allows more, capped by what the transport takes
+    private int responseLimit(boolean edns, Responder responder, ByteBuffer response) {
+        int limit = responder.maxResponseSize();
+        if (responder.transport() == QueryLogFormat.TRANSPORT_UDP) {
+            int payload = edns ? Math.max(Edns.MIN_UDP_PAYLOAD, query.getUdpPayloadSize()) : Edns.MIN_UDP_PAYLOAD;
+            limit = Math.min(limit, payload);
+        }
+        return Math.min(limit, response.remaining());
+    }
+
+    private int answer(ByteBuffer request, ByteBuffer response, InetSocketAddress client, Responder responder,
+                       boolean edns, int maxLength) {
+        if (query.getOPCODE() != 0) {
+            return error(RCODE_NOTIMP);
+        }
+        if (query.getQDCOUNT() != 1 || query.getOptCount() > 1) {
+            return error(RCODE_FORMERR);
+        }
+        if (edns && query.getEdnsVersion() != 0) {
+            return error((byte) (Edns.RCODE_BADVERS & 0x0F)); // The OPT record carries the rest
+        }
+        metrics.recordQuery(query.getQType());
+
+        // The QNAME is looked up in place, straight from the request bytes
+        byte[] name = request.array();
+        int nameOffset = request.arrayOffset() + request.position() + query.getQNameOffset();
+
+        // The blocklist overrides everything, our own zones and the caches included
+        if (policy != null) {
+            int action = policy.match(name, nameOffset);
+            if (action != ResponsePolicy.NONE) {
+                policy.recordHit(action);
+                if (action != ResponsePolicy.PASSTHRU) {
+                    return policyAnswer(action, name, nameOffset);
+                }
+            }
+        }
+
+        // Authoritative answers only differ in ID, RD and QNAME case, so reuse the bytes
+        if (responseCache != null) {
+            int cached = responseCache.get(query, name, nameOffset,
+                    response.array(), response.arrayOffset() + response.position(), maxLength);
+            if (cached > 0) {
+                return cached;
+            }
+        }
+
+        // Read before the lookup, so a response built from zone data that is swapped out
+        // meanwhile is never served from the cache
+        int cacheGeneration = responseCache != null ? responseCache.getGeneration() : 0;
+        if (query.getQClass() != CLASS_IN) {
+            lookup.reset();
+        } else {
+            zones.lookup(name, nameOffset, query.getQType(), lookup);
+        }
+
+        // Names that aren't ours go upstream when forwarding is enabled
+        if (lookup.getStatus() == ZoneLookup.NOT_AUTHORITATIVE && upstream != null) {
+            return resolve(name, nameOffset, response, client, responder, edns, maxLength);
+        }
+
+        writeHeader(lookup.isAuthoritative(), lookup.getRCODE());
+        writer.writeQuestion(query);
+        zones.write(lookup, writer, name, nameOffset);
+
+        // Cached without the OPT record, which is added per client
+        int length = writer.finish();
+        if (responseCache != null && !writer.isTruncated()) {
+            responseCache.put(name, nameOffset, query.getQType(), query.getQClass(),
+                    response.array(), response.arrayOffset() + response.position(), length, cacheGeneration);
+        }
+        return length;
+    }
+
+    // Blocked names answer NXDOMAIN or NODATA, rewritten ones their fixed addresses;
+    // a rewrite without an address of the asked type is NODATA
+    private int policyAnswer(int action, byte[] name, int nameOffset) {
+        writeHeader(false, action == ResponsePolicy.NXDOMAIN ? RCODE_NXDOMAIN : 0);
+        writer.writeQuestion(query);
+        if (ResponsePolicy.isRewrite(action) && query.getQClass() == CLASS_IN) {
+            int type = query.getQType();
+            writeRewrite(action, RData.TYPE_A, type, name, nameOffset);
+            writeRewrite(action, RData.TYPE_AAAA, type, name, nameOffset);
+        }
+        return writer.finish();
+    }
+
+    private void writeRewrite(int action, int type, int asked, byte[] name, int nameOffset) {
+        byte[] rdata = policy.getRewrite(action, type);
+        if (rdata != null && (asked == type || asked == TYPE_ANY)) {
+            writer.writeRecord(ResponseWriter.ANSWER, name, nameOffset, type, CLASS_IN, ResponsePolicy.REWRITE_TTL,
+                    rdata, 0, rdata.length);
+        }
+    }
+
+    private int resolve(byte[] name, int nameOffset, ByteBuffer response,
+                        InetSocketAddress client, Responder responder, boolean edns, int maxLength) {
+        int cached = recordCache.get(query, name, nameOffset,
+                response.array(), response.arrayOffset() + response.position(), maxLength);
+        if (cached > 0) {
+            return cached;
+        }
+
+        // Miss: keep the header and question and let the upstream answer complete it
+        byte[] asked = new byte[query.getQuestionEnd()];
+        System.arraycopy(name, nameOffset - MessageView.HEADER_LENGTH, asked, 0, asked.length);
+
+        if (Thread.currentThread().isVirtual()) {
+            // A virtual thread can simply park until the answer arrives; handle() adds the OPT record
+            CompletableFuture<byte[]> answer = new CompletableFuture<>();
+            upstream.query(name, nameOffset, query.getQType(), query.getQClass(),
+                    (reply, length) -> answer.complete(answerFor(asked, reply, length, maxLength, null)));
+            byte[] out;
+            try {
+                out = answer.get(upstream.getMaxWaitMillis(), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException | ExecutionException e) {
+                out = answerFor(asked, null, -1, maxLength, null); // SERVFAIL rather than park forever
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                out = answerFor(asked, null, -1, maxLength, null);
+            }
+            response.put(response.position(), out);
+            return out.length;
+        }
+
+        ClientOpt opt = edns ? new ClientOpt(ednsPayload, query.isDO()) : null;
+        int limit = maxLength + (edns ? Edns.OPT_LENGTH : 0);
+        upstream.query(name, nameOffset, query.getQType(), query.getQClass(),
+                new DeferredAnswer(asked, client, responder, limit, opt, metrics, queryLog, rateLimiter));
+        return DEFERRED;
+    }
+
+    // The EDNS(0) state of a client whose answer is completed later
+    private record ClientOpt(int payloadSize, boolean dnssecOk) {
+    }
+
+    // The client's copy of an upstream answer: its ID, RD bit and QNAME spelling
+    // restored, the upstream's OPT record replaced with ours (or dropped when the
+    // client sent none). Failures become SERVFAIL and answers over limit a TC response.
+    private static byte[] answerFor(byte[] asked, byte[] response, int length, int limit, ClientOpt opt) {
+        if (length < 0) {
+            return headerOnly(asked, RCODE_SERVFAIL, false, opt);
+        }
+
+        int additional;
+        try {
+            MessageView view = new MessageView().reset(response, 0, length);
+            additional = view.getARCOUNT();
+            if (view.hasOpt()) {
+                // Records behind the OPT record are dropped too, as in the record cache
+                length = view.getOptOffset();
+                additional = view.getOptIndex();
+            }
+        } catch (IllegalArgumentException e) {
+            return headerOnly(asked, RCODE_SERVFAIL, false, opt);
+        }
+
+        int reserved = opt != null ? Edns.OPT_LENGTH : 0;
+        if (length + reserved > limit) {
+            return headerOnly(asked, (byte) (response[3] & 0x0F), true, opt);
+        }
+
+        byte[] out = Arrays.copyOf(response, length + reserved);
+        out[0] = asked[0];
+        out[1] = asked[1];
+        out[2] = (byte) ((out[2] & ~0x01) | (asked[2] & 0x01));
+        out[3] |= (byte) 0x80; // RA, we did the recursion for the client
+        out[10] = (byte) (additional >> 8);
+        out[11] = (byte) additional;
+        System.arraycopy(asked, MessageView.HEADER_LENGTH, out, MessageView.HEADER_LENGTH,
+                asked.length - MessageView.HEADER_LENGTH - 4);
+        if (opt != null) {
+            Edns.appendOpt(out, 0, length, opt.payloadSize(), 0, opt.dnssecOk());
+        }
+        return out;
+    }
+
+    // Question only, for failures and answers too large for the transport
+    private static byte[] headerOnly(byte[] asked, byte rcode, boolean truncated, ClientOpt opt) {
+        MessageView view = new MessageView().reset(asked, 0, asked.length);
+        byte[] out = new byte[asked.length + (opt != null ? Edns.OPT_LENGTH : 0)];
+        ResponseWriter writer = new ResponseWriter().reset(out, 0, asked.length);
+        writer.writeHeader(view.getID(), UDPMessage.encodeFlags(
+                true, view.getOPCODE(), false, truncated, view.isRD(), true, view.getZ(), rcode));
+        writer.writeQuestion(view);
+        int length = writer.finish();
+        if (opt != null) {
+            Edns.appendOpt(out, 0, length, opt.payloadSize(), 0, opt.dnssecOk());
+        }
+        return out;
+    }
+
+    private int error(byte rcode) {
+        writeHeader(false, rcode);
+        if (query.getQDCOUNT() > 0) {
+            writer.writeQuestion(query);
+        }
+        return writer.finish();
+    }
+
+    private void writeHeader(boolean authoritative, byte rcode) {
+        writer.writeHeader(query.getID(), UDPMessage.encodeFlags(
+                true,                 // QR = true for response
+                query.getOPCODE(),
+                authoritative,        // AA when the answer comes from our own zones
+                false,                // TC, set by the writer if the answer doesn't fit
+                query.isRD(),
+                upstream != null,     // RA only when we forward
+                query.getZ(),
+                rcode
+        ));
+    }
+
+    // Completes one client's query from the (possibly shared) upstream answer by
+    // sending it through the transport the query came in on. Runs on the upstream thread.
+    private static final class DeferredAnswer implements UpstreamMultiplexer.Callback {
+
+        private final byte[] asked; // Header and question of the client's query
+        private final InetSocketAddress client;
+        private final Responder responder;
+        private final int limit;
+        private final ClientOpt opt; // null when the client sent no OPT record
+        private final ServerMetrics metrics;
+        private final QueryLog queryLog;
+        private final ResponseRateLimiter rateLimiter;
+        private final long startedAt = System.nanoTime();
+
+        DeferredAnswer(byte[] asked, InetSocketAddress client, Responder responder, int limit, ClientOpt opt,
+                       ServerMetrics metrics, QueryLog queryLog, ResponseRateLimiter rateLimiter) {
+            this.asked = asked;
+            this.client = client;
+            this.responder = responder;
+            this.limit = limit;
+            this.opt = opt;
+            this.metrics = metrics;
+            this.queryLog = queryLog;
+            this.rateLimiter = rateLimiter;
+        }
+
+        @Override
+        public void complete(byte[] response, int length) {
+            byte[] out = answerFor(asked, response, length, limit, opt);
+            if (rateLimiter != null && responder.transport() == QueryLogFormat.TRANSPORT_UDP) {
+                int allowed = rateLimit(rateLimiter, ResponseRateLimiter.networkKey(client.getAddress()), out, 0,
+                        out.length);
+                if (allowed == 0) {
+                    metrics.recordDrop();
+                    return;
+                }
+                out = Arrays.copyOf(out, allowed);
+            }
+            try {
+                responder.respond(ByteBuffer.wrap(out), client);
+            } catch (IOException e) {
+                metrics.recordDrop();
+                return;
+            }
+            long elapsed = System.nanoTime() - startedAt;
+            metrics.recordResponse(out);
+            metrics.getUpstreamLatency().record(elapsed);
+            if (queryLog != null) {
+                queryLog.append(responder.transport(), asked, 0, asked.length, client, out, 0, elapsed);
+            }
+        }
+    }
+}
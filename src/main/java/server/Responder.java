@@ -0,0 +1,19 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+// Sends a deferred answer back over the transport the query arrived on. May be
+// called from any thread.
+public interface Responder {
+
+    void respond(ByteBuffer response, InetSocketAddress client) throws IOException;
+
+    // Largest response the transport accepts; over UDP the client's EDNS(0) payload
+    // size can lower it further
+    int maxResponseSize();
+
+    // QueryLogFormat.TRANSPORT_UDP or TRANSPORT_TCP
+    int transport();
+}
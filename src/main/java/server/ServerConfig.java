@@ -0,0 +1,336 @@
+package server;
+
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ServerConfig {
+
+    private String bindAddress = "0.0.0.0";
+    private int port = 2053;
+    private int workers = Runtime.getRuntime().availableProcessors();
+    private ExecutionMode mode = ExecutionMode.WORKERS;
+    private int maxInFlight = 4096;
+    private int udpBatch = 1;
+    private int maxUdpPayload = 1232;
+    private int tcpMaxConnections = 1024;
+    private int tcpIdleTimeoutMillis = 10000;
+    private final List<Path> zoneFiles = new ArrayList<>();
+    private Path zoneImage;
+    private Path zoneUpdates;
+    private final List<Path> policyFiles = new ArrayList<>();
+    private int responseCacheMegabytes = 64;
+    private final List<InetSocketAddress> upstreams = new ArrayList<>();
+    private int upstreamTimeoutMillis = 2000;
+    private int upstreamAttempts = 3;
+    private int upstreamSockets = 4;
+    private int prefetchPercent = 10;
+    private int serveStaleSeconds = 0;
+    private int recordCacheMegabytes = 128;
+    private int maxCacheTtl = 86400;
+    private Path cacheSnapshot;
+    private final List<InetSocketAddress> cachePeers = new ArrayList<>();
+    private int peerPort = 5354;
+    private Path peerKeyFile;
+    private int cacheSnapshotSeconds = 300;
+    private int metricsPort = 0;
+    private Path queryLogDirectory;
+    private int queryLogFileMegabytes = 64;
+    private int queryLogFiles = 8;
+    private int rrlRate = 0;
+    private int rrlSlip = 2;
+    private int rrlTableSize = 1 << 18;
+    private int shedTargetMillis = 0;
+    private int shedIntervalMillis = 100;
+    private int shedRcode = 5;
+
+    // Parses "--name value" pairs from the command line
+    public static ServerConfig fromArgs(String[] args) {
+        ServerConfig config = new ServerConfig();
+
+        for (int i = 0; i < args.length; i++) {
+            String name = args[i];
+            if (!name.startsWith("--") || i + 1 >= args.length) {
+                throw new IllegalArgumentException("Expected --option value, got: " + name);
+            }
+            String value = args[++i];
+
+            switch (name) {
+                case "--bind" -> config.bindAddress = value;
+                case "--port" -> config.port = parseInt(name, value, 1, 65535);
+                case "--workers" -> config.workers = parseInt(name, value, 1, 1024);
+                case "--mode" -> config.mode = ExecutionMode.parse(value);
+                case "--max-in-flight" -> config.maxInFlight = parseInt(name, value, 1, 1 << 20);
+                case "--udp-batch" -> config.udpBatch = parseInt(name, value, 1, 1024);
+                case "--edns-udp-size" -> config.maxUdpPayload = parseInt(name, value, 512, 65535);
+                case "--tcp-max-connections" -> config.tcpMaxConnections = parseInt(name, value, 0, 1 << 20);
+                case "--tcp-idle-timeout-ms" -> config.tcpIdleTimeoutMillis = parseInt(name, value, 1, 3600000);
+                case "--zone" -> config.zoneFiles.add(Path.of(value));
+                case "--zone-image" -> config.zoneImage = Path.of(value);
+                case "--zone-updates" -> config.zoneUpdates = Path.of(value);
+                case "--policy" -> config.policyFiles.add(Path.of(value));
+                case "--response-cache-mb" -> config.responseCacheMegabytes = parseInt(name, value, 0, 1 << 20);
+                case "--forward" -> config.upstreams.add(parseAddress(value, 53));
+                case "--upstream-timeout-ms" -> config.upstreamTimeoutMillis = parseInt(name, value, 1, 60000);
+                case "--upstream-attempts" -> config.upstreamAttempts = parseInt(name, value, 1, 10);
+                case "--upstream-sockets" -> config.upstreamSockets = parseInt(name, value, 1, 256);
+                case "--cache-mb" -> config.recordCacheMegabytes = parseInt(name, value, 1, 1 << 20);
+                case "--prefetch-percent" -> config.prefetchPercent = parseInt(name, value, 0, 99);
+                case "--serve-stale-seconds" -> config.serveStaleSeconds = parseInt(name, value, 0, 604800);
+                case "--max-cache-ttl" -> config.maxCacheTtl = parseInt(name, value, 1, Integer.MAX_VALUE);
+                case "--cache-snapshot" -> config.cacheSnapshot = Path.of(value);
+                case "--cache-snapshot-seconds" -> config.cacheSnapshotSeconds = parseInt(name, value, 1, 86400);
+                case "--peer" -> config.cachePeers.add(parseAddress(value, 5354));
+                case "--peer-port" -> config.peerPort = parseInt(name, value, 1, 65535);
+                case "--peer-key-file" -> config.peerKeyFile = Path.of(value);
+                case "--metrics-port" -> config.metricsPort = parseInt(name, value, 0, 65535);
+                case "--query-log" -> config.queryLogDirectory = Path.of(value);
+                case "--query-log-file-mb" -> config.queryLogFileMegabytes = parseInt(name, value, 1, 2047);
+                case "--query-log-files" -> config.queryLogFiles = parseInt(name, value, 1, 100000);
+                case "--rrl-rate" -> config.rrlRate = parseInt(name, value, 0, Short.MAX_VALUE);
+                case "--rrl-slip" -> config.rrlSlip = parseInt(name, value, 0, 10);
+                case "--rrl-table" -> config.rrlTableSize = parseInt(name, value, 2, 1 << 24);
+                case "--shed-target-ms" -> config.shedTargetMillis = parseInt(name, value, 0, 60000);
+                case "--shed-interval-ms" -> config.shedIntervalMillis = parseInt(name, value, 1, 60000);
+                case "--shed-action" -> config.shedRcode = switch (value) {
+                    case "drop" -> -1;
+                    case "servfail" -> 2;
+                    case "refused" -> 5;
+                    default -> throw new IllegalArgumentException("Unknown shed action: " + value);
+                };
+                default -> throw new IllegalArgumentException("Unknown option: " + name);
+            }
+        }
+        if (config.zoneImage != null && !config.zoneFiles.isEmpty()) {
+            throw new IllegalArgumentException("--zone and --zone-image can't be combined");
+        }
+        if (config.zoneUpdates != null && config.zoneImage != null) {
+            throw new IllegalArgumentException("--zone-updates needs --zone, an image can only be replaced as a whole");
+        }
+        if (config.udpBatch > 1 && config.mode == ExecutionMode.VIRTUAL) {
+            throw new IllegalArgumentException("--udp-batch needs --mode workers or single");
+        }
+        if (!config.cachePeers.isEmpty() && config.upstreams.isEmpty()) {
+            throw new IllegalArgumentException("--peer needs --forward");
+        }
+        if (!config.cachePeers.isEmpty() && config.peerKeyFile == null) {
+            throw new IllegalArgumentException("--peer needs --peer-key-file");
+        }
+        if (config.shedTargetMillis > 0 && (config.mode == ExecutionMode.SINGLE || config.udpBatch > 1)) {
+            // Those loops handle each datagram as soon as it is read, nothing ever waits
+            throw new IllegalArgumentException("--shed-target-ms needs --mode workers or virtual without --udp-batch");
+        }
+        if (config.shedTargetMillis > config.shedIntervalMillis) {
+            throw new IllegalArgumentException("--shed-target-ms can't exceed --shed-interval-ms");
+        }
+        return config;
+    }
+
+    private static int parseInt(String name, String value, int min, int max) {
+        int parsed;
+        try {
+            parsed = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number for " + name + ": " + value);
+        }
+        if (parsed < min || parsed > max) {
+            throw new IllegalArgumentException(name + " must be between " + min + " and " + max);
+        }
+        return parsed;
+    }
+
+    // host or host:port, IPv6 literals in brackets: [::1]:53
+    public static InetSocketAddress parseAddress(String value, int defaultPort) {
+        String host = value;
+        int port = defaultPort;
+
+        int colon = value.lastIndexOf(':');
+        if (value.startsWith("[")) {
+            int close = value.indexOf(']');
+            if (close < 0) {
+                throw new IllegalArgumentException("Invalid address: " + value);
+            }
+            host = value.substring(1, close);
+            if (close + 1 < value.length()) {
+                port = parseInt("port", value.substring(close + 2), 1, 65535);
+            }
+        } else if (colon > 0 && value.indexOf(':') == colon) {
+            host = value.substring(0, colon);
+            port = parseInt("port", value.substring(colon + 1), 1, 65535);
+        }
+        return new InetSocketAddress(host, port);
+    }
+
+    public String getBindAddress() {
+        return bindAddress;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    public ExecutionMode getMode() {
+        return mode;
+    }
+
+    // Virtual mode only: queries handled at the same time
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    // Datagrams a worker moves per recvmmsg/sendmmsg call, 1 keeps one receive per datagram
+    public int getUdpBatch() {
+        return udpBatch;
+    }
+
+    // Largest UDP response for EDNS(0) clients, also advertised in our OPT records
+    public int getMaxUdpPayload() {
+        return maxUdpPayload;
+    }
+
+    // 0 turns the TCP listener off
+    public int getTcpMaxConnections() {
+        return tcpMaxConnections;
+    }
+
+    public int getTcpIdleTimeoutMillis() {
+        return tcpIdleTimeoutMillis;
+    }
+
+    public List<Path> getZoneFiles() {
+        return zoneFiles;
+    }
+
+    // Blocklist files, applied to every query before our zones and the caches
+    public List<Path> getPolicyFiles() {
+        return policyFiles;
+    }
+
+    // Compiled zone image to map instead of parsing zone files, null if none
+    public Path getZoneImage() {
+        return zoneImage;
+    }
+
+    // Directory of *.update files applied to the zone data, null if none
+    public Path getZoneUpdates() {
+        return zoneUpdates;
+    }
+
+    // 0 disables the pre-rendered response cache
+    public int getResponseCacheMegabytes() {
+        return responseCacheMegabytes;
+    }
+
+    // Empty unless forwarding is enabled
+    public List<InetSocketAddress> getUpstreams() {
+        return upstreams;
+    }
+
+    public int getUpstreamTimeoutMillis() {
+        return upstreamTimeoutMillis;
+    }
+
+    public int getUpstreamAttempts() {
+        return upstreamAttempts;
+    }
+
+    // Number of UDP sockets (source ports) upstream queries are spread over
+    public int getUpstreamSockets() {
+        return upstreamSockets;
+    }
+
+    public int getRecordCacheMegabytes() {
+        return recordCacheMegabytes;
+    }
+
+    public int getMaxCacheTtl() {
+        return maxCacheTtl;
+    }
+
+    // Hits in the last this percent of a cached answer's TTL refresh it, 0 turns prefetching off
+    public int getPrefetchPercent() {
+        return prefetchPercent;
+    }
+
+    // How long expired answers may still be served (RFC 8767), 0 turns serve-stale off
+    public int getServeStaleSeconds() {
+        return serveStaleSeconds;
+    }
+
+    // File the record cache is saved to and restored from, null when it isn't kept
+    public Path getCacheSnapshot() {
+        return cacheSnapshot;
+    }
+
+    public int getCacheSnapshotSeconds() {
+        return cacheSnapshotSeconds;
+    }
+
+    // Servers the record cache is shared with, empty when it isn't shared
+    public List<InetSocketAddress> getCachePeers() {
+        return cachePeers;
+    }
+
+    // Where the peers send to, and where this server sends them from
+    public int getPeerPort() {
+        return peerPort;
+    }
+
+    // Secret shared by all peers that authenticates their datagrams
+    public Path getPeerKeyFile() {
+        return peerKeyFile;
+    }
+
+    // Loopback port of the Prometheus endpoint, 0 disables it
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    // Directory of the binary query log, null when query logging is off
+    public Path getQueryLogDirectory() {
+        return queryLogDirectory;
+    }
+
+    public int getQueryLogFileMegabytes() {
+        return queryLogFileMegabytes;
+    }
+
+    // Older files are deleted beyond this count
+    public int getQueryLogFiles() {
+        return queryLogFiles;
+    }
+
+    // Identical UDP responses per second to one client network, 0 turns RRL off
+    public int getRrlRate() {
+        return rrlRate;
+    }
+
+    // Every slip-th limited response goes out truncated instead of being dropped
+    public int getRrlSlip() {
+        return rrlSlip;
+    }
+
+    // Buckets in the rate limit table
+    public int getRrlTableSize() {
+        return rrlTableSize;
+    }
+
+    // Queue wait that counts as a standing backlog, 0 turns load shedding off
+    public int getShedTargetMillis() {
+        return shedTargetMillis;
+    }
+
+    public int getShedIntervalMillis() {
+        return shedIntervalMillis;
+    }
+
+    // RCODE shed queries are answered with, -1 when they are dropped
+    public int getShedRcode() {
+        return shedRcode;
+    }
+}
@@ -0,0 +1,79 @@
+package server;
+
+import cache.ResponseCache;
+import metrics.ServerMetrics;
+import policy.ResponsePolicy;
+import querylog.QueryLog;
+import ratelimit.ResponseRateLimiter;
+import resolver.RecordCache;
+import resolver.UpstreamMultiplexer;
+import zone.ZoneSource;
+
+// Everything the workers share. Built once in Main and handed to each worker's
+// QueryProcessor, which adds its own per-thread scratch state.
+public class ServerContext {
+
+    private final ServerConfig config;
+    private final ZoneSource zones;
+    private final ResponseCache responseCache; // null when disabled
+    private final RecordCache recordCache;     // null unless forwarding
+    private final UpstreamMultiplexer upstream; // null unless forwarding
+    private final ServerMetrics metrics;
+    private final QueryLog queryLog;             // null when query logging is off
+    private final ResponseRateLimiter rateLimiter; // null when rate limiting is off
+    private final ResponsePolicy policy;           // null when no blocklist is loaded
+
+    public ServerContext(ServerConfig config, ZoneSource zones, ResponseCache responseCache,
+                         RecordCache recordCache, UpstreamMultiplexer upstream, ServerMetrics metrics,
+                         QueryLog queryLog, ResponseRateLimiter rateLimiter, ResponsePolicy policy) {
+        this.config = config;
+        this.zones = zones;
+        this.responseCache = responseCache;
+        this.recordCache = recordCache;
+        this.upstream = upstream;
+        this.metrics = metrics;
+        this.queryLog = queryLog;
+        this.rateLimiter = rateLimiter;
+        this.policy = policy;
+    }
+
+    public ServerConfig getConfig() {
+        return config;
+    }
+
+    public ZoneSource getZones() {
+        return zones;
+    }
+
+    public ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    public RecordCache getRecordCache() {
+        return recordCache;
+    }
+
+    public UpstreamMultiplexer getUpstream() {
+        return upstream;
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    public QueryLog getQueryLog() {
+        return queryLog;
+    }
+
+    public ResponseRateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    public boolean isForwarding() {
+        return upstream != null;
+    }
+
+    public ResponsePolicy getPolicy() {
+        return policy;
+    }
+}
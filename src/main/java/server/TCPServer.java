@@ -0,0 +1,421 @@
+package server;
+
+import metrics.ServerMetrics;
+import querylog.QueryLog;
+import querylog.QueryLogFormat;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+// DNS over TCP (RFC 7766). One selector thread accepts connections, reads the
+// two-byte length prefixed messages and answers them with its own handler.
+// Clients may pipeline: every complete message in the read buffer is handled
+// straight away, and forwarded queries are answered through the connection's
+// Responder as soon as the upstream replies, so answers can leave in a different
+// order than the queries arrived. Connections with nothing outstanding are closed
+// after the idle timeout.
+public class TCPServer {
+
+    private static final int MAX_MESSAGE_SIZE = 65535;
+    // Read buffer a connection starts with, enough for a few pipelined queries. It only
+    // grows for a message that doesn't fit, so idle connections stay small.
+    private static final int INITIAL_READ_BUFFER = 512;
+    // Answers queued or still upstream per connection before reading pauses
+    private static final int MAX_PENDING_PER_CONNECTION = 128;
+    private static final int MAX_GATHER = 16;
+
+    private final InetSocketAddress address;
+    private final QueryHandler handler;
+    private final int idleTimeoutMillis;
+    private final int maxConnections;
+    private final ServerMetrics metrics;
+    private final QueryLog queryLog; // null when query logging is off
+
+    // Owned by the selector thread
+    private final ByteBuffer request = ByteBuffer.allocate(MAX_MESSAGE_SIZE);
+    private final ByteBuffer response = ByteBuffer.allocate(MAX_MESSAGE_SIZE);
+    private final Set<Connection> connections = new HashSet<>();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+
+    // Connections with deferred answers waiting to be written
+    private final ConcurrentLinkedQueue<Connection> ready = new ConcurrentLinkedQueue<>();
+
+    private ServerSocketChannel serverChannel;
+    private Selector selector;
+    private Thread thread;
+    private volatile boolean running;
+
+    public TCPServer(InetSocketAddress address, Supplier<? extends QueryHandler> handlers, int idleTimeoutMillis,
+                     int maxConnections, ServerMetrics metrics, QueryLog queryLog) {
+        if (idleTimeoutMillis < 1) {
+            throw new IllegalArgumentException("Idle timeout must be positive");
+        }
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("At least one connection is required");
+        }
+        this.address = address;
+        this.handler = handlers.get();
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.maxConnections = maxConnections;
+        this.metrics = metrics;
+        this.queryLog = queryLog;
+    }
+
+    public synchronized void start() throws IOException {
+        if (running) {
+            throw new IllegalStateException("Server already started");
+        }
+        selector = Selector.open();
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            serverChannel.bind(address, 1024);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+            selector.close();
+            throw e;
+        }
+
+        running = true;
+        thread = new Thread(this::run, "dns-tcp");
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public InetSocketAddress getLocalAddress() throws IOException {
+        return (InetSocketAddress) serverChannel.getLocalAddress();
+    }
+
+    private void run() {
+        long checkInterval = Math.min(idleTimeoutMillis, 1000);
+        long nextIdleCheck = System.currentTimeMillis() + checkInterval;
+        try {
+            while (running) {
+                selector.select(checkInterval);
+
+                Connection deferred;
+                while ((deferred = ready.poll()) != null) {
+                    flush(deferred);
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    if (key.isWritable()) {
+                        flush(connection);
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        read(connection);
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                if (now >= nextIdleCheck) {
+                    closeIdle(now);
+                    nextIdleCheck = now + checkInterval;
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("IOException: " + e.getMessage());
+        } finally {
+            for (Connection connection : new ArrayList<>(connections)) {
+                close(connection);
+            }
+            try {
+                serverChannel.close();
+                selector.close();
+            } catch (IOException e) {
+                System.out.println("IOException: " + e.getMessage());
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            if (connections.size() >= maxConnections) {
+                channel.close();
+                metrics.recordTcpRejected();
+                continue;
+            }
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            Connection connection = new Connection(channel, (InetSocketAddress) channel.getRemoteAddress());
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            connections.add(connection);
+            metrics.recordTcpAccepted();
+        }
+    }
+
+    private void read(Connection connection) {
+        int n;
+        try {
+            n = connection.channel.read(connection.in);
+        } catch (IOException e) {
+            close(connection);
+            return;
+        }
+        if (n < 0) {
+            // The client may half-close after its last query and still wait for the answers
+            connection.inputClosed = true;
+            connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_READ);
+            closeIfDone(connection);
+            return;
+        }
+        connection.lastActivity = System.currentTimeMillis();
+        handleMessages(connection);
+        flush(connection);
+    }
+
+    // Handles every complete message in the read buffer, unless too many answers are pending
+    private void handleMessages(Connection connection) {
+        ByteBuffer in = connection.in;
+        in.flip();
+        while (in.remaining() >= 2 && connection.pending() < MAX_PENDING_PER_CONNECTION) {
+            int length = in.getShort(in.position()) & 0xFFFF;
+            if (in.remaining() < 2 + length) {
+                break;
+            }
+            request.clear();
+            request.put(in.array(), in.arrayOffset() + in.position() + 2, length);
+            request.flip();
+            in.position(in.position() + 2 + length);
+            handle(connection);
+        }
+        in.compact();
+        fitInput(connection);
+
+        boolean paused = connection.pending() >= MAX_PENDING_PER_CONNECTION;
+        if (paused != connection.paused && !connection.inputClosed) {
+            connection.paused = paused;
+            int ops = connection.key.interestOps();
+            connection.key.interestOps(paused ? ops & ~SelectionKey.OP_READ : ops | SelectionKey.OP_READ);
+        }
+    }
+
+    // Grows the read buffer when the next message doesn't fit, and shrinks it back
+    // once what it holds fits the initial size again
+    private static void fitInput(Connection connection) {
+        ByteBuffer in = connection.in;
+        int held = in.position();
+        int next = held >= 2 ? 2 + (in.getShort(0) & 0xFFFF) : 0;
+        int needed = Math.max(INITIAL_READ_BUFFER, Math.max(held, next));
+        if (needed > in.capacity() || (needed == INITIAL_READ_BUFFER && in.capacity() > INITIAL_READ_BUFFER)) {
+            in.flip();
+            connection.in = ByteBuffer.allocate(needed).put(in);
+        }
+    }
+
+    private void handle(Connection connection) {
+        long receivedAt = System.nanoTime();
+        response.clear();
+        int length;
+        try {
+            length = handler.handle(request, response, connection.client, connection);
+        } catch (RuntimeException e) {
+            metrics.recordMalformed();
+            return;
+        }
+        if (length == QueryHandler.DEFERRED) {
+            connection.outstanding.incrementAndGet();
+            return;
+        }
+        if (length == 0) {
+            metrics.recordDrop();
+            return;
+        }
+
+        ByteBuffer frame = ByteBuffer.allocate(2 + length);
+        frame.putShort((short) length).put(response.array(), response.arrayOffset(), length).flip();
+        connection.out.add(frame);
+
+        long elapsed = System.nanoTime() - receivedAt;
+        metrics.recordResponse(response);
+        metrics.getLatency().record(elapsed);
+        if (queryLog != null) {
+            queryLog.append(QueryLogFormat.TRANSPORT_TCP, request.array(), request.arrayOffset(), request.limit(),
+                    connection.client, response.array(), response.arrayOffset(), elapsed);
+        }
+    }
+
+    // Writes as much of the queued answers as the socket takes
+    private void flush(Connection connection) {
+        if (connection.closed) {
+            return;
+        }
+        ByteBuffer answer;
+        while ((answer = connection.answered.poll()) != null) {
+            connection.out.add(answer);
+        }
+
+        try {
+            while (!connection.out.isEmpty()) {
+                int count = 0;
+                for (ByteBuffer buffer : connection.out) {
+                    gather[count++] = buffer;
+                    if (count == MAX_GATHER) {
+                        break;
+                    }
+                }
+                long written = connection.channel.write(gather, 0, count);
+                while (!connection.out.isEmpty() && !connection.out.peek().hasRemaining()) {
+                    connection.out.poll();
+                }
+                if (written == 0) {
+                    break; // Socket buffer full
+                }
+                connection.lastActivity = System.currentTimeMillis();
+            }
+        } catch (IOException e) {
+            close(connection);
+            return;
+        } finally {
+            Arrays.fill(gather, null);
+        }
+
+        int ops = connection.key.interestOps();
+        connection.key.interestOps(connection.out.isEmpty() ? ops & ~SelectionKey.OP_WRITE : ops | SelectionKey.OP_WRITE);
+
+        if (connection.paused && connection.pending() < MAX_PENDING_PER_CONNECTION) {
+            handleMessages(connection); // Resumes reading once the buffered messages are handled
+            if (!connection.out.isEmpty()) {
+                connection.key.interestOps(connection.key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+        closeIfDone(connection);
+    }
+
+    private void closeIfDone(Connection connection) {
+        if (connection.inputClosed && !connection.owesAnswers()) {
+            close(connection);
+        }
+    }
+
+    // RFC 7766 section 6.2.3: close idle connections, but not while answers are owed
+    private void closeIdle(long now) {
+        for (Connection connection : new ArrayList<>(connections)) {
+            if (now - connection.lastActivity >= idleTimeoutMillis && !connection.owesAnswers()) {
+                close(connection);
+                metrics.recordTcpIdleClosed();
+            }
+        }
+    }
+
+    private void close(Connection connection) {
+        if (connection.closed) {
+            return;
+        }
+        connection.closed = true;
+        connections.remove(connection);
+        connection.key.cancel();
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            // Nothing left to do with it
+        }
+        metrics.recordTcpClosed();
+    }
+
+    private final class Connection implements Responder {
+
+        private final SocketChannel channel;
+        private final InetSocketAddress client;
+        private SelectionKey key;
+
+        // Selector thread only
+        private ByteBuffer in = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+        private final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+        private long lastActivity = System.currentTimeMillis();
+        private boolean paused;
+        private boolean inputClosed;
+
+        // Shared with the threads that complete deferred queries
+        private final ConcurrentLinkedQueue<ByteBuffer> answered = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private volatile boolean closed;
+
+        Connection(SocketChannel channel, InetSocketAddress client) {
+            this.channel = channel;
+            this.client = client;
+        }
+
+        int pending() {
+            return out.size() + outstanding.get();
+        }
+
+        // An answer is added before outstanding drops, so none can slip between the checks
+        boolean owesAnswers() {
+            return outstanding.get() > 0 || !answered.isEmpty() || !out.isEmpty();
+        }
+
+        // Called by the thread that has the deferred answer; the selector thread writes it
+        @Override
+        public void respond(ByteBuffer deferred, InetSocketAddress client) throws IOException {
+            if (closed) {
+                outstanding.decrementAndGet();
+                throw new ClosedChannelException();
+            }
+            ByteBuffer frame = ByteBuffer.allocate(2 + deferred.remaining());
+            frame.putShort((short) deferred.remaining()).put(deferred).flip();
+            answered.add(frame);
+            outstanding.decrementAndGet();
+            ready.add(this);
+            selector.wakeup();
+        }
+
+        @Override
+        public int maxResponseSize() {
+            return MAX_MESSAGE_SIZE;
+        }
+
+        @Override
+        public int transport() {
+            return QueryLogFormat.TRANSPORT_TCP;
+        }
+    }
+}
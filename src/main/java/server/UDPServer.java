@@ -0,0 +1,602 @@
+package server;
+
+import dataTypes.Edns;
+import dataTypes.MessageView;
+import metrics.ServerMetrics;
+import querylog.QueryLog;
+import querylog.QueryLogFormat;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+public class UDPServer {
+
+    private final InetSocketAddress address;
+    private final int workerCount;
+    private final ExecutionMode mode;
+    private final int maxPayload; // Largest datagram received or sent
+    private final int batchSize;  // Datagrams a worker moves per system call, 1 for plain receives
+    private final Supplier<? extends QueryHandler> handlers;
+    private final ServerMetrics metrics;
+    private final QueryLog queryLog; // null when query logging is off
+
+    private final List<DatagramChannel> channels = new ArrayList<>();
+    private final List<Thread> workers = new ArrayList<>();
+    private final List<BatchSocket> batchSockets = new ArrayList<>(); // Instead of channels when batching
+    private volatile boolean running;
+
+    // Virtual mode, and workers mode with load shedding: every query in flight holds
+    // a slot, which bounds the concurrency
+    private final ArrayBlockingQueue<Slot> freeSlots;
+    private final AtomicInteger createdSlots = new AtomicInteger();
+    private final int maxInFlight;
+    private ExecutorService virtualThreads;
+
+    // Load shedding: received queries wait here for a worker, null when queries are
+    // handled by the thread that received them
+    private LoadShedder shedder;
+    private int shedRcode = -1; // -1 drops shed queries
+    private ArrayBlockingQueue<Slot> workQueue;
+
+    public UDPServer(InetSocketAddress address, int workerCount, Supplier<? extends QueryHandler> handlers) {
+        this(address, workerCount, ExecutionMode.WORKERS, 1, Edns.MIN_UDP_PAYLOAD, 1, handlers, new ServerMetrics(),
+                null);
+    }
+
+    // Handlers keep per-packet scratch state, so every worker (or, in virtual mode,
+    // every query in flight) gets its own instance. In virtual mode workerCount is
+    // the number of receive threads and maxInFlight caps the queries being handled;
+    // when all are busy the receive threads wait and the socket buffers absorb the burst.
+    // maxPayload sizes the buffers; a response only grows past 512 bytes when the
+    // client's EDNS(0) OPT record allows it. With batchSize above 1 the platform
+    // workers receive and send up to that many datagrams per system call when the
+    // BatchSocket backend can run, and one at a time otherwise; virtual mode always
+    // receives one at a time.
+    public UDPServer(InetSocketAddress address, int workerCount, ExecutionMode mode, int maxInFlight, int maxPayload,
+                     int batchSize, Supplier<? extends QueryHandler> handlers, ServerMetrics metrics,
+                     QueryLog queryLog) {
+        if (workerCount < 1) {
+            throw new IllegalArgumentException("At least one worker is required");
+        }
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("At least one query in flight is required");
+        }
+        if (maxPayload < Edns.MIN_UDP_PAYLOAD) {
+            throw new IllegalArgumentException("UDP payload must be at least " + Edns.MIN_UDP_PAYLOAD + " bytes");
+        }
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1");
+        }
+        this.address = address;
+        this.workerCount = mode == ExecutionMode.SINGLE ? 1 : workerCount;
+        this.mode = mode;
+        this.maxInFlight = maxInFlight;
+        this.maxPayload = maxPayload;
+        this.batchSize = mode == ExecutionMode.VIRTUAL ? 1 : batchSize;
+        this.handlers = handlers;
+        this.metrics = metrics;
+        this.queryLog = queryLog;
+        this.freeSlots = new ArrayBlockingQueue<>(maxInFlight);
+    }
+
+    // Sheds queries that waited too long before a thread could handle them, answering
+    // them with rcode (REFUSED or SERVFAIL) or, with -1, not at all. In workers mode
+    // this puts a queue between receiving and handling: every socket gets a receive
+    // thread and the workers take queries from the queue, at most maxInFlight of them.
+    // The single and batch loops handle a query as soon as they read it, so there is
+    // no wait to measure and they can't shed.
+    public synchronized void setLoadShedding(LoadShedder shedder, int rcode) {
+        if (running) {
+            throw new IllegalStateException("Server already started");
+        }
+        if (mode == ExecutionMode.SINGLE || batchSize > 1) {
+            throw new IllegalArgumentException("Load shedding needs workers or virtual mode without batching");
+        }
+        this.shedder = shedder;
+        this.shedRcode = rcode;
+    }
+
+    public synchronized void start() throws IOException {
+        if (running) {
+            throw new IllegalStateException("Server already started");
+        }
+        running = true;
+        if (mode == ExecutionMode.VIRTUAL) {
+            virtualThreads = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("dns-query-", 0).factory());
+        } else if (mode == ExecutionMode.WORKERS && shedder != null) {
+            workQueue = new ArrayBlockingQueue<>(maxInFlight);
+        }
+
+        try {
+            if (batchSize > 1 && openBatchSockets()) {
+                for (int i = 0; i < workerCount; i++) {
+                    workers.add(new Thread(new BatchWorker(batchSockets.get(i)), "dns-udp-worker-" + i));
+                }
+                for (Thread worker : workers) {
+                    worker.start();
+                }
+                return;
+            }
+
+            // With SO_REUSEPORT every worker gets its own socket and the kernel hashes
+            // clients across them. Without it the workers share one channel.
+            DatagramChannel first = openChannel(workerCount > 1);
+            channels.add(first);
+            boolean reusePort = first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+
+            for (int i = 0; i < workerCount; i++) {
+                DatagramChannel channel = first;
+                if (i > 0 && reusePort) {
+                    channel = openChannel(true);
+                    channels.add(channel);
+                }
+
+                Runnable loop;
+                if (mode == ExecutionMode.VIRTUAL || workQueue != null) {
+                    loop = new Receiver(channel);
+                } else {
+                    loop = new Worker(channel);
+                }
+                workers.add(new Thread(loop, (workQueue != null ? "dns-udp-receiver-" : "dns-udp-worker-") + i));
+            }
+            if (workQueue != null) {
+                for (int i = 0; i < workerCount; i++) {
+                    workers.add(new Thread(new QueueWorker(), "dns-udp-worker-" + i));
+                }
+            }
+        } catch (IOException e) {
+            stop();
+            throw e;
+        }
+
+        for (Thread worker : workers) {
+            worker.start();
+        }
+    }
+
+    private DatagramChannel openChannel(boolean reusePort) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            if (reusePort && channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            channel.bind(address);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    // A socket per worker, all on the same port; false when the backend can't run
+    // here and the workers fall back to a channel and one datagram per call
+    private boolean openBatchSockets() throws IOException {
+        try {
+            for (int i = 0; i < workerCount; i++) {
+                InetSocketAddress bindTo = i == 0 ? address : batchSockets.get(0).getLocalAddress();
+                batchSockets.add(BatchSocket.open(bindTo, batchSize, maxPayload));
+            }
+            return true;
+        } catch (UnsupportedOperationException e) {
+            System.out.println("recvmmsg not available (" + e.getMessage() + "), receiving one datagram per call");
+            closeBatchSockets();
+            return false;
+        }
+    }
+
+    private void closeBatchSockets() {
+        for (BatchSocket socket : batchSockets) {
+            socket.close();
+        }
+        batchSockets.clear();
+    }
+
+    public synchronized void stop() {
+        running = false;
+
+        // Closing the channels wakes up workers blocked in receive()
+        for (DatagramChannel channel : channels) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.out.println("IOException: " + e.getMessage());
+            }
+        }
+
+        // Batch workers notice within the receive timeout, and only then may their
+        // sockets close
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        if (virtualThreads != null) {
+            // Let queries already being handled finish
+            virtualThreads.shutdown();
+            try {
+                virtualThreads.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            virtualThreads = null;
+        }
+
+        closeBatchSockets();
+        channels.clear();
+        workers.clear();
+        workQueue = null;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public InetSocketAddress getLocalAddress() throws IOException {
+        if (!batchSockets.isEmpty()) {
+            return batchSockets.get(0).getLocalAddress();
+        }
+        return (InetSocketAddress) channels.get(0).getLocalAddress();
+    }
+
+    // Datagrams a worker moves per system call, 1 unless the batch backend is running
+    public int getBatchSize() {
+        return batchSockets.isEmpty() ? 1 : batchSize;
+    }
+
+    public ExecutionMode getMode() {
+        return mode;
+    }
+
+    public int getWorkerCount() {
+        return workerCount;
+    }
+
+    // A handler with the buffers it works in, everything one query needs
+    private final class Slot implements Responder {
+
+        private final QueryHandler handler = handlers.get();
+        private final ByteBuffer request = ByteBuffer.allocate(maxPayload);
+        private final ByteBuffer response = ByteBuffer.allocate(maxPayload);
+        private DatagramChannel channel;
+        private BatchSocket batchSocket; // Instead of channel in a batch worker
+        private InetSocketAddress client; // Of the query waiting in the work queue
+        private long receivedAt;
+
+        // null when a non-blocking socket has nothing queued
+        InetSocketAddress receive(DatagramChannel from) throws IOException {
+            channel = from;
+            request.clear();
+            InetSocketAddress client = (InetSocketAddress) channel.receive(request);
+            request.flip();
+            return client;
+        }
+
+        void process(InetSocketAddress client, long receivedAt) {
+            if (!answer(client, receivedAt)) {
+                return;
+            }
+            try {
+                if (channel.send(response, client) == 0) {
+                    // Only a non-blocking socket refuses: its send buffer is full
+                    metrics.recordDrop();
+                    return;
+                }
+            } catch (ClosedChannelException e) {
+                return; // Shutting down
+            } catch (IOException e) {
+                metrics.recordDrop();
+                return;
+            }
+            sent(client, receivedAt);
+        }
+
+        // Handles the request; true when response then holds an answer to send, which
+        // happens to be most of the time. Anything else is already counted.
+        boolean answer(InetSocketAddress client, long receivedAt) {
+            if (shedder != null) {
+                long now = System.nanoTime();
+                if (!shedder.admit(now - receivedAt, now)) {
+                    shed(client);
+                    return false;
+                }
+            }
+
+            response.clear();
+            int length;
+            try {
+                length = handler.handle(request, response, client, this);
+            } catch (RuntimeException e) {
+                // A malformed packet must not take the worker down
+                metrics.recordMalformed();
+                return false;
+            }
+            if (length == QueryHandler.DEFERRED) {
+                return false; // Counted when the answer is sent
+            }
+            if (length == 0) {
+                metrics.recordDrop();
+                return false;
+            }
+            response.limit(length);
+            return true;
+        }
+
+        // Counts and logs the answer once it went out
+        void sent(InetSocketAddress client, long receivedAt) {
+            long elapsed = System.nanoTime() - receivedAt;
+            metrics.recordResponse(response);
+            metrics.getLatency().record(elapsed);
+            if (queryLog != null) {
+                queryLog.append(QueryLogFormat.TRANSPORT_UDP, request.array(), request.arrayOffset(), request.limit(),
+                        client, response.array(), response.arrayOffset(), elapsed);
+            }
+        }
+
+        // Shedding has to stay cheaper than answering: no parsing beyond finding the
+        // end of the question, which is echoed with an empty answer
+        private void shed(InetSocketAddress client) {
+            metrics.recordShed();
+            if (shedRcode < 0) {
+                return;
+            }
+            int length = shedResponse(request, response.clear(), shedRcode);
+            if (length == 0) {
+                return;
+            }
+            response.limit(length);
+            try {
+                channel.send(response, client);
+            } catch (IOException e) {
+                // Shed either way
+            }
+        }
+
+        // Deferred answers arrive on other threads; both sends are thread-safe
+        @Override
+        public void respond(ByteBuffer deferred, InetSocketAddress client) throws IOException {
+            if (batchSocket != null) {
+                batchSocket.send(deferred, client);
+            } else {
+                channel.send(deferred, client);
+            }
+        }
+
+        @Override
+        public int maxResponseSize() {
+            return maxPayload;
+        }
+
+        @Override
+        public int transport() {
+            return QueryLogFormat.TRANSPORT_UDP;
+        }
+    }
+
+    // Receives and handles on the same platform thread (SINGLE and WORKERS modes)
+    private class Worker implements Runnable {
+
+        private final DatagramChannel channel;
+        private final Slot slot = new Slot(); // Owned by this worker and reused for every packet
+
+        Worker(DatagramChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    InetSocketAddress client = slot.receive(channel);
+                    slot.process(client, System.nanoTime());
+                } catch (ClosedChannelException e) {
+                    break;
+                } catch (IOException e) {
+                    System.out.println("IOException: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Like Worker, but one recvmmsg call fills up to batchSize slots and one sendmmsg
+    // call sends their answers. Under load a call returns a full batch, so the system
+    // calls per query drop by as much; when it's quiet it returns as soon as one
+    // datagram arrives, so nothing waits for a batch to fill.
+    private class BatchWorker implements Runnable {
+
+        private final BatchSocket socket;
+        private final Slot[] slots = new Slot[batchSize];
+        private final ByteBuffer[] requests = new ByteBuffer[batchSize];
+        private final ByteBuffer[] responses = new ByteBuffer[batchSize];
+        private final InetSocketAddress[] clients = new InetSocketAddress[batchSize];
+        private final boolean[] sent = new boolean[batchSize];
+
+        BatchWorker(BatchSocket socket) {
+            this.socket = socket;
+            for (int i = 0; i < batchSize; i++) {
+                slots[i] = new Slot();
+                slots[i].batchSocket = socket;
+                requests[i] = slots[i].request;
+                responses[i] = slots[i].response;
+            }
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    int count = socket.receive(requests, clients);
+                    long receivedAt = System.nanoTime(); // The batch arrived in one call
+
+                    for (int i = 0; i < count; i++) {
+                        if (!slots[i].answer(clients[i], receivedAt)) {
+                            clients[i] = null;
+                        }
+                    }
+                    socket.send(responses, clients, sent, count);
+                    for (int i = 0; i < count; i++) {
+                        if (clients[i] == null) {
+                            continue;
+                        }
+                        if (sent[i]) {
+                            slots[i].sent(clients[i], receivedAt);
+                        } else {
+                            metrics.recordDrop();
+                        }
+                        clients[i] = null;
+                    }
+                } catch (IOException e) {
+                    System.out.println("IOException: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // The header and question of a query with rcode set and no records, 0 if the
+    // request isn't a query
+    static int shedResponse(ByteBuffer request, ByteBuffer response, int rcode) {
+        byte[] in = request.array();
+        int start = request.arrayOffset() + request.position();
+        int end = request.arrayOffset() + request.limit();
+        if (end - start < MessageView.HEADER_LENGTH || (in[start + 2] & 0x80) != 0) {
+            return 0;
+        }
+
+        int questionEnd = start + MessageView.HEADER_LENGTH;
+        boolean oneQuestion = in[start + 4] == 0 && in[start + 5] == 1;
+        if (oneQuestion) {
+            int pos = questionEnd;
+            while (pos < end && in[pos] != 0 && (in[pos] & 0xC0) == 0) {
+                pos += (in[pos] & 0xFF) + 1;
+            }
+            oneQuestion = pos + 5 <= end && in[pos] == 0;
+            if (oneQuestion) {
+                questionEnd = pos + 5;
+            }
+        }
+
+        int length = questionEnd - start;
+        byte[] out = response.array();
+        int offset = response.arrayOffset() + response.position();
+        System.arraycopy(in, start, out, offset, length);
+        out[offset + 2] = (byte) (0x80 | (in[start + 2] & 0x79)); // QR, opcode and RD kept, AA and TC clear
+        out[offset + 3] = (byte) rcode;
+        out[offset + 4] = 0;
+        out[offset + 5] = (byte) (oneQuestion ? 1 : 0);
+        for (int i = 6; i < MessageView.HEADER_LENGTH; i++) {
+            out[offset + i] = 0;
+        }
+        return length;
+    }
+
+    // Takes received queries off the work queue (workers mode with load shedding)
+    private class QueueWorker implements Runnable {
+
+        @Override
+        public void run() {
+            ArrayBlockingQueue<Slot> queue = workQueue;
+            while (running) {
+                Slot slot;
+                try {
+                    slot = queue.poll(100, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                if (slot == null) {
+                    continue;
+                }
+                try {
+                    slot.process(slot.client, slot.receivedAt);
+                } finally {
+                    slot.client = null;
+                    freeSlots.add(slot);
+                }
+            }
+        }
+    }
+
+    // Receives on a platform thread and hands each datagram to a virtual thread or,
+    // in workers mode with load shedding, to the work queue
+    private class Receiver implements Runnable {
+
+        private final DatagramChannel channel;
+
+        Receiver(DatagramChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                Slot slot;
+                try {
+                    slot = acquire();
+                } catch (InterruptedException e) {
+                    break;
+                }
+                if (slot == null) {
+                    break; // Stopped while waiting for a free slot
+                }
+
+                try {
+                    InetSocketAddress client = slot.receive(channel);
+                    long receivedAt = System.nanoTime();
+                    if (workQueue != null) {
+                        slot.client = client;
+                        slot.receivedAt = receivedAt;
+                        workQueue.add(slot); // Never full, it holds as many as there are slots
+                        continue;
+                    }
+                    virtualThreads.execute(() -> {
+                        try {
+                            slot.process(client, receivedAt);
+                        } finally {
+                            freeSlots.add(slot);
+                        }
+                    });
+                } catch (ClosedChannelException e) {
+                    break;
+                } catch (IOException e) {
+                    freeSlots.add(slot);
+                    System.out.println("IOException: " + e.getMessage());
+                } catch (RuntimeException e) {
+                    freeSlots.add(slot); // Executor already shut down
+                    break;
+                }
+            }
+        }
+
+        // Slots are created on demand up to the limit, then reused
+        private Slot acquire() throws InterruptedException {
+            Slot slot = freeSlots.poll();
+            if (slot != null) {
+                return slot;
+            }
+            if (createdSlots.getAndIncrement() < maxInFlight) {
+                return new Slot();
+            }
+            createdSlots.decrementAndGet();
+            while ((slot = freeSlots.poll(100, TimeUnit.MILLISECONDS)) == null) {
+                if (!running) {
+                    return null;
+                }
+            }
+            return slot;
+        }
+    }
+}
@@ -0,0 +1,390 @@
+package tools;
+
+import dataTypes.RData;
+import dataTypes.UDPMessage;
+import dataTypes.UDPQuestion;
+import metrics.LatencyHistogram;
+import server.ServerConfig;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// dnsperf-style load generator. Sends a mix of queries to a server at a target rate
+// for a fixed time and reports the achieved QPS, the loss and the latency
+// percentiles, so server changes can be compared on one machine:
+//
+//   java -cp target/classes tools.LoadGenerator --server 127.0.0.1:2053 --rate 20000 \
+//        --duration 10 --query www.example.com/A:3 --query example.com/MX
+//
+// Queries come from --query name[/TYPE][:weight] (repeatable), a --query-file with one
+// "name [TYPE]" per line, or the DNS queries found in a --pcap capture. Each query
+// goes out over one of a few connected sockets with a per-socket sequential ID; the
+// ID slot remembers the send time until the answer arrives or the timeout expires.
+public class LoadGenerator {
+
+    private static final String[] RCODES = {
+            "NOERROR", "FORMERR", "SERVFAIL", "NXDOMAIN", "NOTIMP", "REFUSED"
+    };
+
+    private InetSocketAddress server = new InetSocketAddress("127.0.0.1", 2053);
+    private int rate = 10000;
+    private int durationSeconds = 10;
+    private int timeoutMillis = 1000;
+    private int socketCount = 4;
+    private final List<byte[]> queries = new ArrayList<>();
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder answered = new LongAdder();
+    private final LongAdder lost = new LongAdder();
+    private final LongAdder unmatched = new LongAdder();
+    private final LongAdder stalled = new LongAdder();
+    private final LongAdder[] rcodes = new LongAdder[16];
+
+    private volatile boolean running = true;
+
+    public static void main(String[] args) {
+        LoadGenerator generator;
+        try {
+            generator = fromArgs(args);
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("Invalid arguments: " + e.getMessage());
+            return;
+        }
+
+        try {
+            generator.run();
+        } catch (IOException e) {
+            System.out.println("IOException: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static LoadGenerator fromArgs(String[] args) throws IOException {
+        LoadGenerator generator = new LoadGenerator();
+        for (int i = 0; i < args.length; i++) {
+            String name = args[i];
+            if (!name.startsWith("--") || i + 1 >= args.length) {
+                throw new IllegalArgumentException("Expected --option value, got: " + name);
+            }
+            String value = args[++i];
+
+            switch (name) {
+                case "--server" -> generator.server = ServerConfig.parseAddress(value, 53);
+                case "--rate" -> generator.rate = parseInt(name, value, 0);
+                case "--duration" -> generator.durationSeconds = parseInt(name, value, 1);
+                case "--timeout-ms" -> generator.timeoutMillis = parseInt(name, value, 1);
+                case "--sockets" -> generator.socketCount = parseInt(name, value, 1);
+                case "--query" -> generator.addQuery(value);
+                case "--query-file" -> generator.addQueryFile(Path.of(value));
+                case "--pcap" -> generator.queries.addAll(PcapReader.readQueries(Path.of(value)));
+                default -> throw new IllegalArgumentException("Unknown option: " + name);
+            }
+        }
+        if (generator.queries.isEmpty()) {
+            generator.addQuery("example.com/A");
+        }
+        return generator;
+    }
+
+    private static int parseInt(String name, String value, int min) {
+        try {
+            int parsed = Integer.parseInt(value);
+            if (parsed < min) {
+                throw new IllegalArgumentException(name + " must be at least " + min);
+            }
+            return parsed;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number for " + name + ": " + value);
+        }
+    }
+
+    // name[/TYPE][:weight], the weight repeats the query in the rotation
+    private void addQuery(String spec) {
+        int weight = 1;
+        int colon = spec.lastIndexOf(':');
+        if (colon > 0) {
+            weight = parseInt("--query weight", spec.substring(colon + 1), 1);
+            spec = spec.substring(0, colon);
+        }
+        int slash = spec.indexOf('/');
+        String name = slash < 0 ? spec : spec.substring(0, slash);
+        int type = slash < 0 ? RData.TYPE_A : typeCode(spec.substring(slash + 1));
+
+        byte[] query = encode(name, type);
+        for (int i = 0; i < weight; i++) {
+            queries.add(query);
+        }
+    }
+
+    // dnsperf format: "name TYPE" per line, # starts a comment
+    private void addQueryFile(Path file) throws IOException {
+        int lineNumber = 0;
+        for (String line : Files.readAllLines(file)) {
+            lineNumber++;
+            String trimmed = line.strip();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                continue;
+            }
+            String[] fields = trimmed.split("\\s+");
+            try {
+                queries.add(encode(fields[0], fields.length > 1 ? typeCode(fields[1]) : RData.TYPE_A));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(file + ":" + lineNumber + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static byte[] encode(String name, int type) {
+        byte[] header = UDPMessage.createUDPHeader(0, false, (byte) 0, false, false, true, false,
+                (byte) 0, (byte) 0, 1, 0, 0, 0);
+        byte[] question = UDPQuestion.createUDPQuestion(name, type, 1);
+        byte[] query = new byte[header.length + question.length];
+        System.arraycopy(header, 0, query, 0, header.length);
+        System.arraycopy(question, 0, query, header.length, question.length);
+        return query;
+    }
+
+    private static int typeCode(String typeName) {
+        String upper = typeName.toUpperCase(Locale.ROOT);
+        return switch (upper) {
+            case "A" -> RData.TYPE_A;
+            case "NS" -> RData.TYPE_NS;
+            case "CNAME" -> RData.TYPE_CNAME;
+            case "SOA" -> RData.TYPE_SOA;
+            case "PTR" -> RData.TYPE_PTR;
+            case "MX" -> RData.TYPE_MX;
+            case "TXT" -> RData.TYPE_TXT;
+            case "AAAA" -> RData.TYPE_AAAA;
+            case "SRV" -> 33;
+            case "ANY" -> 255;
+            default -> {
+                String number = upper.startsWith("TYPE") ? upper.substring(4) : upper;
+                try {
+                    yield Integer.parseInt(number);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Unknown record type: " + typeName);
+                }
+            }
+        };
+    }
+
+    // One connected socket and the send time of every ID outstanding on it (0 = free)
+    private final class Connection implements Runnable {
+
+        final DatagramChannel channel;
+        final AtomicLongArray sentAt = new AtomicLongArray(0x10000);
+        int nextId;
+
+        Connection() throws IOException {
+            channel = DatagramChannel.open();
+            channel.connect(server);
+        }
+
+        // Claims the next ID unless its previous query is still waiting for an answer
+        int claim(long now) {
+            int id = nextId;
+            long previous = sentAt.get(id);
+            if (previous != 0 && now - previous < timeoutMillis * 1_000_000L) {
+                return -1;
+            }
+            if (sentAt.getAndSet(id, now) != 0) {
+                lost.increment(); // Timed out, never answered
+            }
+            nextId = (id + 1) & 0xFFFF;
+            return id;
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer buffer = ByteBuffer.allocate(65535);
+            while (running) {
+                try {
+                    buffer.clear();
+                    channel.read(buffer);
+                    long now = System.nanoTime();
+                    if (buffer.position() < 12) {
+                        unmatched.increment();
+                        continue;
+                    }
+
+                    int id = buffer.getShort(0) & 0xFFFF;
+                    long sentTime = sentAt.getAndSet(id, 0);
+                    if (sentTime == 0) {
+                        unmatched.increment(); // Duplicate or already counted lost
+                        continue;
+                    }
+                    long elapsed = now - sentTime;
+                    if (elapsed > timeoutMillis * 1_000_000L) {
+                        lost.increment(); // Too late to count
+                        continue;
+                    }
+                    latency.record(elapsed);
+                    answered.increment();
+                    rcodes[buffer.get(3) & 0x0F].increment();
+                } catch (AsynchronousCloseException e) {
+                    return;
+                } catch (IOException e) {
+                    // ICMP port unreachable and friends, the query counts as lost
+                }
+            }
+        }
+
+        int outstanding() {
+            int count = 0;
+            for (int i = 0; i < 0x10000; i++) {
+                if (sentAt.get(i) != 0) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    public void run() throws IOException, InterruptedException {
+        for (int i = 0; i < rcodes.length; i++) {
+            rcodes[i] = new LongAdder();
+        }
+        List<Connection> connections = new ArrayList<>();
+        List<Thread> receivers = new ArrayList<>();
+        for (int i = 0; i < socketCount; i++) {
+            Connection connection = new Connection();
+            connections.add(connection);
+            Thread receiver = new Thread(connection, "load-receiver-" + i);
+            receiver.setDaemon(true);
+            receiver.start();
+            receivers.add(receiver);
+        }
+
+        System.out.println("Sending a rotation of " + queries.size() + " quer" + (queries.size() == 1 ? "y" : "ies")
+                + " to " + server + " at " + (rate == 0 ? "maximum" : rate + " qps")
+                + " for " + durationSeconds + "s");
+
+        long start = System.nanoTime();
+        long end = start + durationSeconds * 1_000_000_000L;
+        long interval = rate == 0 ? 0 : 1_000_000_000L / rate;
+        long nextSend = start;
+        long nextReport = start + 1_000_000_000L;
+        long reportedSent = 0;
+        long reportedAnswered = 0;
+
+        byte[][] templates = queries.toArray(new byte[0][]);
+        ByteBuffer[] packets = new ByteBuffer[templates.length];
+        for (int i = 0; i < templates.length; i++) {
+            packets[i] = ByteBuffer.wrap(templates[i].clone());
+        }
+        int queryIndex = 0;
+        int connectionIndex = 0;
+
+        long now;
+        while ((now = System.nanoTime()) < end) {
+            if (now >= nextReport) {
+                long sentNow = sent.sum();
+                long answeredNow = answered.sum();
+                System.out.printf("%4ds  sent %8d  answered %8d%n",
+                        (now - start) / 1_000_000_000L, sentNow - reportedSent, answeredNow - reportedAnswered);
+                reportedSent = sentNow;
+                reportedAnswered = answeredNow;
+                nextReport += 1_000_000_000L;
+            }
+
+            if (interval > 0) {
+                long wait = nextSend - now;
+                if (wait > 0) {
+                    if (wait > 100_000) {
+                        LockSupport.parkNanos(wait - 50_000);
+                    } else {
+                        Thread.onSpinWait();
+                    }
+                    continue;
+                }
+                // Don't try to catch up with more than 100ms of backlog in one burst
+                nextSend = Math.max(nextSend + interval, now - 100_000_000L);
+            }
+
+            Connection connection = connections.get(connectionIndex);
+            connectionIndex = (connectionIndex + 1) % connections.size();
+            int id = connection.claim(now);
+            if (id < 0) {
+                stalled.increment(); // Every ID on this socket is still waiting
+                continue;
+            }
+
+            ByteBuffer packet = packets[queryIndex];
+            queryIndex = (queryIndex + 1) % packets.length;
+            packet.put(0, (byte) (id >> 8)).put(1, (byte) id).clear();
+            try {
+                connection.channel.write(packet);
+                sent.increment();
+            } catch (IOException e) {
+                connection.sentAt.set(id, 0);
+                stalled.increment();
+            }
+        }
+        long sendingNanos = System.nanoTime() - start;
+
+        // Give the last queries their full timeout, then whatever is left is lost
+        Thread.sleep(timeoutMillis);
+        running = false;
+        for (Connection connection : connections) {
+            connection.channel.close();
+        }
+        for (Thread receiver : receivers) {
+            receiver.join();
+        }
+        for (Connection connection : connections) {
+            lost.add(connection.outstanding());
+        }
+
+        report(sendingNanos);
+    }
+
+    private void report(long sendingNanos) {
+        double seconds = sendingNanos / 1e9;
+        long sentTotal = sent.sum();
+        long answeredTotal = answered.sum();
+        long lostTotal = lost.sum();
+
+        System.out.println();
+        System.out.printf("Queries sent:      %d (%.0f qps)%n", sentTotal, sentTotal / seconds);
+        System.out.printf("Queries answered:  %d (%.2f%%)%n", answeredTotal, percent(answeredTotal, sentTotal));
+        System.out.printf("Queries lost:      %d (%.2f%%)%n", lostTotal, percent(lostTotal, sentTotal));
+        System.out.printf("Achieved QPS:      %.0f%n", answeredTotal / seconds);
+        System.out.printf("Latency (ms):      p50 %.3f  p99 %.3f  p999 %.3f  max %.3f%n",
+                latency.getValueAtPercentile(50) / 1e6,
+                latency.getValueAtPercentile(99) / 1e6,
+                latency.getValueAtPercentile(99.9) / 1e6,
+                latency.getMax() / 1e6);
+
+        StringBuilder codes = new StringBuilder();
+        for (int i = 0; i < rcodes.length; i++) {
+            long count = rcodes[i].sum();
+            if (count > 0) {
+                if (!codes.isEmpty()) {
+                    codes.append(", ");
+                }
+                codes.append(i < RCODES.length ? RCODES[i] : "RCODE" + i).append(' ').append(count);
+            }
+        }
+        System.out.println("Response codes:    " + (codes.isEmpty() ? "none" : codes));
+        if (stalled.sum() > 0 || unmatched.sum() > 0) {
+            System.out.println("Send stalls:       " + stalled.sum() + ", unmatched replies: " + unmatched.sum());
+        }
+    }
+
+    private static double percent(long part, long whole) {
+        return whole == 0 ? 0 : part * 100.0 / whole;
+    }
+}
@@ -0,0 +1,147 @@
+package tools;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+// Pulls DNS queries out of a classic libpcap capture (not pcapng). Understands
+// Ethernet (with VLAN tags), Linux cooked (SLL and SLL2), BSD loopback and raw IP
+// link layers, IPv4 and IPv6, and keeps the payload of every unfragmented UDP
+// datagram that looks like a DNS query (QR clear, one question).
+public final class PcapReader {
+
+    private static final int MAGIC_MICROS = 0xa1b2c3d4;
+    private static final int MAGIC_NANOS = 0xa1b23c4d;
+    private static final int GLOBAL_HEADER = 24;
+    private static final int RECORD_HEADER = 16;
+
+    private static final int LINK_NULL = 0;
+    private static final int LINK_ETHERNET = 1;
+    private static final int LINK_RAW = 101;
+    private static final int LINK_RAW_ALT = 12;
+    private static final int LINK_IPV4 = 228;
+    private static final int LINK_IPV6 = 229;
+    private static final int LINK_SLL = 113;
+    private static final int LINK_SLL2 = 276;
+
+    private static final int PROTO_UDP = 17;
+
+    private PcapReader() {
+    }
+
+    public static List<byte[]> readQueries(Path file) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file));
+        if (data.remaining() < GLOBAL_HEADER) {
+            throw new IllegalArgumentException(file + ": too short for a pcap file");
+        }
+
+        int magic = data.getInt(0);
+        if (magic != MAGIC_MICROS && magic != MAGIC_NANOS) {
+            data.order(ByteOrder.LITTLE_ENDIAN);
+            magic = data.getInt(0);
+            if (magic != MAGIC_MICROS && magic != MAGIC_NANOS) {
+                throw new IllegalArgumentException(file + ": not a pcap file (pcapng is not supported)");
+            }
+        }
+        int linkType = data.getInt(20) & 0x0FFFFFFF;
+
+        List<byte[]> queries = new ArrayList<>();
+        int pos = GLOBAL_HEADER;
+        while (pos + RECORD_HEADER <= data.limit()) {
+            int captured = data.getInt(pos + 8);
+            int start = pos + RECORD_HEADER;
+            if (captured < 0 || start + captured > data.limit()) {
+                break; // Truncated capture
+            }
+            byte[] query = extract(data.duplicate().order(ByteOrder.BIG_ENDIAN), start, start + captured, linkType);
+            if (query != null) {
+                queries.add(query);
+            }
+            pos = start + captured;
+        }
+        return queries;
+    }
+
+    private static byte[] extract(ByteBuffer frame, int start, int end, int linkType) {
+        int ip;
+        int etherType;
+        switch (linkType) {
+            case LINK_ETHERNET -> {
+                int pos = start + 12;
+                if (pos + 2 > end) {
+                    return null;
+                }
+                etherType = frame.getShort(pos) & 0xFFFF;
+                while ((etherType == 0x8100 || etherType == 0x88A8) && pos + 6 <= end) {
+                    pos += 4; // VLAN tag
+                    etherType = frame.getShort(pos) & 0xFFFF;
+                }
+                ip = pos + 2;
+            }
+            case LINK_SLL -> {
+                if (start + 16 > end) {
+                    return null;
+                }
+                etherType = frame.getShort(start + 14) & 0xFFFF;
+                ip = start + 16;
+            }
+            case LINK_SLL2 -> {
+                if (start + 20 > end) {
+                    return null;
+                }
+                etherType = frame.getShort(start) & 0xFFFF;
+                ip = start + 20;
+            }
+            case LINK_NULL, LINK_RAW, LINK_RAW_ALT, LINK_IPV4, LINK_IPV6 -> {
+                ip = linkType == LINK_NULL ? start + 4 : start;
+                if (ip >= end) {
+                    return null;
+                }
+                etherType = (frame.get(ip) & 0xF0) == 0x60 ? 0x86DD : 0x0800;
+            }
+            default -> throw new IllegalArgumentException("Unsupported pcap link type: " + linkType);
+        }
+
+        int udp;
+        if (etherType == 0x0800) {
+            if (ip + 20 > end) {
+                return null;
+            }
+            int headerLength = (frame.get(ip) & 0x0F) * 4;
+            int fragment = frame.getShort(ip + 6) & 0x3FFF; // MF flag and offset
+            if (frame.get(ip + 9) != PROTO_UDP || fragment != 0) {
+                return null;
+            }
+            udp = ip + headerLength;
+        } else if (etherType == 0x86DD) {
+            if (ip + 40 > end || frame.get(ip + 6) != PROTO_UDP) {
+                return null; // Extension headers aren't followed
+            }
+            udp = ip + 40;
+        } else {
+            return null;
+        }
+
+        if (udp + 8 > end) {
+            return null;
+        }
+        int payloadLength = Math.min((frame.getShort(udp + 4) & 0xFFFF) - 8, end - udp - 8);
+        int payload = udp + 8;
+        if (payloadLength < 12) {
+            return null;
+        }
+        boolean query = (frame.get(payload + 2) & 0x80) == 0;
+        boolean oneQuestion = (frame.getShort(payload + 4) & 0xFFFF) == 1;
+        if (!query || !oneQuestion) {
+            return null;
+        }
+
+        byte[] message = new byte[payloadLength];
+        frame.get(payload, message);
+        return message;
+    }
+}
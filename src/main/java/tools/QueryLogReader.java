@@ -0,0 +1,137 @@
+package tools;
+
+import dataTypes.DomainNames;
+import dataTypes.UDPQuestion;
+import querylog.QueryLogFormat;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+// Prints the records of binary query log files, one line per query:
+//
+//   java -cp target/classes tools.QueryLogReader /var/log/dns            (every .qlog, oldest first)
+//   java -cp target/classes tools.QueryLogReader querylog-1760712000000-0000.qlog
+//
+//   2026-10-17T14:40:00.123Z udp 127.0.0.1#40000 www.example.com IN A NOERROR aa rd an=2 0.042ms
+public class QueryLogReader {
+
+    private static final String[] RCODES = {
+            "NOERROR", "FORMERR", "SERVFAIL", "NXDOMAIN", "NOTIMP", "REFUSED"
+    };
+
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.out.println("Usage: QueryLogReader <file or directory>...");
+            return;
+        }
+        try {
+            for (Path file : files(args)) {
+                print(file);
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("Failed to read query log: " + e.getMessage());
+        }
+    }
+
+    private static List<Path> files(String[] args) throws IOException {
+        List<Path> files = new ArrayList<>();
+        for (String arg : args) {
+            Path path = Path.of(arg);
+            if (Files.isDirectory(path)) {
+                // File names start with the creation time, so name order is time order
+                try (Stream<Path> listing = Files.list(path)) {
+                    listing.filter(p -> p.getFileName().toString().endsWith(QueryLogFormat.FILE_SUFFIX))
+                            .sorted()
+                            .forEach(files::add);
+                }
+            } else {
+                files.add(path);
+            }
+        }
+        return files;
+    }
+
+    private static void print(Path file) throws IOException {
+        ByteBuffer data;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        byte[] magic = new byte[QueryLogFormat.MAGIC.length];
+        if (data.remaining() < QueryLogFormat.FILE_HEADER) {
+            throw new IllegalArgumentException(file + ": not a query log");
+        }
+        data.get(0, magic);
+        if (!Arrays.equals(magic, QueryLogFormat.MAGIC)) {
+            throw new IllegalArgumentException(file + ": not a query log");
+        }
+
+        byte[] record = new byte[QueryLogFormat.MAX_RECORD];
+        int pos = QueryLogFormat.FILE_HEADER;
+        while (pos + 2 <= data.limit()) {
+            int length = data.getShort(pos) & 0xFFFF;
+            if (length == 0) {
+                break; // End of the data
+            }
+            if (length < QueryLogFormat.QUESTION || length > record.length || pos + length > data.limit()) {
+                throw new IllegalArgumentException(file + ": corrupt record at offset " + pos);
+            }
+            data.get(pos, record, 0, length);
+            System.out.println(format(record));
+            pos += length;
+        }
+    }
+
+    private static String format(byte[] record) throws IOException {
+        ByteBuffer r = ByteBuffer.wrap(record);
+        StringBuilder line = new StringBuilder(128);
+
+        line.append(Instant.ofEpochMilli(r.getLong(QueryLogFormat.TIMESTAMP)));
+        line.append(r.get(QueryLogFormat.TRANSPORT) == QueryLogFormat.TRANSPORT_TCP ? " tcp " : " udp ");
+
+        int addressLength = r.get(QueryLogFormat.ADDRESS_LENGTH);
+        byte[] address = Arrays.copyOfRange(record, QueryLogFormat.ADDRESS, QueryLogFormat.ADDRESS + addressLength);
+        line.append(InetAddress.getByAddress(address).getHostAddress())
+                .append('#').append(r.getShort(QueryLogFormat.PORT) & 0xFFFF).append(' ');
+
+        int questionLength = r.getShort(QueryLogFormat.QUESTION_LENGTH) & 0xFFFF;
+        if (questionLength == 0) {
+            line.append("<no question>");
+        } else {
+            int typeAt = QueryLogFormat.QUESTION + questionLength - 4;
+            String name = DomainNames.toString(record, QueryLogFormat.QUESTION);
+            line.append(name.isEmpty() ? "." : name).append(' ')
+                    .append(UDPQuestion.getClassString(r.getShort(typeAt + 2) & 0xFFFF)).append(' ')
+                    .append(UDPQuestion.getTypeString(r.getShort(typeAt) & 0xFFFF));
+        }
+
+        int flags = r.getShort(QueryLogFormat.FLAGS) & 0xFFFF;
+        int rcode = flags & 0x0F;
+        line.append(' ').append(rcode < RCODES.length ? RCODES[rcode] : "RCODE" + rcode);
+        if ((flags & 0x0400) != 0) {
+            line.append(" aa");
+        }
+        if ((flags & 0x0200) != 0) {
+            line.append(" tc");
+        }
+        if ((flags & 0x0100) != 0) {
+            line.append(" rd");
+        }
+        if ((flags & 0x0080) != 0) {
+            line.append(" ra");
+        }
+        line.append(" an=").append(r.getShort(QueryLogFormat.ANCOUNT) & 0xFFFF);
+        line.append(' ').append(r.getInt(QueryLogFormat.LATENCY) / 1000.0).append("ms");
+        return line.toString();
+    }
+}
@@ -0,0 +1,43 @@
+package tools;
+
+import zone.ZoneImageWriter;
+import zone.ZoneStore;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+// Compiles RFC 1035 zone files into an image the server maps with --zone-image:
+//
+//   java -cp target/classes tools.ZoneCompiler zones.img zones/example.com.zone zones/example.org.zone
+//
+// The zone files are parsed and checked exactly as with --zone, so an image only
+// ever holds data the server would have accepted.
+public class ZoneCompiler {
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: ZoneCompiler <image> <zone file>...");
+            return;
+        }
+
+        Path image = Path.of(args[0]);
+        List<Path> zoneFiles = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            zoneFiles.add(Path.of(args[i]));
+        }
+
+        long startedAt = System.nanoTime();
+        try {
+            ZoneStore zones = ZoneStore.load(zoneFiles);
+            ZoneImageWriter.write(zones, image);
+            System.out.printf("Compiled %d record(s) for %d name(s) into %s (%d bytes) in %.1fs%n",
+                    zones.getRecordCount(), zones.getNameCount(), image, Files.size(image),
+                    (System.nanoTime() - startedAt) / 1e9);
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("Failed to compile zones: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package zone;
+
+import java.util.Arrays;
+
+// All records of one owner name and type. RDATA is kept wire encoded, exactly as
+// produced by the RData encoders, so answering is a plain copy.
+public class RRSet {
+
+    private final byte[] owner;
+    private final int type;
+    private final int recordClass;
+    private int ttl;
+    private byte[][] rdata = new byte[1][];
+    private int size;
+    private boolean frozen; // Part of a sealed store, edits work on a copy
+
+    RRSet(byte[] owner, int type, int recordClass, int ttl) {
+        this.owner = owner;
+        this.type = type;
+        this.recordClass = recordClass;
+        this.ttl = ttl;
+    }
+
+    void add(byte[] data, int recordTtl) {
+        if (frozen) {
+            throw new IllegalStateException("RRset belongs to a sealed store");
+        }
+        if (indexOf(data) >= 0) {
+            return; // Duplicate records collapse into one
+        }
+        if (size == rdata.length) {
+            rdata = Arrays.copyOf(rdata, size * 2);
+        }
+        rdata[size++] = data;
+
+        // RFC 2181: all records of an RRset share one TTL, use the lowest
+        ttl = Math.min(ttl, recordTtl);
+    }
+
+    int indexOf(byte[] data) {
+        for (int i = 0; i < size; i++) {
+            if (Arrays.equals(rdata[i], data)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // An unfrozen copy without the record at skip (-1 keeps them all). The RDATA
+    // arrays themselves are never modified, so they are shared.
+    RRSet copy(int skip) {
+        RRSet copy = new RRSet(owner, type, recordClass, ttl);
+        copy.rdata = new byte[Math.max(1, size)][];
+        for (int i = 0; i < size; i++) {
+            if (i != skip) {
+                copy.rdata[copy.size++] = rdata[i];
+            }
+        }
+        return copy;
+    }
+
+    void freeze() {
+        frozen = true;
+    }
+
+    boolean isFrozen() {
+        return frozen;
+    }
+
+    public byte[] getOwner() {
+        return owner;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public int getRecordClass() {
+        return recordClass;
+    }
+
+    public int getTtl() {
+        return ttl;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public byte[] getRData(int index) {
+        return rdata[index];
+    }
+}
@@ -0,0 +1,76 @@
+package zone;
+
+import dataTypes.ResponseWriter;
+
+import java.io.IOException;
+
+// The zone data the workers answer from, replaceable at runtime. A new dataset is
+// built off to the side and published with one volatile write, so lookups never
+// lock and always see either the old data or the new, never a mix. A lookup result
+// remembers the source that filled it and is written by that same source, even if
+// a swap lands in between.
+//
+// Swaps are serialized among themselves; onSwap runs after each one, e.g. to retire
+// responses rendered from the old data.
+public class ReloadableZones implements ZoneSource {
+
+    private volatile ZoneSource current;
+    private final Runnable onSwap;
+
+    public ReloadableZones(ZoneSource initial, Runnable onSwap) {
+        this.current = initial;
+        this.onSwap = onSwap;
+    }
+
+    public ZoneSource current() {
+        return current;
+    }
+
+    public synchronized void swap(ZoneSource next) {
+        current = next;
+        onSwap.run();
+    }
+
+    public interface Edits {
+        void apply(ZoneStore store) throws IOException;
+    }
+
+    // Applies record changes to a copy of the current store and publishes it. Only
+    // the names and sets the edits touch are copied. Throws, leaving the current data
+    // in place, when an edit fails, when the result doesn't seal (e.g. a zone lost its
+    // SOA) or when the current data is a mapped image, which can only be replaced as
+    // a whole.
+    public synchronized ZoneStore update(Edits edits) throws IOException {
+        if (!(current instanceof ZoneStore store)) {
+            throw new IllegalStateException("Only zone file data can be edited in place");
+        }
+        ZoneStore next = store.edit();
+        edits.apply(next);
+        next.finishLoading();
+        swap(next);
+        return next;
+    }
+
+    @Override
+    public void lookup(byte[] name, int offset, int type, ZoneLookup result) {
+        current.lookup(name, offset, type, result);
+    }
+
+    @Override
+    public void write(ZoneLookup result, ResponseWriter writer, byte[] qname, int qnameOffset) {
+        ZoneSource source = result.getSource();
+        if (source != null) {
+            source.write(result, writer, qname, qnameOffset);
+        }
+    }
+
+    @Override
+    public int getNameCount() {
+        return current.getNameCount();
+    }
+
+    @Override
+    public int getRecordCount() {
+        return current.getRecordCount();
+    }
+}
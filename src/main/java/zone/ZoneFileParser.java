@@ -0,0 +1,329 @@
+package zone;
+
+import dataTypes.RData;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+// Reads RFC 1035 master files into a ZoneStore. Supports $ORIGIN, $TTL and
+// $INCLUDE, "@", relative names, omitted owners, TTL/class in either order,
+// parenthesised multi-line records, comments and quoted TXT strings. Record data
+// is encoded with the RData encoders, one call per record.
+//
+// Update files use the same syntax with every record led by "add" or "delete":
+//   add    www 300 IN A 192.0.2.1
+//   delete old A 192.0.2.9    ; one record
+//   delete old A              ; the whole RRset
+// They are applied to a store made with ZoneStore.edit().
+public class ZoneFileParser {
+
+    private static final int DEFAULT_TTL = 3600;
+    private static final int CLASS_IN = 1;
+
+    private final ZoneStore store;
+
+    private String origin;
+    private String lastOwner;
+    private int defaultTtl = -1;
+    private int lastTtl = -1;
+    private boolean update; // Records are led by "add" or "delete"
+
+    public ZoneFileParser(ZoneStore store) {
+        this.store = store;
+    }
+
+    // Applies an update file to the store
+    public void parseUpdate(Path file) throws IOException {
+        update = true;
+        try {
+            parse(file);
+        } finally {
+            update = false;
+        }
+    }
+
+    public void parse(Path file) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            parse(reader, file);
+        }
+    }
+
+    private void parse(BufferedReader reader, Path file) throws IOException {
+        List<String> tokens = new ArrayList<>();
+        boolean[] ownerOmitted = new boolean[1];
+        int[] lineNumber = new int[1];
+
+        while (readRecord(reader, tokens, ownerOmitted, lineNumber)) {
+            try {
+                handleRecord(tokens, ownerOmitted[0], file);
+            } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                throw new IllegalArgumentException(file + ":" + lineNumber[0] + ": " + e.getMessage(), e);
+            }
+        }
+    }
+
+    private void handleRecord(List<String> tokens, boolean ownerOmitted, Path file) throws IOException {
+        String first = tokens.get(0);
+
+        if (!ownerOmitted && first.startsWith("$")) {
+            switch (first.toUpperCase(Locale.ROOT)) {
+                case "$ORIGIN" -> origin = absolute(tokens.get(1));
+                case "$TTL" -> defaultTtl = parseTtl(tokens.get(1));
+                case "$INCLUDE" -> {
+                    String savedOrigin = origin;
+                    if (tokens.size() > 2) {
+                        origin = absolute(tokens.get(2));
+                    }
+                    Path included = file.resolveSibling(tokens.get(1));
+                    parse(included);
+                    origin = savedOrigin;
+                }
+                default -> throw new IllegalArgumentException("Unknown directive " + first);
+            }
+            return;
+        }
+
+        int pos = 0;
+        boolean delete = false;
+        if (update) {
+            if (ownerOmitted) {
+                throw new IllegalArgumentException("Update records need \"add\" or \"delete\" first on the line");
+            }
+            delete = switch (tokens.get(pos++).toLowerCase(Locale.ROOT)) {
+                case "add" -> false;
+                case "delete" -> true;
+                default -> throw new IllegalArgumentException("Expected \"add\" or \"delete\": " + first);
+            };
+        }
+
+        String owner;
+        if (ownerOmitted) {
+            if (lastOwner == null) {
+                throw new IllegalArgumentException("No previous owner name");
+            }
+            owner = lastOwner;
+        } else {
+            owner = absolute(tokens.get(pos++));
+        }
+        lastOwner = owner;
+
+        // TTL and class may come in either order and are both optional
+        int ttl = -1;
+        int recordClass = CLASS_IN;
+        for (int i = 0; i < 2 && pos < tokens.size(); i++) {
+            String token = tokens.get(pos);
+            if (Character.isDigit(token.charAt(0))) {
+                ttl = parseTtl(token);
+                pos++;
+            } else if (isClass(token)) {
+                recordClass = parseClass(token);
+                pos++;
+            }
+        }
+        if (ttl < 0) {
+            // $TTL wins, then the previous record's TTL (RFC 1035 behaviour)
+            ttl = defaultTtl >= 0 ? defaultTtl : lastTtl >= 0 ? lastTtl : DEFAULT_TTL;
+        }
+        lastTtl = ttl;
+
+        String typeName = tokens.get(pos++).toUpperCase(Locale.ROOT);
+        List<String> data = tokens.subList(pos, tokens.size());
+
+        int type = typeCode(typeName);
+        if (delete) {
+            // Nothing to delete isn't an error, so an update can be applied twice
+            store.remove(RData.encodeDomainName(owner), type, data.isEmpty() ? null : encodeRData(type, data));
+        } else {
+            store.add(RData.encodeDomainName(owner), type, recordClass, ttl, encodeRData(type, data));
+        }
+    }
+
+    private byte[] encodeRData(int type, List<String> data) {
+        return switch (type) {
+            case RData.TYPE_A, RData.TYPE_AAAA -> RData.create(type, data.get(0));
+            case RData.TYPE_NS, RData.TYPE_CNAME -> RData.create(type, absolute(data.get(0)));
+            case RData.TYPE_MX -> RData.create(type, data.get(0), absolute(data.get(1)));
+            case RData.TYPE_TXT -> encodeTXT(data);
+            case RData.TYPE_SOA -> RData.create(type,
+                    absolute(data.get(0)), absolute(data.get(1)), data.get(2),
+                    String.valueOf(parseTtl(data.get(3))), String.valueOf(parseTtl(data.get(4))),
+                    String.valueOf(parseTtl(data.get(5))), String.valueOf(parseTtl(data.get(6))));
+            default -> throw new IllegalArgumentException("Unsupported record type: " + type);
+        };
+    }
+
+    // A TXT record may hold several character strings, one after another
+    private static byte[] encodeTXT(List<String> data) {
+        if (data.isEmpty()) {
+            throw new IllegalArgumentException("TXT record without data");
+        }
+        if (data.size() == 1) {
+            return RData.createTXT(data.get(0));
+        }
+
+        List<byte[]> strings = new ArrayList<>(data.size());
+        int length = 0;
+        for (String text : data) {
+            byte[] encoded = RData.createTXT(text);
+            strings.add(encoded);
+            length += encoded.length;
+        }
+
+        byte[] rdata = new byte[length];
+        int pos = 0;
+        for (byte[] encoded : strings) {
+            System.arraycopy(encoded, 0, rdata, pos, encoded.length);
+            pos += encoded.length;
+        }
+        return rdata;
+    }
+
+    private String absolute(String name) {
+        if (name.equals("@")) {
+            if (origin == null) {
+                throw new IllegalArgumentException("@ used without $ORIGIN");
+            }
+            return origin;
+        }
+        if (name.endsWith(".")) {
+            return name;
+        }
+        if (origin == null) {
+            throw new IllegalArgumentException("Relative name " + name + " without $ORIGIN");
+        }
+        return origin.equals(".") ? name + "." : name + "." + origin;
+    }
+
+    private static int typeCode(String typeName) {
+        return switch (typeName) {
+            case "A" -> RData.TYPE_A;
+            case "NS" -> RData.TYPE_NS;
+            case "CNAME" -> RData.TYPE_CNAME;
+            case "SOA" -> RData.TYPE_SOA;
+            case "MX" -> RData.TYPE_MX;
+            case "TXT" -> RData.TYPE_TXT;
+            case "AAAA" -> RData.TYPE_AAAA;
+            default -> throw new IllegalArgumentException("Unsupported record type: " + typeName);
+        };
+    }
+
+    private static boolean isClass(String token) {
+        return switch (token.toUpperCase(Locale.ROOT)) {
+            case "IN", "CS", "CH", "HS" -> true;
+            default -> false;
+        };
+    }
+
+    private static int parseClass(String token) {
+        return switch (token.toUpperCase(Locale.ROOT)) {
+            case "IN" -> 1;
+            case "CS" -> 2;
+            case "CH" -> 3;
+            default -> 4;
+        };
+    }
+
+    // Plain seconds or BIND style units, e.g. 1h30m
+    static int parseTtl(String token) {
+        long total = 0;
+        long value = 0;
+        boolean digits = false;
+        for (int i = 0; i < token.length(); i++) {
+            char c = token.charAt(i);
+            if (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+                digits = true;
+            } else {
+                if (!digits) {
+                    throw new IllegalArgumentException("Invalid TTL: " + token);
+                }
+                total += value * switch (Character.toLowerCase(c)) {
+                    case 's' -> 1;
+                    case 'm' -> 60;
+                    case 'h' -> 3600;
+                    case 'd' -> 86400;
+                    case 'w' -> 604800;
+                    default -> throw new IllegalArgumentException("Invalid TTL: " + token);
+                };
+                value = 0;
+                digits = false;
+            }
+            if (total + value > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("TTL too large: " + token);
+            }
+        }
+        return (int) (total + value);
+    }
+
+    // Reads one logical record, joining lines inside parentheses. Returns false at EOF.
+    private static boolean readRecord(BufferedReader reader, List<String> tokens,
+                                      boolean[] ownerOmitted, int[] lineNumber) throws IOException {
+        tokens.clear();
+        int depth = 0;
+        boolean firstLine = true;
+
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber[0]++;
+            if (firstLine) {
+                ownerOmitted[0] = !line.isEmpty() && Character.isWhitespace(line.charAt(0));
+            }
+            depth = tokenize(line, tokens, depth);
+
+            if (depth == 0 && !tokens.isEmpty()) {
+                return true;
+            }
+            if (!tokens.isEmpty()) {
+                firstLine = false;
+            }
+        }
+
+        if (depth != 0) {
+            throw new IllegalArgumentException("Unbalanced parentheses at end of file");
+        }
+        return !tokens.isEmpty();
+    }
+
+    private static int tokenize(String line, List<String> tokens, int depth) {
+        int i = 0;
+        int length = line.length();
+        while (i < length) {
+            char c = line.charAt(i);
+            if (c == ';') {
+                break;
+            }
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '(') {
+                depth++;
+                i++;
+            } else if (c == ')') {
+                if (--depth < 0) {
+                    throw new IllegalArgumentException("Unbalanced parentheses");
+                }
+                i++;
+            } else if (c == '"') {
+                int end = line.indexOf('"', i + 1);
+                if (end < 0) {
+                    throw new IllegalArgumentException("Unterminated quoted string");
+                }
+                tokens.add(line.substring(i + 1, end));
+                i = end + 1;
+            } else {
+                int start = i;
+                while (i < length && !Character.isWhitespace(line.charAt(i))
+                        && "();\"".indexOf(line.charAt(i)) < 0) {
+                    i++;
+                }
+                tokens.add(line.substring(start, i));
+            }
+        }
+        return depth;
+    }
+}
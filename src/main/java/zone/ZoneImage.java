@@ -0,0 +1,276 @@
+package zone;
+
+import dataTypes.DomainNames;
+import dataTypes.RData;
+import dataTypes.ResponseWriter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+// Authoritative data answered straight from a compiled image (see ZoneImageWriter)
+// mapped read-only into memory. Opening an image only checks its header, so startup
+// takes the same time for any zone size, and the records live in the page cache
+// rather than on the heap. Lookups hash the QNAME like ZoneStore and probe the
+// image's own table; answers are copied out of the mapping, with owner names
+// compressed but names inside RDATA written in full.
+//
+// Image layout, all integers big-endian:
+//   header  magic, version, table slots, name count, record count, image length
+//   table   slots x (name hash, node offset), offset 0 marks an empty slot
+//   node    apex node, delegation node (0 if none), set count, set offsets, name
+//   set     type, record count, owner node, then per record TYPE through RDATA
+//           as it goes on the wire
+public class ZoneImage implements ZoneSource {
+
+    static final byte[] MAGIC = {'D', 'N', 'S', 'Z', 'O', 'N', 'E', 0};
+    static final int VERSION = 1;
+    static final int HEADER_LENGTH = 32;
+    static final int SLOT_LENGTH = 8;
+    static final int NODE_SETS = 10;
+    static final int SET_RECORDS = 8;
+
+    private static final int TYPE_ANY = 255;
+
+    private final ByteBuffer data;
+    private final int slots;
+    private final int nameCount;
+    private final int recordCount;
+
+    private ZoneImage(ByteBuffer data) {
+        this.data = data;
+        if (data.capacity() < HEADER_LENGTH) {
+            throw new IllegalArgumentException("Not a zone image");
+        }
+        byte[] magic = new byte[MAGIC.length];
+        data.get(0, magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IllegalArgumentException("Not a zone image");
+        }
+        if (data.getInt(8) != VERSION) {
+            throw new IllegalArgumentException("Unsupported zone image version: " + data.getInt(8));
+        }
+        this.slots = data.getInt(12);
+        this.nameCount = data.getInt(16);
+        this.recordCount = data.getInt(20);
+        if (data.getInt(24) != data.capacity() || Integer.bitCount(slots) != 1
+                || HEADER_LENGTH + (long) slots * SLOT_LENGTH > data.capacity()) {
+            throw new IllegalArgumentException("Truncated or corrupt zone image");
+        }
+    }
+
+    public static ZoneImage open(Path image) throws IOException {
+        try (FileChannel channel = FileChannel.open(image, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Zone image larger than 2 GiB");
+            }
+            // The mapping stays valid after the channel is closed
+            return new ZoneImage(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    @Override
+    public void lookup(byte[] name, int offset, int type, ZoneLookup result) {
+        result.reset();
+        result.setSource(this);
+
+        int node = find(name, offset, DomainNames.hash(name, offset));
+        if (node == 0) {
+            lookupMissing(name, offset, result);
+            return;
+        }
+
+        for (int hops = 0; ; hops++) {
+            int cut = data.getInt(node + 4);
+            if (cut != 0) {
+                referral(cut, result);
+                return;
+            }
+
+            int setCount = setCount(node);
+            if (type == TYPE_ANY) {
+                for (int i = 0; i < setCount; i++) {
+                    result.addAnswer(set(node, i));
+                }
+                result.setStatus(setCount > 0 ? ZoneLookup.ANSWER : ZoneLookup.NODATA);
+            } else {
+                int set = get(node, type);
+                if (set != 0) {
+                    result.addAnswer(set);
+                    result.setStatus(ZoneLookup.ANSWER);
+                    return;
+                }
+
+                int cname = get(node, RData.TYPE_CNAME);
+                if (cname != 0 && hops < ZoneLookup.MAX_ANSWERS - 1) {
+                    // Follow the alias while it stays inside our data
+                    result.addAnswer(cname);
+                    result.setStatus(ZoneLookup.ANSWER);
+                    byte[] target = result.nameBuffer();
+                    copyName(cname + SET_RECORDS + 10, target);
+                    int next = find(target, 0, DomainNames.hash(target, 0));
+                    if (next == 0) {
+                        int targetApex = findApex(target);
+                        if (targetApex != 0) {
+                            result.setStatus(ZoneLookup.NXDOMAIN);
+                            result.setAuthority(get(targetApex, RData.TYPE_SOA));
+                        }
+                        return;
+                    }
+                    node = next;
+                    continue;
+                }
+                result.setStatus(ZoneLookup.NODATA);
+            }
+
+            if (result.getStatus() == ZoneLookup.NODATA) {
+                result.setAuthority(get(data.getInt(node), RData.TYPE_SOA));
+            }
+            return;
+        }
+    }
+
+    private void lookupMissing(byte[] name, int offset, ZoneLookup result) {
+        if (name[offset] == 0) {
+            return; // The root is never ours
+        }
+
+        // Walk up to the closest encloser to learn whose zone this would be
+        for (int p = DomainNames.parent(name, offset); ; p = DomainNames.parent(name, p)) {
+            int encloser = find(name, p, DomainNames.hash(name, p));
+            if (encloser != 0) {
+                int cut = data.getInt(encloser + 4);
+                if (cut != 0) {
+                    referral(cut, result);
+                } else {
+                    result.setStatus(ZoneLookup.NXDOMAIN);
+                    result.setAuthority(get(data.getInt(encloser), RData.TYPE_SOA));
+                }
+                return;
+            }
+            if (name[p] == 0) {
+                return; // Not ours
+            }
+        }
+    }
+
+    private void referral(int cut, ZoneLookup result) {
+        result.setStatus(ZoneLookup.REFERRAL);
+        result.setAuthority(get(cut, RData.TYPE_NS));
+    }
+
+    private int findApex(byte[] name) {
+        for (int p = 0; ; p = DomainNames.parent(name, p)) {
+            int node = find(name, p, DomainNames.hash(name, p));
+            if (node != 0 && get(node, RData.TYPE_SOA) != 0) {
+                return node;
+            }
+            if (name[p] == 0) {
+                return 0;
+            }
+        }
+    }
+
+    @Override
+    public void write(ZoneLookup result, ResponseWriter writer, byte[] qname, int qnameOffset) {
+        byte[] owner = result.nameBuffer();
+        for (int i = 0; i < result.getAnswerCount(); i++) {
+            int set = result.getAnswerSet(i);
+            if (i == 0) {
+                // The first owner is the QNAME, so the writer compresses it to a pointer
+                writeSet(writer, ResponseWriter.ANSWER, set, qname, qnameOffset, -1);
+            } else {
+                copyName(nodeName(data.getInt(set + 4)), owner);
+                writeSet(writer, ResponseWriter.ANSWER, set, owner, 0, -1);
+            }
+        }
+
+        int authority = result.getAuthoritySet();
+        if (authority > 0) {
+            int ttl = -1;
+            if (data.getShort(authority) == RData.TYPE_SOA) {
+                // RFC 2308: negative answers live for min(SOA TTL, SOA MINIMUM)
+                int record = authority + SET_RECORDS;
+                int end = record + 10 + (data.getShort(record + 8) & 0xFFFF);
+                ttl = Math.min(data.getInt(record + 4), data.getInt(end - 4));
+            }
+            copyName(nodeName(data.getInt(authority + 4)), owner);
+            writeSet(writer, ResponseWriter.AUTHORITY, authority, owner, 0, ttl);
+        }
+    }
+
+    private void writeSet(ResponseWriter writer, int section, int set, byte[] owner, int ownerOffset, int ttl) {
+        writer.writeEncodedRecords(section, owner, ownerOffset, data, set + SET_RECORDS,
+                data.getShort(set + 2) & 0xFFFF, ttl);
+    }
+
+    private int find(byte[] name, int offset, int hash) {
+        int mask = slots - 1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            int slot = HEADER_LENGTH + i * SLOT_LENGTH;
+            int node = data.getInt(slot + 4);
+            if (node == 0) {
+                return 0;
+            }
+            if (data.getInt(slot) == hash && nameEquals(nodeName(node), name, offset)) {
+                return node;
+            }
+        }
+    }
+
+    // Stored names are lowercase
+    private boolean nameEquals(int stored, byte[] name, int offset) {
+        int length = DomainNames.length(name, offset);
+        for (int i = 0; i < length; i++) {
+            if ((data.get(stored + i) & 0xFF) != DomainNames.toLower(name[offset + i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The node's set with the given type, 0 if it has none
+    private int get(int node, int type) {
+        int count = setCount(node);
+        for (int i = 0; i < count; i++) {
+            int set = set(node, i);
+            if ((data.getShort(set) & 0xFFFF) == type) {
+                return set;
+            }
+        }
+        return 0;
+    }
+
+    private int setCount(int node) {
+        return data.getShort(node + 8) & 0xFFFF;
+    }
+
+    private int set(int node, int index) {
+        return data.getInt(node + NODE_SETS + index * 4);
+    }
+
+    private int nodeName(int node) {
+        return node + NODE_SETS + setCount(node) * 4;
+    }
+
+    private void copyName(int offset, byte[] dst) {
+        int pos = offset;
+        while (data.get(pos) != 0) {
+            pos += (data.get(pos) & 0xFF) + 1;
+        }
+        data.get(offset, dst, 0, pos - offset + 1);
+    }
+
+    @Override
+    public int getNameCount() {
+        return nameCount;
+    }
+
+    @Override
+    public int getRecordCount() {
+        return recordCount;
+    }
+}
@@ -0,0 +1,126 @@
+package zone;
+
+import dataTypes.DomainNames;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Compiles a sealed ZoneStore into the image ZoneImage maps. Everything the store
+// works out while loading (apexes, delegation points, empty non-terminals, RRset
+// TTLs) is resolved here once, so the server only has to map the file.
+//
+// The image is written next to the target and moved over it when complete, so a
+// running server never maps a half-written file.
+public final class ZoneImageWriter {
+
+    private ZoneImageWriter() {
+    }
+
+    public static void write(ZoneStore store, Path image) throws IOException {
+        if (!store.isSealed()) {
+            throw new IllegalStateException("Zone store is not sealed");
+        }
+
+        // Layout: header, hash table, nodes, then every node's sets
+        List<ZoneStore.Node> nodes = store.nodes();
+        int slots = Integer.highestOneBit(Math.max(2, nodes.size() * 2 - 1)) << 1;
+        long tableEnd = ZoneImage.HEADER_LENGTH + (long) slots * ZoneImage.SLOT_LENGTH;
+
+        Map<ZoneStore.Node, Integer> nodeOffsets = new IdentityHashMap<>(nodes.size());
+        long pos = tableEnd;
+        for (ZoneStore.Node node : nodes) {
+            nodeOffsets.put(node, checkOffset(pos));
+            pos += nodeLength(node);
+        }
+        Map<RRSet, Integer> setOffsets = new IdentityHashMap<>();
+        for (ZoneStore.Node node : nodes) {
+            for (RRSet set : node.sets) {
+                setOffsets.put(set, checkOffset(pos));
+                pos += setLength(set);
+            }
+        }
+        checkOffset(pos);
+
+        int[] table = new int[slots * 2];
+        for (ZoneStore.Node node : nodes) {
+            int mask = slots - 1;
+            int i = node.hash & mask;
+            while (table[i * 2 + 1] != 0) {
+                i = (i + 1) & mask;
+            }
+            table[i * 2] = node.hash;
+            table[i * 2 + 1] = nodeOffsets.get(node);
+        }
+
+        Path temp = image.resolveSibling(image.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+            out.write(ZoneImage.MAGIC);
+            out.writeInt(ZoneImage.VERSION);
+            out.writeInt(slots);
+            out.writeInt(store.getNameCount());
+            out.writeInt(store.getRecordCount());
+            out.writeInt((int) pos);
+            out.writeInt(0);
+            for (int value : table) {
+                out.writeInt(value);
+            }
+
+            for (ZoneStore.Node node : nodes) {
+                out.writeInt(nodeOffsets.get(node.apex));
+                out.writeInt(node.cut == null ? 0 : nodeOffsets.get(node.cut));
+                out.writeShort(node.sets.length);
+                for (RRSet set : node.sets) {
+                    out.writeInt(setOffsets.get(set));
+                }
+                out.write(node.name);
+            }
+
+            for (ZoneStore.Node node : nodes) {
+                for (RRSet set : node.sets) {
+                    out.writeShort(set.getType());
+                    out.writeShort(set.size());
+                    out.writeInt(nodeOffsets.get(node));
+                    for (int i = 0; i < set.size(); i++) {
+                        byte[] rdata = set.getRData(i);
+                        out.writeShort(set.getType());
+                        out.writeShort(set.getRecordClass());
+                        out.writeInt(set.getTtl());
+                        out.writeShort(rdata.length);
+                        out.write(rdata);
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, image, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static long nodeLength(ZoneStore.Node node) {
+        return ZoneImage.NODE_SETS + 4L * node.sets.length + DomainNames.length(node.name, 0);
+    }
+
+    private static long setLength(RRSet set) {
+        long length = ZoneImage.SET_RECORDS;
+        for (int i = 0; i < set.size(); i++) {
+            length += 10 + set.getRData(i).length;
+        }
+        return length;
+    }
+
+    // Offsets are ints, so an image is capped at 2 GiB
+    private static int checkOffset(long offset) {
+        if (offset > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Zone image larger than 2 GiB");
+        }
+        return (int) offset;
+    }
+}
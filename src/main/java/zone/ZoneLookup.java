@@ -0,0 +1,119 @@
+package zone;
+
+// Result of a ZoneSource lookup. Workers keep one instance and reuse it for every
+// query, so looking up an answer does not allocate. A ZoneStore hands out RRSet
+// objects, a ZoneImage the offsets of its sets; only the source that filled the
+// result knows how to write it.
+public class ZoneLookup {
+
+    public static final int NOT_AUTHORITATIVE = 0; // Name is outside every loaded zone
+    public static final int ANSWER = 1;
+    public static final int NXDOMAIN = 2;
+    public static final int NODATA = 3;
+    public static final int REFERRAL = 4;          // Name is below a delegation
+
+    // Longest CNAME chain followed inside our own data
+    static final int MAX_ANSWERS = 16;
+
+    private int status;
+    private final RRSet[] answers = new RRSet[MAX_ANSWERS];
+    private final int[] answerSets = new int[MAX_ANSWERS];
+    private int answerCount;
+    private RRSet authority;
+    private int authoritySet = -1;
+
+    private ZoneSource source; // The source that filled this result, null after reset()
+
+    // Scratch for sources that copy names out of their own storage
+    private final byte[] name = new byte[255];
+
+    public void reset() {
+        status = NOT_AUTHORITATIVE;
+        for (int i = 0; i < answerCount; i++) {
+            answers[i] = null;
+        }
+        answerCount = 0;
+        authority = null;
+        authoritySet = -1;
+        source = null;
+    }
+
+    void setSource(ZoneSource source) {
+        this.source = source;
+    }
+
+    ZoneSource getSource() {
+        return source;
+    }
+
+    void setStatus(int status) {
+        this.status = status;
+    }
+
+    boolean addAnswer(RRSet set) {
+        if (answerCount == MAX_ANSWERS) {
+            return false;
+        }
+        answers[answerCount++] = set;
+        return true;
+    }
+
+    boolean addAnswer(int set) {
+        if (answerCount == MAX_ANSWERS) {
+            return false;
+        }
+        answerSets[answerCount++] = set;
+        return true;
+    }
+
+    void setAuthority(RRSet authority) {
+        this.authority = authority;
+    }
+
+    void setAuthority(int set) {
+        this.authoritySet = set;
+    }
+
+    int getAnswerSet(int index) {
+        return answerSets[index];
+    }
+
+    // -1 without one
+    int getAuthoritySet() {
+        return authoritySet;
+    }
+
+    byte[] nameBuffer() {
+        return name;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public int getAnswerCount() {
+        return answerCount;
+    }
+
+    public RRSet getAnswer(int index) {
+        return answers[index];
+    }
+
+    // SOA for negative answers, NS for referrals, otherwise null
+    public RRSet getAuthority() {
+        return authority;
+    }
+
+    public boolean isAuthoritative() {
+        return status == ANSWER || status == NXDOMAIN || status == NODATA;
+    }
+
+    // RCODE to answer with
+    public byte getRCODE() {
+        return switch (status) {
+            case NXDOMAIN -> 3;
+            case NOT_AUTHORITATIVE -> 5; // Refused
+            default -> 0;
+        };
+    }
+}
@@ -0,0 +1,197 @@
+package zone;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// Rebuilds the zone data when one of its files changes,
+// and publishes it through ReloadableZones. Loading happens on the reloader's own
+// thread while the workers keep answering from the old data. A burst of file events
+// (an editor saving, a compiler moving an image into place) is coalesced into one
+// reload once the files have been quiet for a moment. When loading fails the error
+// is printed and the old data stays.
+//
+// Only the listed files are watched, not files they pull in with $INCLUDE; touching
+// the including file picks those up.
+//
+// Smaller changes don't need a reload: every *.update file (see ZoneFileParser)
+// that appears in the updates directory is applied to a copy of the current data
+// with ReloadableZones.update(), in name order, and then deleted. A file that
+// fails is renamed to *.failed and changes nothing. Updates only change the data in
+// memory, so the next reload from the zone files drops them.
+public class ZoneReloader implements AutoCloseable {
+
+    // A reload waits for the files to be quiet this long
+    private static final long SETTLE_MILLIS = 200;
+    // How often a pending reload is checked for while no files change
+    private static final long POLL_MILLIS = 100;
+    private static final String UPDATE_SUFFIX = ".update";
+    private static final String FAILED_SUFFIX = ".failed";
+
+    public interface Loader {
+        ZoneSource load() throws IOException;
+    }
+
+    private final ReloadableZones zones;
+    private final Loader loader;
+    private final List<Path> files;
+    private final Path updates; // null when there is no updates directory
+    private final WatchService watcher;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    // files may be empty, then nothing triggers a reload
+    public ZoneReloader(ReloadableZones zones, Loader loader, List<Path> files, Path updates) throws IOException {
+        this.zones = zones;
+        this.loader = loader;
+        this.files = files.stream().map(file -> file.toAbsolutePath().normalize()).toList();
+        this.updates = updates == null ? null : updates.toAbsolutePath().normalize();
+        this.watcher = FileSystems.getDefault().newWatchService();
+        this.thread = new Thread(this::run, "dns-zone-reload");
+        this.thread.setDaemon(true);
+
+        // Files are often replaced by a rename, so watch their directories
+        Set<Path> directories = new HashSet<>();
+        for (Path file : this.files) {
+            directories.add(file.getParent());
+        }
+        if (this.updates != null) {
+            if (!Files.isDirectory(this.updates)) {
+                throw new IOException("Not a directory: " + this.updates);
+            }
+            directories.add(this.updates);
+        }
+        for (Path directory : directories) {
+            directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        }
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    private void run() {
+        // When the files have been quiet long enough; updates left from before start go first
+        long reloadAt = Long.MAX_VALUE;
+        long updatesAt = updates != null ? 0 : Long.MAX_VALUE;
+        while (running) {
+            try {
+                WatchKey key = watcher.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    Path directory = (Path) key.watchable();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        boolean overflow = event.kind() == StandardWatchEventKinds.OVERFLOW;
+                        Path file = overflow ? null : directory.resolve((Path) event.context());
+                        if (overflow || files.contains(file)) {
+                            reloadAt = System.currentTimeMillis() + SETTLE_MILLIS;
+                        }
+                        if (updates != null && (overflow || isUpdate(file))) {
+                            updatesAt = System.currentTimeMillis() + SETTLE_MILLIS;
+                        }
+                    }
+                    key.reset();
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return; // close()
+            }
+
+            long now = System.currentTimeMillis();
+            if (now >= reloadAt) {
+                reloadAt = Long.MAX_VALUE;
+                reload();
+            }
+            if (now >= updatesAt) {
+                updatesAt = Long.MAX_VALUE;
+                applyUpdates();
+            }
+        }
+    }
+
+    private boolean isUpdate(Path file) {
+        return file.getParent().equals(updates) && file.getFileName().toString().endsWith(UPDATE_SUFFIX);
+    }
+
+    private void reload() {
+        if (!running) {
+            return;
+        }
+        long startedAt = System.nanoTime();
+        ZoneSource next;
+        try {
+            next = loader.load();
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Zone reload failed, keeping the current data: " + e.getMessage());
+            return;
+        }
+        zones.swap(next);
+        System.out.printf("Reloaded %d record(s) for %d name(s) in %.1fms%n",
+                next.getRecordCount(), next.getNameCount(), (System.nanoTime() - startedAt) / 1e6);
+    }
+
+    private void applyUpdates() {
+        List<Path> pending;
+        try (Stream<Path> listed = Files.list(updates)) {
+            pending = listed.filter(this::isUpdate).sorted().toList();
+        } catch (IOException e) {
+            System.out.println("Zone updates not read: " + e.getMessage());
+            return;
+        }
+        for (Path file : pending) {
+            if (!running) {
+                return;
+            }
+            long startedAt = System.nanoTime();
+            ZoneStore next;
+            try {
+                next = zones.update(store -> new ZoneFileParser(store).parseUpdate(file));
+            } catch (NoSuchFileException e) {
+                continue; // Taken away meanwhile
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Zone update " + file.getFileName() + " failed, nothing changed: "
+                        + e.getMessage());
+                moveAside(file);
+                continue;
+            }
+            try {
+                Files.delete(file);
+            } catch (IOException e) {
+                System.out.println("Zone update " + file.getFileName() + " applied but not deleted: "
+                        + e.getMessage());
+            }
+            System.out.printf("Applied %s, now %d record(s) for %d name(s) in %.1fms%n", file.getFileName(),
+                    next.getRecordCount(), next.getNameCount(), (System.nanoTime() - startedAt) / 1e6);
+        }
+    }
+
+    private static void moveAside(Path file) {
+        try {
+            Files.move(file, file.resolveSibling(file.getFileName() + FAILED_SUFFIX),
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            System.out.println("Zone update " + file.getFileName() + " not moved aside: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        try {
+            watcher.close();
+        } catch (IOException e) {
+            // Nothing left to watch either way
+        }
+    }
+}
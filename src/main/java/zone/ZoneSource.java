@@ -0,0 +1,20 @@
+package zone;
+
+import dataTypes.ResponseWriter;
+
+// Where authoritative answers come from: a ZoneStore parsed from zone files or a
+// ZoneImage mapped from a compiled image. Both are read-only once built and shared
+// by every worker.
+public interface ZoneSource {
+
+    // Looks up the name at offset in an uncompressed wire-format buffer
+    void lookup(byte[] name, int offset, int type, ZoneLookup result);
+
+    // Writes the answer and authority records of a lookup made against this source.
+    // The first answer's owner is the QNAME, passed so it compresses to the question.
+    void write(ZoneLookup result, ResponseWriter writer, byte[] qname, int qnameOffset);
+
+    int getNameCount();
+
+    int getRecordCount();
+}
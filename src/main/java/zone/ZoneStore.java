@@ -0,0 +1,437 @@
+package zone;
+
+import dataTypes.DomainNames;
+import dataTypes.RData;
+import dataTypes.ResponseWriter;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Authoritative data for one or more zones. Names are stored lowercased in wire
+// format in an open-addressing hash table, so a query is answered by hashing the
+// QNAME bytes straight out of the request: no String decoding, O(1) per lookup.
+//
+// The store is filled by ZoneFileParser, sealed with finishLoading() and read-only
+// from then on, so any number of workers can share it without locking. Changes go
+// to a copy made with edit(), which ReloadableZones publishes once it is sealed.
+// ZoneImageWriter compiles a sealed store into an image ZoneImage can map.
+public class ZoneStore implements ZoneSource {
+
+    private static final int CLASS_IN = 1;
+    private static final int TYPE_ANY = 255;
+
+    private Node[] table = new Node[1024];
+    private int nodeCount;
+    private int recordCount;
+    private boolean sealed;
+
+    static class Node {
+        final byte[] name;
+        final int hash;
+        RRSet[] sets = new RRSet[0];
+        Node apex;   // Closest enclosing zone apex (itself for an apex)
+        Node cut;    // Highest delegation point at or above this name, if any
+
+        Node(byte[] name, int hash) {
+            this.name = name;
+            this.hash = hash;
+        }
+
+        RRSet get(int type) {
+            for (RRSet set : sets) {
+                if (set.getType() == type) {
+                    return set;
+                }
+            }
+            return null;
+        }
+    }
+
+    public static ZoneStore load(List<Path> zoneFiles) throws IOException {
+        ZoneStore store = new ZoneStore();
+        ZoneFileParser parser = new ZoneFileParser(store);
+        for (Path file : zoneFiles) {
+            parser.parse(file);
+        }
+        store.finishLoading();
+        return store;
+    }
+
+    // Owner may be in any case, it is stored lowercased
+    public void add(byte[] owner, int type, int recordClass, int ttl, byte[] rdata) {
+        if (sealed) {
+            throw new IllegalStateException("Zone store is sealed");
+        }
+        if (recordClass != CLASS_IN) {
+            throw new IllegalArgumentException("Only class IN is supported");
+        }
+
+        Node node = findOrCreate(DomainNames.toLowerCase(owner, 0));
+        RRSet set = node.get(type);
+        if (set == null) {
+            set = new RRSet(node.name, type, recordClass, ttl);
+            node.sets = Arrays.copyOf(node.sets, node.sets.length + 1);
+            node.sets[node.sets.length - 1] = set;
+        } else if (set.isFrozen()) {
+            set = replace(node, set, set.copy(-1));
+        }
+        int before = set.size();
+        set.add(rdata, ttl);
+        recordCount += set.size() - before;
+    }
+
+    // Removes one record, or the whole RRset when rdata is null. Returns false when
+    // there was nothing to remove.
+    public boolean remove(byte[] owner, int type, byte[] rdata) {
+        if (sealed) {
+            throw new IllegalStateException("Zone store is sealed");
+        }
+
+        Node node = find(owner, 0, DomainNames.hash(owner, 0));
+        RRSet set = node == null ? null : node.get(type);
+        if (set == null) {
+            return false;
+        }
+        int index = rdata == null ? -1 : set.indexOf(rdata);
+        if (rdata != null && index < 0) {
+            return false;
+        }
+
+        if (rdata == null || set.size() == 1) {
+            RRSet[] sets = new RRSet[node.sets.length - 1];
+            int kept = 0;
+            for (RRSet other : node.sets) {
+                if (other != set) {
+                    sets[kept++] = other;
+                }
+            }
+            node.sets = sets; // A name left without sets is dropped by finishLoading()
+            recordCount -= set.size();
+        } else {
+            replace(node, set, set.copy(index));
+            recordCount--;
+        }
+        return true;
+    }
+
+    // Swaps a set for its copy. The sets array may be shared with the store this one
+    // was copied from, so it is copied rather than written to.
+    private static RRSet replace(Node node, RRSet set, RRSet copy) {
+        RRSet[] sets = node.sets.clone();
+        for (int i = 0; i < sets.length; i++) {
+            if (sets[i] == set) {
+                sets[i] = copy;
+            }
+        }
+        node.sets = sets;
+        return copy;
+    }
+
+    // An unsealed copy of this store for applying record changes while readers keep
+    // using this one. Names, sets arrays and RRsets are shared until an edit touches
+    // them, so copying costs one small node per name instead of a reparse.
+    public ZoneStore edit() {
+        if (!sealed) {
+            throw new IllegalStateException("Only a sealed store can be edited");
+        }
+        ZoneStore copy = new ZoneStore();
+        for (Node node : table) {
+            if (node != null && node.sets.length > 0) { // Non-terminals are worked out again
+                copy.findOrCreate(node.name).sets = node.sets;
+            }
+        }
+        copy.recordCount = recordCount;
+        return copy;
+    }
+
+    // Links every name to its zone, adds empty non-terminals and marks delegations
+    public void finishLoading() {
+        dropEmptyNames();
+        for (Node node : nodes()) {
+            node.apex = findApex(node.name);
+            if (node.apex == null) {
+                throw new IllegalArgumentException("Record outside of any zone (missing SOA): "
+                        + DomainNames.toString(node.name, 0));
+            }
+            if (node.get(RData.TYPE_CNAME) != null && node.sets.length > 1) {
+                throw new IllegalArgumentException("CNAME and other data at "
+                        + DomainNames.toString(node.name, 0));
+            }
+
+            // Names between this one and its apex exist even without records
+            if (node.apex != node) {
+                for (int p = DomainNames.parent(node.name, 0); !isApexName(node.name, p);
+                     p = DomainNames.parent(node.name, p)) {
+                    findOrCreate(Arrays.copyOfRange(node.name, p, node.name.length));
+                }
+            }
+        }
+
+        for (Node node : table) {
+            if (node != null) {
+                node.apex = findApex(node.name);
+                node.cut = findCut(node);
+                for (RRSet set : node.sets) {
+                    set.freeze();
+                }
+            }
+        }
+        sealed = true;
+    }
+
+    // Edits can remove the last record of a name
+    private void dropEmptyNames() {
+        List<Node> nodes = nodes();
+        if (nodes.stream().allMatch(node -> node.sets.length > 0)) {
+            return;
+        }
+        table = new Node[table.length];
+        nodeCount = 0;
+        for (Node node : nodes) {
+            if (node.sets.length > 0) {
+                insert(table, node);
+                nodeCount++;
+            }
+        }
+    }
+
+    private boolean isApexName(byte[] name, int offset) {
+        Node node = find(name, offset, DomainNames.hash(name, offset));
+        return node != null && node.get(RData.TYPE_SOA) != null;
+    }
+
+    private Node findApex(byte[] name) {
+        for (int p = 0; ; p = DomainNames.parent(name, p)) {
+            Node node = find(name, p, DomainNames.hash(name, p));
+            if (node != null && node.get(RData.TYPE_SOA) != null) {
+                return node;
+            }
+            if (name[p] == 0) {
+                return null;
+            }
+        }
+    }
+
+    private Node findCut(Node node) {
+        Node cut = null;
+        for (int p = 0; p < node.name.length - 1; p = DomainNames.parent(node.name, p)) {
+            Node ancestor = find(node.name, p, DomainNames.hash(node.name, p));
+            if (ancestor == null) {
+                continue;
+            }
+            if (ancestor == node.apex) {
+                break;
+            }
+            if (ancestor.get(RData.TYPE_NS) != null) {
+                cut = ancestor; // Keep walking up, the highest cut wins
+            }
+        }
+        return cut;
+    }
+
+    @Override
+    public void lookup(byte[] name, int offset, int type, ZoneLookup result) {
+        result.reset();
+        result.setSource(this);
+
+        int hash = DomainNames.hash(name, offset);
+        Node node = find(name, offset, hash);
+        if (node == null) {
+            lookupMissing(name, offset, result);
+            return;
+        }
+
+        for (int hops = 0; ; hops++) {
+            if (node.cut != null) {
+                referral(node.cut, result);
+                return;
+            }
+
+            if (type == TYPE_ANY) {
+                for (RRSet set : node.sets) {
+                    result.addAnswer(set);
+                }
+                result.setStatus(node.sets.length > 0 ? ZoneLookup.ANSWER : ZoneLookup.NODATA);
+            } else {
+                RRSet set = node.get(type);
+                if (set != null) {
+                    result.addAnswer(set);
+                    result.setStatus(ZoneLookup.ANSWER);
+                    return;
+                }
+
+                RRSet cname = node.get(RData.TYPE_CNAME);
+                if (cname != null && hops < ZoneLookup.MAX_ANSWERS - 1) {
+                    // Follow the alias while it stays inside our data
+                    result.addAnswer(cname);
+                    result.setStatus(ZoneLookup.ANSWER);
+                    byte[] target = cname.getRData(0);
+                    Node next = find(target, 0, DomainNames.hash(target, 0));
+                    if (next == null) {
+                        Node targetApex = findApex(target);
+                        if (targetApex != null) {
+                            result.setStatus(ZoneLookup.NXDOMAIN);
+                            result.setAuthority(targetApex.get(RData.TYPE_SOA));
+                        }
+                        return;
+                    }
+                    node = next;
+                    continue;
+                }
+                result.setStatus(ZoneLookup.NODATA);
+            }
+
+            if (result.getStatus() == ZoneLookup.NODATA) {
+                result.setAuthority(node.apex.get(RData.TYPE_SOA));
+            }
+            return;
+        }
+    }
+
+    @Override
+    public void write(ZoneLookup result, ResponseWriter writer, byte[] qname, int qnameOffset) {
+        for (int i = 0; i < result.getAnswerCount(); i++) {
+            RRSet set = result.getAnswer(i);
+            if (i == 0) {
+                // The first owner is the QNAME, so the writer compresses it to a pointer
+                writeRRSet(writer, ResponseWriter.ANSWER, set, qname, qnameOffset, set.getTtl());
+            } else {
+                writeRRSet(writer, ResponseWriter.ANSWER, set, set.getOwner(), 0, set.getTtl());
+            }
+        }
+
+        RRSet authority = result.getAuthority();
+        if (authority != null) {
+            int ttl = authority.getTtl();
+            if (authority.getType() == RData.TYPE_SOA) {
+                // RFC 2308: negative answers live for min(SOA TTL, SOA MINIMUM)
+                ttl = Math.min(ttl, soaMinimum(authority.getRData(0)));
+            }
+            writeRRSet(writer, ResponseWriter.AUTHORITY, authority, authority.getOwner(), 0, ttl);
+        }
+    }
+
+    private static void writeRRSet(ResponseWriter writer, int section, RRSet set, byte[] owner, int ownerOffset,
+                                   int ttl) {
+        for (int i = 0; i < set.size(); i++) {
+            byte[] rdata = set.getRData(i);
+            if (!writer.writeRecord(section, owner, ownerOffset, set.getType(), set.getRecordClass(),
+                    ttl, rdata, 0, rdata.length)) {
+                return;
+            }
+        }
+    }
+
+    // MINIMUM is the last field of SOA RDATA
+    private static int soaMinimum(byte[] soa) {
+        int pos = soa.length - 4;
+        return ((soa[pos] & 0xFF) << 24) | ((soa[pos + 1] & 0xFF) << 16)
+                | ((soa[pos + 2] & 0xFF) << 8) | (soa[pos + 3] & 0xFF);
+    }
+
+    private void lookupMissing(byte[] name, int offset, ZoneLookup result) {
+        if (name[offset] == 0) {
+            return; // The root is never ours
+        }
+
+        // Walk up to the closest encloser to learn whose zone this would be
+        for (int p = DomainNames.parent(name, offset); ; p = DomainNames.parent(name, p)) {
+            Node encloser = find(name, p, DomainNames.hash(name, p));
+            if (encloser != null) {
+                if (encloser.cut != null) {
+                    referral(encloser.cut, result);
+                } else {
+                    result.setStatus(ZoneLookup.NXDOMAIN);
+                    result.setAuthority(encloser.apex.get(RData.TYPE_SOA));
+                }
+                return;
+            }
+            if (name[p] == 0) {
+                return; // Not ours
+            }
+        }
+    }
+
+    private void referral(Node cut, ZoneLookup result) {
+        result.setStatus(ZoneLookup.REFERRAL);
+        result.setAuthority(cut.get(RData.TYPE_NS));
+    }
+
+    private Node find(byte[] name, int offset, int hash) {
+        Node[] nodes = table;
+        int mask = nodes.length - 1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            Node node = nodes[i];
+            if (node == null) {
+                return null;
+            }
+            if (node.hash == hash && DomainNames.equalsIgnoreCase(node.name, 0, name, offset)) {
+                return node;
+            }
+        }
+    }
+
+    private Node findOrCreate(byte[] lowerName) {
+        int hash = DomainNames.hash(lowerName, 0);
+        Node node = find(lowerName, 0, hash);
+        if (node != null) {
+            return node;
+        }
+
+        // Keep the load factor under one half so probe chains stay short
+        if ((nodeCount + 1) * 2 > table.length) {
+            resize();
+        }
+        node = new Node(lowerName, hash);
+        insert(table, node);
+        nodeCount++;
+        return node;
+    }
+
+    private void resize() {
+        Node[] bigger = new Node[table.length * 2];
+        for (Node node : table) {
+            if (node != null) {
+                insert(bigger, node);
+            }
+        }
+        table = bigger;
+    }
+
+    private static void insert(Node[] nodes, Node node) {
+        int mask = nodes.length - 1;
+        int i = node.hash & mask;
+        while (nodes[i] != null) {
+            i = (i + 1) & mask;
+        }
+        nodes[i] = node;
+    }
+
+    boolean isSealed() {
+        return sealed;
+    }
+
+    // Every name in table order
+    List<Node> nodes() {
+        List<Node> nodes = new ArrayList<>(nodeCount);
+        for (Node node : table) {
+            if (node != null) {
+                nodes.add(node);
+            }
+        }
+        return nodes;
+    }
+
+    @Override
+    public int getNameCount() {
+        return nodeCount;
+    }
+
+    @Override
+    public int getRecordCount() {
+        return recordCount;
+    }
+}
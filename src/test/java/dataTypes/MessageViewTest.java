@@ -0,0 +1,147 @@
+package dataTypes;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+// readName() follows compression pointers in names taken from the network, so it
+// has to stop on anything a hostile packet can hold: loops, pointers that jump
+// forward, names cut off by the end of the message and names that only exceed
+// 255 bytes once they are decompressed.
+class MessageViewTest {
+
+    private final byte[] name = new byte[MessageView.MAX_NAME_LENGTH];
+
+    // A header with one question followed by body, as unsigned bytes
+    private static byte[] message(int... body) {
+        byte[] message = new byte[MessageView.HEADER_LENGTH + body.length];
+        message[5] = 1;
+        for (int i = 0; i < body.length; i++) {
+            message[MessageView.HEADER_LENGTH + i] = (byte) body[i];
+        }
+        return message;
+    }
+
+    private static MessageView view(byte[] message) {
+        return new MessageView().reset(message, 0, message.length);
+    }
+
+    @Test
+    void readsUncompressedName() {
+        MessageView view = view(message(3, 'w', 'w', 'w', 0, 0, 1, 0, 1));
+        assertEquals(5, view.readName(12, name, 0));
+        assertEquals("www", view.nameToString(12));
+    }
+
+    @Test
+    void followsBackwardPointers() {
+        // example at 12, www + pointer to it at 21, mail + pointer to www at 27
+        MessageView view = view(message(
+                7, 'e', 'x', 'a', 'm', 'p', 'l', 'e', 0,
+                3, 'w', 'w', 'w', 0xC0, 12,
+                4, 'm', 'a', 'i', 'l', 0xC0, 21));
+        assertEquals(13, view.readName(21, name, 0));
+        assertEquals("www.example", view.nameToString(21));
+        assertEquals("mail.www.example", view.nameToString(27));
+    }
+
+    @Test
+    void rejectsPointerToItself() {
+        MessageView view = view(message(0xC0, 12));
+        assertThrows(IllegalArgumentException.class, () -> view.readName(12, name, 0));
+    }
+
+    @Test
+    void rejectsPointerLoop() {
+        // 12 points at 14 and 14 back at 12
+        MessageView view = view(message(0xC0, 14, 0xC0, 12));
+        assertThrows(IllegalArgumentException.class, () -> view.readName(14, name, 0));
+        assertThrows(IllegalArgumentException.class, () -> view.readName(12, name, 0));
+    }
+
+    @Test
+    void rejectsLoopThroughLabels() {
+        // a, then a pointer back to the a label: each turn would add a label
+        MessageView view = view(message(1, 'a', 0xC0, 12));
+        assertThrows(IllegalArgumentException.class, () -> view.readName(12, name, 0));
+    }
+
+    @Test
+    void rejectsForwardPointer() {
+        MessageView view = view(message(0xC0, 14, 0));
+        assertThrows(IllegalArgumentException.class, () -> view.readName(12, name, 0));
+    }
+
+    @Test
+    void rejectsPointerPastEndOfMessage() {
+        MessageView view = view(message(3, 'w', 'w', 'w', 0, 0xC0, 0xFF));
+        assertThrows(IllegalArgumentException.class, () -> view.readName(17, name, 0));
+    }
+
+    @Test
+    void rejectsTruncatedPointer() {
+        MessageView view = view(message(0xC0));
+        assertThrows(IllegalArgumentException.class, () -> view.readName(12, name, 0));
+    }
+
+    @Test
+    void rejectsLabelPastEndOfMessage() {
+        MessageView view = view(message(5, 'a', 'b'));
+        assertThrows(IllegalArgumentException.class, () -> view.readName(12, name, 0));
+    }
+
+    @Test
+    void rejectsNameWithoutRootLabel() {
+        MessageView view = view(message(1, 'a', 1, 'b'));
+        assertThrows(IllegalArgumentException.class, () -> view.readName(12, name, 0));
+    }
+
+    @Test
+    void rejectsReservedLabelTypes() {
+        assertThrows(IllegalArgumentException.class, () -> view(message(0x40, 0)).readName(12, name, 0));
+        assertThrows(IllegalArgumentException.class, () -> view(message(0x80, 0)).readName(12, name, 0));
+    }
+
+    @Test
+    void ignoresBytesPastTheMessageLength() {
+        // The buffer holds the rest of the name, but the message ends before it
+        byte[] buffer = message(3, 'w', 'w', 'w', 0);
+        MessageView view = new MessageView().reset(buffer, 0, buffer.length - 2);
+        assertThrows(IllegalArgumentException.class, () -> view.readName(12, name, 0));
+    }
+
+    @Test
+    void rejectsNameTooLongOnceDecompressed() {
+        // Every 63-byte label points back at the one before: each name is valid on
+        // the wire, but the fourth decompresses to 257 bytes
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        int[] starts = new int[4];
+        for (int n = 0; n < starts.length; n++) {
+            starts[n] = MessageView.HEADER_LENGTH + body.size();
+            body.write(63);
+            body.write(new byte[63], 0, 63);
+            if (n == 0) {
+                body.write(0);
+            } else {
+                body.write(0xC0);
+                body.write(starts[n - 1]);
+            }
+        }
+        byte[] message = new byte[MessageView.HEADER_LENGTH + body.size()];
+        System.arraycopy(body.toByteArray(), 0, message, MessageView.HEADER_LENGTH, body.size());
+        MessageView view = view(message);
+
+        assertEquals(3 * 64 + 1, view.readName(starts[2], name, 0));
+        assertThrows(IllegalArgumentException.class, () -> view.readName(starts[3], name, 0));
+    }
+
+    @Test
+    void skipNameStopsAtPointer() {
+        MessageView view = view(message(3, 'w', 'w', 'w', 0xC0, 12));
+        assertEquals(18, view.skipName(12));
+        assertThrows(IllegalArgumentException.class, () -> view(message(3, 'w', 'w')).skipName(12));
+    }
+}
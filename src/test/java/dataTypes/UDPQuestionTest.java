@@ -0,0 +1,109 @@
+package dataTypes;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+// Questions come straight from clients: any of them may stop anywhere, and the
+// parsers must reject the message rather than read past its end.
+class UDPQuestionTest {
+
+    // A query for www.example.com A IN, 33 bytes
+    private static byte[] query() {
+        byte[] question = UDPQuestion.createUDPQuestion("www.example.com", 1, 1);
+        byte[] message = new byte[MessageView.HEADER_LENGTH + question.length];
+        message[5] = 1;
+        System.arraycopy(question, 0, message, MessageView.HEADER_LENGTH, question.length);
+        return message;
+    }
+
+    @Test
+    void parsesQuestion() {
+        UDPQuestion question = new UDPQuestion(query());
+        assertArrayEquals(RData.encodeDomainName("www.example.com"), question.getDomainName());
+        assertEquals(1, question.getType());
+        assertEquals(1, question.getQuestionClass());
+    }
+
+    @Test
+    void rejectsEveryTruncation() {
+        byte[] query = query();
+        for (int length = MessageView.HEADER_LENGTH; length < query.length; length++) {
+            byte[] truncated = Arrays.copyOf(query, length);
+            assertThrows(IllegalArgumentException.class, () -> new UDPQuestion(truncated), "length " + length);
+        }
+    }
+
+    @Test
+    void rejectsTruncationInsideALargerBuffer() {
+        // The bytes are there, but past the length the message was received with
+        byte[] query = query();
+        for (int length = MessageView.HEADER_LENGTH; length < query.length; length++) {
+            MessageView view = new MessageView().reset(query, 0, length);
+            assertThrows(IllegalArgumentException.class, () -> new UDPQuestion(view), "length " + length);
+        }
+    }
+
+    @Test
+    void rejectsShortHeader() {
+        assertThrows(IllegalArgumentException.class, () -> new UDPQuestion(new byte[MessageView.HEADER_LENGTH - 1]));
+    }
+
+    @Test
+    void rejectsMessageWithoutQuestion() {
+        byte[] query = query();
+        query[5] = 0;
+        assertThrows(IllegalArgumentException.class, () -> new UDPQuestion(query));
+    }
+
+    @Test
+    void rejectsCompressedOrReservedLabels() {
+        byte[] query = query();
+        query[MessageView.HEADER_LENGTH] = (byte) 0xC0;
+        assertThrows(IllegalArgumentException.class, () -> new UDPQuestion(query));
+        query[MessageView.HEADER_LENGTH] = 0x40;
+        assertThrows(IllegalArgumentException.class, () -> new UDPQuestion(query));
+    }
+
+    @Test
+    void rejectsNameOver255Bytes() {
+        // Four 63-byte labels and the root label: 257 bytes
+        byte[] message = new byte[MessageView.HEADER_LENGTH + 4 * 64 + 1 + 4];
+        message[5] = 1;
+        for (int i = 0; i < 4; i++) {
+            message[MessageView.HEADER_LENGTH + i * 64] = 63;
+        }
+        assertThrows(IllegalArgumentException.class, () -> new UDPQuestion(message));
+    }
+
+    @Test
+    void measuresQuestionLength() {
+        byte[] question = UDPQuestion.createUDPQuestion("www.example.com", 1, 1);
+        assertEquals(question.length, UDPQuestion.parseQuestionLength(question, 0));
+        // A compression pointer ends the name
+        assertEquals(6, UDPQuestion.parseQuestionLength(new byte[] {(byte) 0xC0, 12, 0, 1, 0, 1}, 0));
+    }
+
+    @Test
+    void questionLengthRejectsEveryTruncation() {
+        byte[] question = UDPQuestion.createUDPQuestion("www.example.com", 1, 1);
+        for (int length = 0; length < question.length; length++) {
+            byte[] truncated = Arrays.copyOf(question, length);
+            assertThrows(IllegalArgumentException.class, () -> UDPQuestion.parseQuestionLength(truncated, 0),
+                    "length " + length);
+        }
+        byte[] pointer = {(byte) 0xC0, 12, 0, 1, 0};
+        assertThrows(IllegalArgumentException.class, () -> UDPQuestion.parseQuestionLength(pointer, 0));
+        assertThrows(IllegalArgumentException.class, () -> UDPQuestion.parseQuestionLength(new byte[] {(byte) 0xC0}, 0));
+    }
+
+    @Test
+    void questionLengthRejectsReservedLabels() {
+        assertThrows(IllegalArgumentException.class,
+                () -> UDPQuestion.parseQuestionLength(new byte[] {0x40, 0, 0, 1, 0, 1}, 0));
+    }
+}
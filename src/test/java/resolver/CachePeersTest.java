@@ -0,0 +1,122 @@
+package resolver;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// read() takes datagrams whose MAC already checked out, but a peer with the key can
+// still send nonsense: every count and length in them has to be checked against
+// what is actually there.
+class CachePeersTest {
+
+    private final RecordCache cache = new RecordCache(1 << 20, 3600);
+    private final CachePeers peers = new CachePeers(cache, new InetSocketAddress("127.0.0.1", 0),
+            List.of(new InetSocketAddress("127.0.0.1", 9)), new byte[CachePeers.MIN_KEY_LENGTH]);
+
+    // A datagram as the sender lays it out, without the MAC verify() strips
+    private static ByteBuffer datagram(int count) {
+        ByteBuffer datagram = ByteBuffer.allocate(CachePeers.MAX_DATAGRAM);
+        datagram.put(CachePeers.MAGIC).put((byte) CachePeers.VERSION).put((byte) count)
+                .putLong(System.currentTimeMillis());
+        return datagram;
+    }
+
+    private static void putEntry(ByteBuffer datagram, byte[] packet, int leftMillis, int ttlOffset) {
+        datagram.putShort((short) packet.length).put(packet).put((byte) 0).putInt(leftMillis)
+                .putShort((short) 1).putShort((short) ttlOffset).putInt(300);
+    }
+
+    private static void putEntry(ByteBuffer datagram) {
+        putEntry(datagram, RecordCacheTest.answer(300), 60_000, RecordCacheTest.ttlOffset());
+    }
+
+    @Test
+    void cachesEntries() {
+        ByteBuffer datagram = datagram(1);
+        putEntry(datagram);
+        peers.read(datagram.flip());
+        assertEquals(1, peers.getReceived());
+        assertTrue(RecordCacheTest.isCached(cache));
+    }
+
+    @Test
+    void rejectsShortOrForeignHeaders() {
+        assertThrows(IllegalArgumentException.class, () -> peers.read(ByteBuffer.allocate(CachePeers.HEADER_LENGTH - 1)));
+
+        ByteBuffer magic = datagram(0).flip();
+        magic.put(0, (byte) 'X');
+        assertThrows(IllegalArgumentException.class, () -> peers.read(magic));
+
+        ByteBuffer version = datagram(0).flip();
+        version.put(CachePeers.MAGIC.length, (byte) (CachePeers.VERSION + 1));
+        assertThrows(IllegalArgumentException.class, () -> peers.read(version));
+    }
+
+    @Test
+    void rejectsEntryCountAboveEntries() {
+        ByteBuffer datagram = datagram(2);
+        putEntry(datagram);
+        assertThrows(IllegalArgumentException.class, () -> peers.read(datagram.flip()));
+    }
+
+    @Test
+    void rejectsEntryCountOfEmptyDatagram() {
+        assertThrows(IllegalArgumentException.class, () -> peers.read(datagram(CachePeers.MAX_ENTRIES).flip()));
+        assertEquals(0, peers.getReceived());
+    }
+
+    @Test
+    void rejectsPacketLengthAboveDatagram() {
+        ByteBuffer datagram = datagram(1);
+        datagram.putShort((short) 0xFFFF).put(RecordCacheTest.answer(300));
+        assertThrows(IllegalArgumentException.class, () -> peers.read(datagram.flip()));
+        assertFalse(RecordCacheTest.isCached(cache));
+    }
+
+    @Test
+    void rejectsTtlCountAboveDatagram() {
+        byte[] packet = RecordCacheTest.answer(300);
+        ByteBuffer datagram = datagram(1);
+        datagram.putShort((short) packet.length).put(packet).put((byte) 0).putInt(60_000)
+                .putShort((short) 0xFFFF).putShort((short) RecordCacheTest.ttlOffset()).putInt(300);
+        assertThrows(IllegalArgumentException.class, () -> peers.read(datagram.flip()));
+        assertFalse(RecordCacheTest.isCached(cache));
+    }
+
+    @Test
+    void rejectsEveryTruncation() {
+        ByteBuffer whole = datagram(1);
+        putEntry(whole);
+        byte[] bytes = Arrays.copyOf(whole.array(), whole.position());
+        for (int length = 0; length < bytes.length; length++) {
+            ByteBuffer truncated = ByteBuffer.wrap(Arrays.copyOf(bytes, length));
+            assertThrows(IllegalArgumentException.class, () -> peers.read(truncated), "length " + length);
+        }
+        assertEquals(0, peers.getReceived());
+    }
+
+    @Test
+    void rejectsTtlOffsetOutsideThePacket() {
+        ByteBuffer datagram = datagram(1);
+        putEntry(datagram, RecordCacheTest.answer(300), 60_000, 0xFFFF);
+        assertThrows(IllegalArgumentException.class, () -> peers.read(datagram.flip()));
+        assertFalse(RecordCacheTest.isCached(cache));
+    }
+
+    @Test
+    void skipsExpiredEntries() {
+        ByteBuffer datagram = datagram(1);
+        putEntry(datagram, RecordCacheTest.answer(300), -1, RecordCacheTest.ttlOffset());
+        peers.read(datagram.flip());
+        assertEquals(0, peers.getReceived());
+        assertFalse(RecordCacheTest.isCached(cache));
+    }
+}
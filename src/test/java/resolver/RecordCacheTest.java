@@ -0,0 +1,166 @@
+package resolver;
+
+import dataTypes.MessageView;
+import dataTypes.UDPQuestion;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// readFrom() trusts nothing in a snapshot file: it may be cut short by a crash
+// while it was written, or be corrupt, and must never cache what it can't serve.
+class RecordCacheTest {
+
+    // An answer for www.example.com A with one record of the given TTL
+    static byte[] answer(int ttl) {
+        byte[] question = UDPQuestion.createUDPQuestion("www.example.com", 1, 1);
+        ByteBuffer packet = ByteBuffer.allocate(MessageView.HEADER_LENGTH + question.length + 16);
+        packet.putShort((short) 0x1234).putShort((short) 0x8180).putShort((short) 1).putShort((short) 1)
+                .putShort((short) 0).putShort((short) 0)
+                .put(question)
+                .putShort((short) 0xC00C).putShort((short) 1).putShort((short) 1).putInt(ttl)
+                .putShort((short) 4).put(new byte[] {(byte) 192, 0, 2, 1});
+        return packet.array();
+    }
+
+    // Offset of the answer's TTL in answer()
+    static int ttlOffset() {
+        return answer(0).length - 10;
+    }
+
+    static boolean isCached(RecordCache cache) {
+        byte[] query = answer(300);
+        MessageView view = new MessageView().reset(query, 0, query.length);
+        return cache.get(view, query, MessageView.HEADER_LENGTH, new byte[512], 0, 512) > 0;
+    }
+
+    private static byte[] snapshotOf(RecordCache cache) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        cache.writeTo(new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    private static int readFrom(RecordCache cache, byte[] snapshot) throws IOException {
+        return cache.readFrom(new DataInputStream(new ByteArrayInputStream(snapshot)));
+    }
+
+    // One entry as writeTo() writes it, then the end of the list
+    private static byte[] entry(byte[] packet, long storedAt, long expiresAt, int ttlOffset) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(packet.length);
+        out.write(packet);
+        out.writeBoolean(false);
+        out.writeLong(storedAt);
+        out.writeLong(expiresAt);
+        out.writeShort(1);
+        out.writeShort(ttlOffset);
+        out.writeInt(300);
+        out.writeInt(0);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] entry(long storedAt, long expiresAt) throws IOException {
+        return entry(answer(300), storedAt, expiresAt, ttlOffset());
+    }
+
+    @Test
+    void restoresWhatItWrote() throws IOException {
+        RecordCache cache = new RecordCache(1 << 20, 3600);
+        byte[] packet = answer(300);
+        cache.put(new MessageView().reset(packet, 0, packet.length));
+        byte[] snapshot = snapshotOf(cache);
+
+        RecordCache restored = new RecordCache(1 << 20, 3600);
+        assertEquals(1, readFrom(restored, snapshot));
+        assertTrue(isCached(restored));
+    }
+
+    @Test
+    void rejectsEveryTruncation() throws IOException {
+        RecordCache cache = new RecordCache(1 << 20, 3600);
+        byte[] packet = answer(300);
+        cache.put(new MessageView().reset(packet, 0, packet.length));
+        byte[] snapshot = snapshotOf(cache);
+
+        for (int length = 0; length < snapshot.length; length++) {
+            byte[] truncated = Arrays.copyOf(snapshot, length);
+            assertThrows(IllegalArgumentException.class, () -> readFrom(new RecordCache(1 << 20, 3600), truncated),
+                    "length " + length);
+        }
+    }
+
+    @Test
+    void rejectsPacketLengthOutOfRange() {
+        for (int length : new int[] {-1, 1, MessageView.HEADER_LENGTH - 1, 0x10000, Integer.MAX_VALUE}) {
+            byte[] snapshot = ByteBuffer.allocate(8).putInt(length).putInt(0).array();
+            assertThrows(IllegalArgumentException.class, () -> readFrom(new RecordCache(1 << 20, 3600), snapshot),
+                    "length " + length);
+        }
+    }
+
+    @Test
+    void rejectsTtlOffsetOutsideThePacket() throws IOException {
+        long now = System.currentTimeMillis();
+        for (int offset : new int[] {0, MessageView.HEADER_LENGTH - 1, answer(300).length - 3, 0xFFFF}) {
+            byte[] snapshot = entry(answer(300), now, now + 60_000, offset);
+            assertThrows(IllegalArgumentException.class, () -> readFrom(new RecordCache(1 << 20, 3600), snapshot),
+                    "offset " + offset);
+        }
+    }
+
+    @Test
+    void rejectsPacketWithoutQuestion() throws IOException {
+        long now = System.currentTimeMillis();
+        byte[] packet = new byte[MessageView.HEADER_LENGTH + 2];
+        packet[MessageView.HEADER_LENGTH] = 63; // A label running past the packet
+        byte[] snapshot = entry(packet, now, now + 60_000, MessageView.HEADER_LENGTH);
+        assertThrows(IllegalArgumentException.class, () -> readFrom(new RecordCache(1 << 20, 3600), snapshot));
+    }
+
+    @Test
+    void skipsExpiredEntries() throws IOException {
+        long now = System.currentTimeMillis();
+        RecordCache cache = new RecordCache(1 << 20, 3600);
+        assertEquals(0, readFrom(cache, entry(now - 120_000, now - 60_000)));
+        assertFalse(isCached(cache));
+    }
+
+    @Test
+    void capsExpiryAtTheMaximumTtl() throws IOException {
+        long now = System.currentTimeMillis();
+        RecordCache cache = new RecordCache(1 << 20, 60);
+        // Stored two minutes ago, claims to be good for a day more: past the 60 s cap
+        assertEquals(0, readFrom(cache, entry(now - 120_000, now + 86_400_000)));
+        assertFalse(isCached(cache));
+    }
+
+    @Test
+    void rejectsTimesThatOverflow() throws IOException {
+        long now = System.currentTimeMillis();
+        long[][] times = {
+                {Long.MIN_VALUE, Long.MAX_VALUE},
+                {Long.MAX_VALUE, Long.MAX_VALUE},
+                {Long.MIN_VALUE, Long.MIN_VALUE},
+                {now, Long.MIN_VALUE},
+                {now, Long.MAX_VALUE},
+        };
+        for (long[] time : times) {
+            RecordCache cache = new RecordCache(1 << 20, 3600);
+            byte[] snapshot = entry(time[0], time[1]);
+            assertThrows(IllegalArgumentException.class, () -> readFrom(cache, snapshot),
+                    time[0] + " " + time[1]);
+            assertFalse(isCached(cache));
+        }
+    }
+}